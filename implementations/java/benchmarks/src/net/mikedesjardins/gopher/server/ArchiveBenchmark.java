@@ -0,0 +1,73 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Measures browsing a big ZIP archive: MEMBERS small text files spread over DIRECTORIES directories, so each menu
+ * is a few hundred items. Every invocation asks for the next directory's menu, or the first member in the next
+ * directory. With archiveCache=0 the archive's central directory is read for every request, and with the default it
+ * should only be read once. The content cache is off so members are inflated every time too. The server runs in the
+ * benchmark's own JVM, and each parameter gets a fork of its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+    private static final int MEMBERS = 50_000;
+    private static final int DIRECTORIES = 100;
+
+    @Param({"0", "250000"})
+    public int archiveCache;
+
+    private Path root;
+    private InetSocketAddress server;
+    private int next;
+    private final ByteBuffer response = ByteBuffer.allocateDirect(64 * 1024);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        root = Files.createTempDirectory("gopher-archive");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(root.resolve("big.zip")))) {
+            for (int i = 0; i < MEMBERS; i++) {
+                zip.putNextEntry(new ZipEntry("dir" + (i % DIRECTORIES) + "/file" + i + ".txt"));
+                zip.write(("This is file number " + i + ".\n").getBytes(StandardCharsets.US_ASCII));
+                zip.closeEntry();
+            }
+        }
+        int port = BenchmarkServer.freePort();
+        Config.setEngine("pool");
+        Config.setContentCacheSize(0);
+        Config.setArchiveCache(archiveCache);
+        server = BenchmarkServer.start(root, port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkServer.delete(root);
+    }
+
+    @Benchmark
+    public int menu() throws IOException {
+        next = (next + 1) % DIRECTORIES;
+        return BenchmarkServer.fetch(server, "big.zip/dir" + next + "/", response);
+    }
+
+    @Benchmark
+    public int member() throws IOException {
+        next = (next + 1) % DIRECTORIES;
+        return BenchmarkServer.fetch(server, "big.zip/dir" + next + "/file" + next + ".txt", response);
+    }
+}
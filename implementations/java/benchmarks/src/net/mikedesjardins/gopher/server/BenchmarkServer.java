@@ -0,0 +1,95 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * The plumbing for benchmarks that run a GopherServer in their own JVM and measure it from the outside: finding it a
+ * port, starting it on a daemon thread once the benchmark has set up the Config, fetching selectors from it, and
+ * throwing away the root afterwards. JMH gives each parameter a fork of its own, so there's only ever one server.
+ */
+public class BenchmarkServer {
+    /**
+     * @return a port nobody's listening on right now.
+     * @throws IOException if we can't find one.
+     */
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Starts a server on root at localhost:port, with whatever else the benchmark has already put in the Config, and
+     * waits until it takes connections. Logging is turned down to warnings so it doesn't drown out the results.
+     * @param root the gopher root.
+     * @param port the port, usually from freePort().
+     * @return where to connect to it.
+     * @throws IOException if we can't tell whether it's up.
+     * @throws InterruptedException if we're interrupted while we wait.
+     */
+    public static InetSocketAddress start(Path root, int port) throws IOException, InterruptedException {
+        Logger.getLogger("net.mikedesjardins.gopher").setLevel(Level.WARNING);
+        Config.setRoot(root.toString());
+        Config.setHost("localhost");
+        Config.setPort(port);
+        Thread thread = new Thread(() -> new GopherServer().serve(), "gopher-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+        while (true) {
+            try {
+                SocketChannel.open(address).close();
+                return address;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Asks for a selector and reads the whole answer.
+     * @param response where to read it, a buffer at a time, so nothing's allocated per request.
+     * @return how many bytes the answer was.
+     * @throws IOException if the request fails.
+     */
+    public static int fetch(InetSocketAddress address, String selector, ByteBuffer response) throws IOException {
+        return fetch(address, ByteBuffer.wrap((selector + "\r\n").getBytes(StandardCharsets.US_ASCII)), response);
+    }
+
+    /**
+     * Same as fetch(address, selector, response), for a request that's already encoded, selector, CR LF and all.
+     */
+    public static int fetch(InetSocketAddress address, ByteBuffer request, ByteBuffer response) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            channel.write(request.rewind());
+            int total = 0;
+            int count;
+            while ((count = channel.read(response.clear())) >= 0) {
+                total += count;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Deletes a root, and everything in it.
+     * @throws IOException if we can't list it.
+     */
+    public static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how much garbage a request makes with and without the GopherBufferPool (bufferPool=0 turns it off). The
+ * server runs in the benchmark's own JVM with the content cache off, so text files are converted on every request,
+ * which is the worst case for scratch buffers. The number to look at is gc.alloc.rate.norm, the bytes allocated per
+ * request (client and server together, but the client's the same either way), and gc.count next to it. Each
+ * parameter gets a fork of its own. The profiler can't see what a thread allocated once it's gone, which is every
+ * thread the thread engine makes, so at the end of each trial we also print how many buffers the pool had to
+ * allocate per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BufferPoolBenchmark {
+    private static final int TEXT_SIZE = 64 * 1024;
+
+    @Param({"nio", "pool", "thread"})
+    public String engine;
+
+    @Param({"0", "16777216"})
+    public long bufferPool;
+
+    private Path root;
+    private InetSocketAddress server;
+    private long requests;
+    private final ByteBuffer response = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer menuRequest = ByteBuffer.wrap("\r\n".getBytes(StandardCharsets.US_ASCII));
+    private final ByteBuffer textRequest = ByteBuffer.wrap("poem.txt\r\n".getBytes(StandardCharsets.US_ASCII));
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        root = Files.createTempDirectory("gopher-buffers");
+        StringBuilder text = new StringBuilder(TEXT_SIZE);
+        while (text.length() < TEXT_SIZE) {
+            text.append("I celebrate myself, and sing myself,   \n");
+        }
+        Files.write(root.resolve("poem.txt"), text.toString().getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 20; i++) {
+            Files.write(root.resolve("file" + i + ".txt"), "Hello!\n".getBytes(StandardCharsets.UTF_8));
+        }
+        int port = BenchmarkServer.freePort();
+        Config.setEngine(engine);
+        Config.setContentCacheSize(0);
+        Config.setBufferPool(bufferPool);
+        server = BenchmarkServer.start(root, port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.printf("%nBuffers allocated per request: %.3f%n",
+                (double) GopherBufferPool.getInstance().getAllocated() / requests);
+        BenchmarkServer.delete(root);
+    }
+
+    @Benchmark
+    public int menu() throws IOException {
+        return fetch(menuRequest);
+    }
+
+    @Benchmark
+    public int text() throws IOException {
+        return fetch(textRequest);
+    }
+
+    private int fetch(ByteBuffer request) throws IOException {
+        requests++;
+        return BenchmarkServer.fetch(server, request, response);
+    }
+}
@@ -0,0 +1,82 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many connections a second the server can set up, answer and tear down, with different numbers of
+ * acceptors (see --multiaccept). Each connection asks for a tiny file, so the work is almost all accepting and
+ * closing. The server runs in the benchmark's own JVM, on daemon threads, and each parameter combination gets a
+ * fork (and so a server) of its own. You need as many cores as acceptors to see any scaling.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class ConnectionRateBenchmark {
+    private static final String SELECTOR = "hello.txt";
+
+    @Param({"pool", "nio"})
+    public String engine;
+
+    @Param({"1", "2", "4", "8"})
+    public int acceptors;
+
+    private Path root;
+    private InetSocketAddress address;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        root = Files.createTempDirectory("gopher-connection-rate");
+        Files.write(root.resolve(SELECTOR), "Hello!\n".getBytes(StandardCharsets.UTF_8));
+        int port = BenchmarkServer.freePort();
+        Config.setEngine(engine);
+        Config.setMultiAccept(acceptors > 1);
+        Config.setAcceptors(acceptors);
+        address = BenchmarkServer.start(root, port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkServer.delete(root);
+    }
+
+    /**
+     * A read buffer for each benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private final ByteBuffer request = ByteBuffer.wrap((SELECTOR + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        private final ByteBuffer response = ByteBuffer.allocate(1024);
+    }
+
+    @Benchmark
+    public int connection(Client client) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            // Reset instead of a normal close, so we don't run out of ports to a pile of TIME_WAIT sockets.
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            client.request.rewind();
+            channel.write(client.request);
+            int total = 0;
+            int count;
+            client.response.clear();
+            while ((count = channel.read(client.response)) >= 0) {
+                total += count;
+                client.response.clear();
+            }
+            return total;
+        }
+    }
+}
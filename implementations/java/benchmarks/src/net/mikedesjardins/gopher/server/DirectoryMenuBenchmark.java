@@ -0,0 +1,119 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks synthesizing a menu from a directory with no gophermap, for directories of various sizes: the old
+ * GopherMenu way, the CompactMenu way, and streamed through GopherDirectoryMenu (all of it, or just the first
+ * chunk, which is roughly the time to first byte), unsorted and sorted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectoryMenuBenchmark {
+    private static final String[] EXTENSIONS = {"txt", "gif", "jpg", "zip", "md", "pdf", ""};
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int entries;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("gopher-directory-benchmark");
+        for (int i = 0; i < entries; i++) {
+            String extension = EXTENSIONS[i % EXTENSIONS.length];
+            Files.createFile(directory.resolve(extension.isEmpty() ? "entry" + i : "entry" + i + "." + extension));
+        }
+        Config.setHost("localhost");
+        Config.setPort(70);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public GopherMenu createFromDirectory() {
+        return GopherMenuFactory.createFromDirectory(directory);
+    }
+
+    @Benchmark
+    public byte[] createAndRenderFromDirectory() {
+        return GopherMenuFactory.createFromDirectory(directory).toBytes();
+    }
+
+    /**
+     * Directory menus sorted by name, for the benchmarks that take it.
+     */
+    @State(Scope.Benchmark)
+    public static class Sorted {
+        @Setup(Level.Trial)
+        public void setup() {
+            Config.setMenuSort(true);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Config.setMenuSort(false);
+        }
+    }
+
+    /**
+     * A chunk to read the streamed menus into.
+     */
+    @State(Scope.Thread)
+    public static class Chunk {
+        private final byte[] bytes = new byte[GopherServerThread.BUFFER_SIZE];
+    }
+
+    @Benchmark
+    public byte[] createCompact() {
+        return GopherMenuFactory.createCompact(directory).toBytes();
+    }
+
+    @Benchmark
+    public long stream(Chunk chunk) throws IOException {
+        return streamMenu(chunk, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public long streamFirstChunk(Chunk chunk) throws IOException {
+        return streamMenu(chunk, 1);
+    }
+
+    @Benchmark
+    public long streamSorted(Sorted sorted, Chunk chunk) throws IOException {
+        return streamMenu(chunk, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public long streamSortedFirstChunk(Sorted sorted, Chunk chunk) throws IOException {
+        return streamMenu(chunk, 1);
+    }
+
+    private long streamMenu(Chunk chunk, long chunks) throws IOException {
+        long total = 0;
+        try (InputStream in = GopherDirectoryMenu.open(directory).stream(new CompactMenu())) {
+            int count;
+            for (long i = 0; i < chunks && (count = in.read(chunk.bytes)) > 0; i++) {
+                total += count;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,73 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks GopherFileOutput.stream() for text files (which get their line endings converted) versus binary files
+ * (which are streamed as-is), draining each through the same sized buffer GopherServerThread uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileOutputBenchmark {
+    @Param({"text", "binary"})
+    public String kind;
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private Path root;
+    private String selector;
+    private final byte[] buffer = new byte[GopherServerThread.BUFFER_SIZE];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("gopher-file-benchmark");
+        Config.setRoot(root.toString());
+        if (kind.equals("text")) {
+            selector = "file.txt";
+            StringBuilder text = new StringBuilder(size);
+            while (text.length() < size) {
+                text.append("APRIL is the cruellest month, breeding   \n");
+            }
+            text.setLength(size);
+            Files.write(root.resolve(selector), text.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            selector = "file.zip";
+            byte[] bytes = new byte[size];
+            new Random(70).nextBytes(bytes);
+            Files.write(root.resolve(selector), bytes);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void stream(Blackhole blackhole) throws IOException {
+        try (InputStream in = new GopherFileOutput(selector).stream()) {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                blackhole.consume(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing gophermap lines and rendering menus, both through GopherMenuItem objects and through
+ * CompactMenu. Run with -prof gc to see the allocation rate; the compact render into a reused buffer shouldn't
+ * allocate at all.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GopherMapBenchmark {
+    private static final String INFO_LINE = "iWelcome to the stuff! This is an info line!";
+    private static final String BARE_LINE = "This is a random line of text.";
+    private static final String ITEM_LINE = "0The Wasteland\twasteland.txt\tlocalhost\t70";
+
+    private GopherMenuItem menuItem;
+
+    @Setup
+    public void setup() {
+        menuItem = GopherMenuFactory.processGopherMapLine(ITEM_LINE);
+    }
+
+    /**
+     * A menu of a given number of items, a third of them informational.
+     */
+    @State(Scope.Benchmark)
+    public static class MenuState {
+        @Param({"10", "100", "1000"})
+        public int items;
+
+        private GopherMenu menu;
+        private byte[] gopherMap;
+        private CompactMenu compactMenu;
+        private ByteBuffer out;
+
+        @Setup
+        public void setup() {
+            List<GopherMenuItem> menuItems = new ArrayList<>();
+            StringBuilder map = new StringBuilder();
+            for (int i = 0; i < items; i++) {
+                String line = i % 3 == 0 ? INFO_LINE : ITEM_LINE;
+                menuItems.add(GopherMenuFactory.processGopherMapLine(line));
+                map.append(line).append("\r\n");
+            }
+            menu = new GopherMenu(menuItems);
+            gopherMap = map.toString().getBytes(StandardCharsets.UTF_8);
+            compactMenu = CompactMenu.parse(gopherMap);
+            out = ByteBuffer.allocate(compactMenu.renderedLength());
+        }
+    }
+
+    @Benchmark
+    public GopherMenuItem processInfoLine() {
+        return GopherMenuFactory.processGopherMapLine(INFO_LINE);
+    }
+
+    @Benchmark
+    public GopherMenuItem processBareLine() {
+        return GopherMenuFactory.processGopherMapLine(BARE_LINE);
+    }
+
+    @Benchmark
+    public GopherMenuItem processItemLine() {
+        return GopherMenuFactory.processGopherMapLine(ITEM_LINE);
+    }
+
+    @Benchmark
+    public String menuItemToString() {
+        return menuItem.toString();
+    }
+
+    @Benchmark
+    public void menuStream(MenuState state, Blackhole blackhole) throws IOException {
+        try (InputStream in = state.menu.stream()) {
+            blackhole.consume(in.readAllBytes());
+        }
+    }
+
+    @Benchmark
+    public CompactMenu compactParse(MenuState state) {
+        return CompactMenu.parse(state.gopherMap);
+    }
+
+    @Benchmark
+    public ByteBuffer compactRender(MenuState state) {
+        state.out.clear();
+        state.compactMenu.render(state.out);
+        return state.out;
+    }
+
+    @Benchmark
+    public byte[] compactToBytes(MenuState state) {
+        return state.compactMenu.toBytes();
+    }
+}
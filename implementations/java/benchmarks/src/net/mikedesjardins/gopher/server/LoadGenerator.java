@@ -0,0 +1,390 @@
+package net.mikedesjardins.gopher.server;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An end-to-end load generator. Starts a GopherServer in this JVM on a loopback port, then hammers it with a mix of
+ * menu, text and binary requests and reports throughput, latency percentiles, errors, and what the server's threads
+ * and heap got up to. Everything happens on this one box, so it works fine offline.
+ *
+ * There are two ways to drive load. In a closed loop, --concurrency clients each send a request, wait for the whole
+ * response, and go again. In an open loop, requests are started at a fixed --rate no matter how the server is
+ * keeping up, and latency is measured from when each request was supposed to start, so a server that falls behind
+ * can't hide it (no coordinated omission).
+ *
+ * Options are --name=value, like the server's. Anything we don't recognize is handed to the server, so e.g.
+ * --engine=nio works.
+ */
+public class LoadGenerator {
+    private static final Logger SERVER_LOGGER = Logger.getLogger("net.mikedesjardins.gopher.server");
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private String mode = "closed";
+    private int concurrency = 64;
+    private int rate = 1000;
+    private int duration = 30;
+    private int warmup = 5;
+    private int port = 7071;
+    private String root = "../../../gopher_root";
+    private int synthetic = 0;
+    private final Map<Kind, Integer> mix = new EnumMap<>(Kind.class);
+    private final List<String> serverArgs = new ArrayList<>();
+
+    private final Map<Kind, List<String>> selectors = new EnumMap<>(Kind.class);
+    private final Queue<Recording> recordings = new ConcurrentLinkedQueue<>();
+    private ThreadLocal<Recording> recording;
+    private InetSocketAddress address;
+
+    /**
+     * The sorts of thing we ask for.
+     */
+    enum Kind { MENU, TEXT, BINARY }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator loadGenerator = new LoadGenerator();
+        loadGenerator.parse(args);
+        loadGenerator.run();
+    }
+
+    private void parse(String[] args) {
+        mix.put(Kind.MENU, 20);
+        mix.put(Kind.TEXT, 50);
+        mix.put(Kind.BINARY, 30);
+        for (String arg : args) {
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+            if (arg.startsWith("--mode=")) {
+                mode = value;
+            } else if (arg.startsWith("--concurrency=")) {
+                concurrency = Integer.parseInt(value);
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(value);
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--root=")) {
+                root = value;
+            } else if (arg.startsWith("--synthetic=")) {
+                synthetic = Integer.parseInt(value);
+            } else if (arg.startsWith("--mix=")) {
+                // e.g. menu:20,text:50,binary:30
+                mix.clear();
+                for (String part : value.split(",")) {
+                    String[] kindAndWeight = part.split(":");
+                    mix.put(Kind.valueOf(kindAndWeight[0].toUpperCase()), Integer.parseInt(kindAndWeight[1]));
+                }
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        if (synthetic > 0) {
+            root = SyntheticTree.create(synthetic).toString();
+            System.out.println("Created a synthetic root in " + root);
+        }
+        findSelectors();
+        startServer();
+
+        System.out.println("Warming up for " + warmup + "s...");
+        drive(warmup);
+        recordings.clear();
+
+        System.out.println("Running the " + mode + " loop for " + duration + "s...");
+        ServerSampler sampler = new ServerSampler();
+        sampler.start();
+        long start = System.nanoTime();
+        drive(duration);
+        long elapsed = System.nanoTime() - start;
+        sampler.stop();
+
+        report(elapsed, sampler);
+        System.exit(0);
+    }
+
+    /**
+     * Works out what we can ask for by walking the root, sorting things into menus, text and binaries.
+     */
+    private void findSelectors() throws IOException {
+        for (Kind kind : Kind.values()) {
+            selectors.put(kind, new ArrayList<>());
+        }
+        Path rootPath = Paths.get(root);
+        try (Stream<Path> paths = Files.walk(rootPath)) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                String selector = rootPath.relativize(path).toString();
+                if (Files.isDirectory(path)) {
+                    selectors.get(Kind.MENU).add(selector);
+                } else if (!path.getFileName().toString().equals("gophermap")) {
+                    Kind kind = FileType.getFromFileName(path.getFileName().toString()) == FileType.TEXT ? Kind.TEXT : Kind.BINARY;
+                    selectors.get(kind).add(selector);
+                }
+            }
+        }
+        for (Kind kind : Kind.values()) {
+            if (selectors.get(kind).isEmpty()) {
+                mix.remove(kind);
+            }
+        }
+        System.out.println("Found " + selectors.get(Kind.MENU).size() + " menus, " + selectors.get(Kind.TEXT).size()
+                + " text files and " + selectors.get(Kind.BINARY).size() + " binaries under " + rootPath.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Starts the server on its own thread and waits until it's listening.
+     */
+    private void startServer() throws InterruptedException {
+        SERVER_LOGGER.setLevel(Level.WARNING);
+        List<String> args = new ArrayList<>(serverArgs);
+        args.add("--port=" + port);
+        args.add("--host=localhost");
+        args.add("--root=" + root);
+        Thread server = new Thread(() -> Main.main(args.toArray(new String[0])), "gopher-server");
+        server.setDaemon(true);
+        server.start();
+
+        address = new InetSocketAddress("localhost", port);
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 1000);
+                socket.getOutputStream().write("\r\n".getBytes(StandardCharsets.UTF_8));
+                socket.getInputStream().readAllBytes();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private void drive(int seconds) throws InterruptedException {
+        recording = ThreadLocal.withInitial(() -> {
+            Recording newRecording = new Recording();
+            recordings.add(newRecording);
+            return newRecording;
+        });
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        if (mode.equals("open")) {
+            openLoop(end);
+        } else {
+            closedLoop(end);
+        }
+    }
+
+    /**
+     * Each client sends a request as soon as its last one finished.
+     */
+    private void closedLoop(long end) throws InterruptedException {
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread client = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    request(System.nanoTime());
+                }
+            }, "load-client-" + i);
+            client.start();
+            clients.add(client);
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+    }
+
+    /**
+     * Requests are started on a fixed schedule, whether or not the server is keeping up. If all the clients are
+     * busy, requests wait their turn, and that wait counts against their latency.
+     */
+    private void openLoop(long end) throws InterruptedException {
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        for (long intended = System.nanoTime(); intended < end; intended += interval) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long start = intended;
+            clients.execute(() -> request(start));
+        }
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Sends one request and reads the whole response.
+     * @param start when the request was (supposed to be) started, in System.nanoTime() terms.
+     */
+    private void request(long start) {
+        Kind kind = pickKind();
+        List<String> candidates = selectors.get(kind);
+        String selector = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+        Recording current = recording.get();
+        try (Socket socket = new Socket()) {
+            socket.connect(address, 5000);
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write((selector + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            long bytes = 0;
+            int count;
+            while ((count = in.read(current.buffer)) >= 0) {
+                bytes += count;
+            }
+            current.bytes += bytes;
+            long micros = Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), HIGHEST_TRACKABLE_MICROS);
+            current.histograms.get(kind).recordValue(micros);
+        } catch (IOException e) {
+            current.errors++;
+        }
+    }
+
+    private Kind pickKind() {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int pick = ThreadLocalRandom.current().nextInt(total);
+        for (Map.Entry<Kind, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty mix");
+    }
+
+    private void report(long elapsedNanos, ServerSampler sampler) {
+        Histogram all = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        Map<Kind, Histogram> byKind = new EnumMap<>(Kind.class);
+        long errors = 0;
+        long bytes = 0;
+        for (Recording current : recordings) {
+            errors += current.errors;
+            bytes += current.bytes;
+            for (Map.Entry<Kind, Histogram> entry : current.histograms.entrySet()) {
+                if (entry.getValue().getTotalCount() == 0) {
+                    continue;
+                }
+                all.add(entry.getValue());
+                byKind.computeIfAbsent(entry.getKey(), k -> new Histogram(HIGHEST_TRACKABLE_MICROS, 3)).add(entry.getValue());
+            }
+        }
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println();
+        System.out.printf("Mode:          %s loop, %d clients%s%n", mode, concurrency, mode.equals("open") ? ", " + rate + " req/s target" : "");
+        System.out.printf("Requests:      %d ok, %d errors%n", all.getTotalCount(), errors);
+        System.out.printf("Throughput:    %.1f req/s, %.1f MB/s%n", all.getTotalCount() / seconds, bytes / seconds / 1024 / 1024);
+        System.out.println();
+        System.out.println("Latency (ms)       p50       p90       p99      p999       max");
+        printLatency("all", all);
+        for (Map.Entry<Kind, Histogram> entry : byKind.entrySet()) {
+            printLatency(entry.getKey().name().toLowerCase(), entry.getValue());
+        }
+        System.out.println();
+        System.out.printf("Server threads: %d peak (%d at the end)%n", sampler.peakThreads, sampler.threads.getThreadCount());
+        System.out.printf("Heap used:      %.1f MB peak%n", sampler.peakHeap / 1024.0 / 1024.0);
+        System.out.printf("GC:             %d collections, %d ms%n", sampler.gcCount(), sampler.gcTime());
+    }
+
+    private void printLatency(String name, Histogram histogram) {
+        System.out.printf("%-10s %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * What one client thread has seen. Each thread has its own, so recording doesn't need any locking.
+     */
+    private static class Recording {
+        private final Map<Kind, Histogram> histograms = new EnumMap<>(Kind.class);
+        private final byte[] buffer = new byte[GopherServerThread.BUFFER_SIZE];
+        private long errors;
+        private long bytes;
+
+        Recording() {
+            for (Kind kind : Kind.values()) {
+                histograms.put(kind, new Histogram(HIGHEST_TRACKABLE_MICROS, 3));
+            }
+        }
+    }
+
+    /**
+     * Keeps an eye on the server's threads and heap while the run is going. The server is in our JVM, so these
+     * include our client threads too; run with --mode=open and a small --concurrency if you want to keep those out
+     * of the picture.
+     */
+    private static class ServerSampler {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final long gcCountBefore = totalGcCount();
+        private final long gcTimeBefore = totalGcTime();
+        private volatile boolean running = true;
+        private Thread thread;
+        private int peakThreads;
+        private long peakHeap;
+        private long gcCountAfter;
+        private long gcTimeAfter;
+
+        void start() {
+            thread = new Thread(() -> {
+                while (running) {
+                    peakThreads = Math.max(peakThreads, threads.getThreadCount());
+                    peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+            }, "load-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            gcCountAfter = totalGcCount();
+            gcTimeAfter = totalGcTime();
+        }
+
+        long gcCount() { return gcCountAfter - gcCountBefore; }
+        long gcTime() { return gcTimeAfter - gcTimeBefore; }
+
+        private static long totalGcCount() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        }
+
+        private static long totalGcTime() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+        }
+    }
+}
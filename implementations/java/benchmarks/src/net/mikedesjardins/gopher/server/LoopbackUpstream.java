@@ -0,0 +1,121 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stand-in for a slow upstream gopher server, listening on loopback, for trying out the mirror without anybody
+ * else's server. It answers the empty selector with a menu of a few text files and a submenu (all pointing back at
+ * itself as localhost), "/sub" with a menu of its own, and anything else with a few lines of text naming the
+ * selector. Every answer waits --delay milliseconds first, like an overloaded origin box, and it counts how many
+ * requests it gets, which is how you can tell the mirror coalesced them.
+ *
+ * Run it on its own with e.g. --port=7072 --delay=200, and point the server at it with --upstream=localhost:7072.
+ */
+public class LoopbackUpstream implements Closeable {
+    private final ServerSocket socket;
+    private final long delayMillis;
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "loopback-upstream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * Starts listening.
+     * @param port the port, or 0 for any free one.
+     * @param delayMillis how long to wait before each answer.
+     * @throws IOException if we can't listen.
+     */
+    public LoopbackUpstream(int port, long delayMillis) throws IOException {
+        this.socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        this.delayMillis = delayMillis;
+        Thread acceptor = new Thread(this::accept, "loopback-upstream-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() { return socket.getLocalPort(); }
+    public long getRequests() { return requests.sum(); }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        workers.shutdownNow();
+    }
+
+    private void accept() {
+        while (!socket.isClosed()) {
+            try {
+                Socket client = socket.accept();
+                workers.execute(() -> answer(client));
+            } catch (SocketException e) {
+                return;
+            } catch (IOException e) {
+                // Try the next one.
+            }
+        }
+    }
+
+    private void answer(Socket client) {
+        try (client) {
+            String selector = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            requests.increment();
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            OutputStream out = client.getOutputStream();
+            out.write(response(selector == null ? "" : selector).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // The client gave up on us.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String response(String selector) {
+        String here = "\tlocalhost\t" + getPort() + "\r\n";
+        if (selector.isEmpty() || selector.equals("/")) {
+            StringBuilder menu = new StringBuilder("iThe loopback upstream\t\tlocalhost\t" + getPort() + "\r\n");
+            for (int i = 0; i < 5; i++) {
+                menu.append("0File ").append(i).append("\t/file").append(i).append(".txt").append(here);
+            }
+            menu.append("1Submenu\t/sub").append(here);
+            menu.append("1Somewhere else\t/\tgopher.example.com\t70\r\n");
+            return menu.append(".\r\n").toString();
+        }
+        if (selector.equals("/sub")) {
+            return "0Back to a file\t/file0.txt" + here + ".\r\n";
+        }
+        return "This is " + selector + " from the loopback upstream.\r\nThat's all there is.\r\n.\r\n";
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 7072;
+        long delay = 200;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.split("=")[1]);
+            } else if (arg.startsWith("--delay=")) {
+                delay = Long.parseLong(arg.split("=")[1]);
+            }
+        }
+        try (LoopbackUpstream upstream = new LoopbackUpstream(port, delay)) {
+            System.out.println("Loopback upstream listening on localhost:" + upstream.getPort() + ", answering after " + delay + "ms");
+            Thread.currentThread().join();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a menu takes while a bunch of slow clients are downloading a big file over and over, with and
+ * without the GopherScheduler. Without it, every download ties up a pool thread for as long as its client takes to
+ * read it, and menus wait for a thread. With it, the downloads are handed off and menus go to the front of the line.
+ * The server runs in the benchmark's own JVM, on daemon threads, and each parameter gets a fork of its own.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MenuLatencyBenchmark {
+    private static final int DOWNLOADERS = 8;
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+
+    @Param({"false", "true"})
+    public boolean schedule;
+
+    private Path root;
+    private InetSocketAddress address;
+    private final List<Thread> downloaders = new ArrayList<>();
+    private volatile boolean running = true;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        root = Files.createTempDirectory("gopher-menu-latency");
+        byte[] big = new byte[FILE_SIZE];
+        new Random(42).nextBytes(big);
+        Files.write(root.resolve("big.bin"), big);
+        for (int i = 0; i < 20; i++) {
+            Files.write(root.resolve("file" + i + ".txt"), "Hello!\n".getBytes(StandardCharsets.UTF_8));
+        }
+        int port = BenchmarkServer.freePort();
+        Config.setEngine("pool");
+        Config.setThreads(DOWNLOADERS);
+        Config.setSchedule(schedule);
+        address = BenchmarkServer.start(root, port);
+
+        for (int i = 0; i < DOWNLOADERS; i++) {
+            Thread downloader = new Thread(this::download, "downloader-" + i);
+            downloader.setDaemon(true);
+            downloader.start();
+            downloaders.add(downloader);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        running = false;
+        for (Thread downloader : downloaders) {
+            downloader.join();
+        }
+        BenchmarkServer.delete(root);
+    }
+
+    /**
+     * A slow client: fetches the big file again and again, reading 64 KB a millisecond.
+     */
+    private void download() {
+        ByteBuffer response = ByteBuffer.allocate(64 * 1024);
+        while (running) {
+            try (SocketChannel channel = SocketChannel.open(address)) {
+                channel.write(ByteBuffer.wrap("big.bin\r\n".getBytes(StandardCharsets.US_ASCII)));
+                response.clear();
+                while (running && channel.read(response) >= 0) {
+                    response.clear();
+                    Thread.sleep(1);
+                }
+            } catch (IOException e) {
+                // The server dropped us, so just go again.
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Benchmark
+    public int menu() throws IOException {
+        return BenchmarkServer.fetch(address, "", ByteBuffer.allocate(4096));
+    }
+}
@@ -0,0 +1,73 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures fetching a menu through the mirror from a LoopbackUpstream that takes 50ms to answer anything, next to
+ * asking the upstream directly. With ttl=3600 the mirror always has a fresh copy. With ttl=0 every copy is already
+ * stale, so every request is served the old copy while a refresh goes on in the background, and the upstream should
+ * only see one refresh at a time, however many requests there are. The server runs in the benchmark's own JVM, and
+ * each parameter gets a fork of its own.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MirrorBenchmark {
+    private static final long UPSTREAM_DELAY_MILLIS = 50;
+
+    @Param({"3600", "0"})
+    public long ttl;
+
+    private Path root;
+    private LoopbackUpstream upstream;
+    private InetSocketAddress mirror;
+    private InetSocketAddress direct;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        root = Files.createTempDirectory("gopher-mirror");
+        upstream = new LoopbackUpstream(0, UPSTREAM_DELAY_MILLIS);
+        int port = BenchmarkServer.freePort();
+        Config.setEngine("pool");
+        Config.setUpstream("localhost:" + upstream.getPort());
+        Config.setMirrorTtl(ttl);
+        mirror = BenchmarkServer.start(root, port);
+        direct = new InetSocketAddress("localhost", upstream.getPort());
+        // Prime the cache.
+        fetch(mirror, "/mirror");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        GopherMirror cache = GopherMirror.getInstance();
+        System.out.println();
+        System.out.println("Upstream saw " + upstream.getRequests() + " requests, the mirror had " + cache.getHits() + " hits and "
+                + cache.getStaleHits() + " stale hits");
+        upstream.close();
+        BenchmarkServer.delete(root);
+    }
+
+    @Benchmark
+    public int mirrored() throws IOException {
+        return fetch(mirror, "/mirror");
+    }
+
+    @Benchmark
+    public int direct() throws IOException {
+        return fetch(direct, "");
+    }
+
+    private static int fetch(InetSocketAddress address, String selector) throws IOException {
+        return BenchmarkServer.fetch(address, selector, ByteBuffer.allocate(4096));
+    }
+}
@@ -0,0 +1,104 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the second request of a browsing session: a client fetches a menu, thinks about it for THINK_MILLIS, and
+ * then asks for the first thing on it, which is what gets timed. The root has DIRECTORIES directories, each with a
+ * gophermap linking LINKS text files, and every invocation goes to the next directory. The content cache is a lot
+ * smaller than the root, so by the time we come back around to a directory its files have long been evicted. With
+ * prefetch=false the timed request has to read and convert its file, and with prefetch=true it should find it
+ * already in the content cache. The server runs in the benchmark's own JVM, and each parameter gets a fork of its
+ * own.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrefetchBenchmark {
+    private static final int DIRECTORIES = 1000;
+    private static final int LINKS = 3;
+    private static final int FILE_SIZE = 16 * 1024;
+    private static final long THINK_MILLIS = 10;
+
+    @Param({"false", "true"})
+    public boolean prefetch;
+
+    private Path root;
+    private InetSocketAddress server;
+    private int next;
+    private String selector;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        root = Files.createTempDirectory("gopher-prefetch");
+        int port = BenchmarkServer.freePort();
+        StringBuilder line = new StringBuilder();
+        while (line.length() < 70) {
+            line.append("All work and no play makes Jack a dull boy. ");
+        }
+        line.append('\n');
+        StringBuilder text = new StringBuilder();
+        while (text.length() < FILE_SIZE) {
+            text.append(line);
+        }
+        byte[] file = text.toString().getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < DIRECTORIES; i++) {
+            Path directory = Files.createDirectory(root.resolve("dir" + i));
+            StringBuilder map = new StringBuilder("iDirectory " + i + "\n");
+            for (int j = 0; j < LINKS; j++) {
+                Files.write(directory.resolve("file" + j + ".txt"), file);
+                map.append("0File ").append(j).append("\tdir").append(i).append("/file").append(j).append(".txt\tlocalhost\t")
+                        .append(port).append('\n');
+            }
+            Files.write(directory.resolve("gophermap"), map.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        Config.setEngine("pool");
+        Config.setContentCacheSize(8L * 1024 * 1024);
+        Config.setPrefetch(prefetch);
+        server = BenchmarkServer.start(root, port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        GopherPrefetcher prefetcher = GopherPrefetcher.getInstance();
+        if (prefetcher != null) {
+            System.out.println();
+            System.out.println("Prefetched " + prefetcher.getPrefetched() + " items, " + prefetcher.getHits() + " hits, "
+                    + prefetcher.getWasted() + " wasted, " + prefetcher.getDropped() + " dropped");
+        }
+        BenchmarkServer.delete(root);
+    }
+
+    /**
+     * The first request of the session, which isn't timed.
+     */
+    @Setup(Level.Invocation)
+    public void browse() throws IOException, InterruptedException {
+        String directory = "dir" + next;
+        next = (next + 1) % DIRECTORIES;
+        fetch(server, directory);
+        selector = directory + "/file0.txt";
+        Thread.sleep(THINK_MILLIS);
+    }
+
+    @Benchmark
+    public int secondRequest() throws IOException {
+        return fetch(server, selector);
+    }
+
+    private static int fetch(InetSocketAddress address, String selector) throws IOException {
+        return BenchmarkServer.fetch(address, selector, ByteBuffer.allocate(FILE_SIZE * 2));
+    }
+}
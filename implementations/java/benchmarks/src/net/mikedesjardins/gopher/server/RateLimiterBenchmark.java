@@ -0,0 +1,60 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures GopherRateLimiter checks from several threads at once: spread over a lot more client addresses than
+ * the table has slots (so slots keep getting reused), and all on one address (so every thread is fighting over the
+ * same bucket). The limits are set high enough that nearly everything's allowed, since the allowed path is the one
+ * that writes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark {
+    private static final int CLIENTS = 4 * GopherRateLimiter.SLOTS;
+
+    private GopherRateLimiter limiter;
+    private InetAddress[] clients;
+    private InetAddress hot;
+
+    @Setup(Level.Trial)
+    public void setup() throws UnknownHostException {
+        limiter = new GopherRateLimiter(1_000_000, 0, 1L << 30);
+        clients = new InetAddress[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            clients[i] = InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+        }
+        hot = clients[0];
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public boolean manyClients(Cursor cursor) {
+        InetAddress client = clients[cursor.next];
+        cursor.next = (cursor.next + 7919) % CLIENTS;
+        return limiter.tryAcquire(client);
+    }
+
+    @Benchmark
+    public boolean oneClient() {
+        return limiter.tryAcquire(hot);
+    }
+
+    @Benchmark
+    public void charge() {
+        limiter.charge(hot, 4096);
+    }
+}
@@ -0,0 +1,83 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks queries against the GopherSearchIndex over a synthetic root of small text files. The words are drawn
+ * from a skewed distribution, so "w0" is in nearly every document and "w19999" in hardly any. Each parameter gets
+ * its own fork, which matters because the index is a singleton.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    private static final int VOCABULARY = 20000;
+    private static final int WORDS_PER_DOCUMENT = 200;
+
+    @Param({"1000", "100000"})
+    public int documents;
+
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        root = Files.createTempDirectory("gopher-search-benchmark");
+        Random random = new Random(7);
+        for (int d = 0; d < documents; d++) {
+            Path directory = root.resolve("dir" + d / 1000);
+            Files.createDirectories(directory);
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < WORDS_PER_DOCUMENT; w++) {
+                // Cubing a uniform number skews it towards the low end of the vocabulary.
+                double skewed = random.nextDouble();
+                text.append('w').append((int) (skewed * skewed * skewed * VOCABULARY)).append(' ');
+            }
+            Files.write(directory.resolve("doc" + d + ".txt"), text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        Config.setRoot(root.toString());
+        GopherSearchIndex index = GopherSearchIndex.getInstance();
+        while (!index.isReady()) {
+            Thread.sleep(100);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<GopherSearchIndex.Result> rareTerm() {
+        return GopherSearchIndex.getInstance().search("w19000", GopherSearchOutput.MAX_RESULTS);
+    }
+
+    @Benchmark
+    public List<GopherSearchIndex.Result> commonTerm() {
+        return GopherSearchIndex.getInstance().search("w0", GopherSearchOutput.MAX_RESULTS);
+    }
+
+    @Benchmark
+    public List<GopherSearchIndex.Result> threeTerms() {
+        return GopherSearchIndex.getInstance().search("w5 w500 w5000", GopherSearchOutput.MAX_RESULTS);
+    }
+
+    @Benchmark
+    public byte[] renderResults() {
+        return new GopherSearchOutput("_search\tw5 w500 w5000").buffer().array();
+    }
+}
@@ -0,0 +1,105 @@
+package net.mikedesjardins.gopher.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long it takes from launching the server to getting the first byte of its root menu back. Each
+ * invocation starts a fresh JVM running Main (from the same classpath as the benchmarks), on a free port and a small
+ * temporary root, hammers on it until the menu starts coming back, then kills it.
+ *
+ * With host=localhost the host name is given on the command line, the way you'd want it in production. With
+ * host=auto it isn't, so the server looks it up, which is where a slow DNS server used to cost us the whole startup.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+    private static final long GIVE_UP_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    @Param({"localhost", "auto"})
+    public String host;
+
+    private Path root;
+    private Process server;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("gopher-startup");
+        for (int i = 0; i < 20; i++) {
+            Files.write(root.resolve("file" + i + ".txt"), "Hello!\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void stop() throws InterruptedException {
+        if (server != null) {
+            server.destroyForcibly().waitFor();
+            server = null;
+        }
+    }
+
+    @Benchmark
+    public int launchToFirstByte() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.add("--port=" + port);
+        command.add("--root=" + root);
+        if (!"auto".equals(host)) {
+            command.add("--host=" + host);
+        }
+        long started = System.nanoTime();
+        server = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+        while (System.nanoTime() - started < GIVE_UP_NANOS) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address);
+                socket.getOutputStream().write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                InputStream in = socket.getInputStream();
+                int first = in.read();
+                if (first >= 0) {
+                    return first;
+                }
+            } catch (IOException e) {
+                // Not listening yet.
+            }
+            Thread.sleep(5);
+        }
+        throw new IOException("The server didn't answer within " + TimeUnit.NANOSECONDS.toSeconds(GIVE_UP_NANOS) + " seconds");
+    }
+}
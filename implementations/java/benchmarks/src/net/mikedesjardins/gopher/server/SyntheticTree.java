@@ -0,0 +1,54 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Builds a throwaway gopher root to point the LoadGenerator at: a handful of directories, each with a gophermap,
+ * text files of a few sizes, and binaries of a few sizes.
+ */
+public class SyntheticTree {
+    private static final int[] SIZES = {512, 4 * 1024, 64 * 1024, 1024 * 1024};
+
+    /**
+     * Creates the tree in a new temp directory.
+     * @param files the number of files of each kind (text and binary) to create.
+     * @return the root of the new tree.
+     * @throws IOException if we can't write it.
+     */
+    public static Path create(int files) throws IOException {
+        Path root = Files.createTempDirectory("gopher-synthetic");
+        Random random = new Random(70);
+        int directories = Math.max(1, files / 100);
+        StringBuilder rootMap = new StringBuilder("iA synthetic gopher root\n");
+        for (int d = 0; d < directories; d++) {
+            Path directory = Files.createDirectory(root.resolve("dir" + d));
+            rootMap.append("1Directory ").append(d).append("\tdir").append(d).append("\tlocalhost\t70\n");
+            StringBuilder map = new StringBuilder("iDirectory " + d + "\n");
+            for (int f = d; f < files; f += directories) {
+                int size = SIZES[f % SIZES.length];
+                Files.write(directory.resolve("text" + f + ".txt"), text(size));
+                byte[] binary = new byte[size];
+                random.nextBytes(binary);
+                Files.write(directory.resolve("binary" + f + ".zip"), binary);
+                map.append("0Text ").append(f).append("\tdir").append(d).append("/text").append(f).append(".txt\tlocalhost\t70\n");
+                map.append("5Binary ").append(f).append("\tdir").append(d).append("/binary").append(f).append(".zip\tlocalhost\t70\n");
+            }
+            Files.write(directory.resolve("gophermap"), map.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(root.resolve("gophermap"), rootMap.toString().getBytes(StandardCharsets.UTF_8));
+        return root;
+    }
+
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append("APRIL is the cruellest month, breeding\n");
+        }
+        text.setLength(size);
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
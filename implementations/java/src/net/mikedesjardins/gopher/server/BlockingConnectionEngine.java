@@ -0,0 +1,126 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The classic blocking engine: one thread sits in accept() and each connection is handed to an Executor, which runs
+ * a GopherServerThread for it. What sort of thread that ends up on depends on the Executor. In multi-acceptor mode
+ * there's one accept thread per listening socket, and each gets an Executor of its own, so a connection is handled
+ * by the same slice of workers as the acceptor the kernel gave it to.
+ */
+public class BlockingConnectionEngine implements ConnectionEngine {
+    private static final Logger LOGGER = Logger.getLogger(BlockingConnectionEngine.class.getName());
+    private final IntFunction<Executor> executors;
+
+    /**
+     * @param executors makes the Executor for an acceptor, given how many acceptors there are in total.
+     */
+    public BlockingConnectionEngine(IntFunction<Executor> executors) {
+        this.executors = executors;
+    }
+
+    /**
+     * The original behavior: a brand new platform thread for every connection.
+     * @return a new BlockingConnectionEngine.
+     */
+    public static BlockingConnectionEngine threadPerConnection() {
+        return new BlockingConnectionEngine(acceptors -> runnable -> new Thread(runnable).start());
+    }
+
+    /**
+     * A fixed number of platform threads. Connections queue up when all of them are busy. With several acceptors the
+     * threads are split evenly between them.
+     * @param threads number of worker threads.
+     * @return a new BlockingConnectionEngine.
+     */
+    public static BlockingConnectionEngine pool(int threads) {
+        WorkerThreadFactory threadFactory = new WorkerThreadFactory();
+        return new BlockingConnectionEngine(acceptors ->
+                Executors.newFixedThreadPool(Math.max(1, threads / acceptors), threadFactory));
+    }
+
+    /**
+     * One virtual thread per connection. We're built for JDK 11, so we have to go looking for the virtual thread
+     * executor reflectively. If the JDK we're running on doesn't have one, we fall back to a pool.
+     * @param threads number of worker threads to use if we have to fall back to a pool.
+     * @return a new BlockingConnectionEngine.
+     */
+    public static BlockingConnectionEngine virtual(int threads) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            return new BlockingConnectionEngine(acceptors -> executor);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.WARNING, "Virtual threads aren't available on this JDK, using a pool of " + threads + " threads instead.");
+            return pool(threads);
+        }
+    }
+
+    /**
+     * We accept through a (blocking) ServerSocketChannel rather than a plain ServerSocket so that every socket has
+     * a SocketChannel behind it, which is what lets GopherServerThread use transferTo for files. Connections past
+     * the in-flight limit are turned away right here on the accept thread, so they never tie up a worker.
+     */
+    @Override
+    public void serve(int port) throws IOException {
+        List<ServerSocketChannel> serverChannels = GopherListener.open(port, GopherListener.count());
+        for (int i = 1; i < serverChannels.size(); i++) {
+            ServerSocketChannel serverChannel = serverChannels.get(i);
+            Executor executor = executors.apply(serverChannels.size());
+            new Thread(() -> {
+                try {
+                    accept(serverChannel, executor);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Acceptor died.", e);
+                }
+            }, "gopher-acceptor-" + i).start();
+        }
+        accept(serverChannels.get(0), executors.apply(serverChannels.size()));
+    }
+
+    /**
+     * The accept loop for one listening socket.
+     */
+    private void accept(ServerSocketChannel serverChannel, Executor executor) throws IOException {
+        GopherAdmission admission = GopherAdmission.getInstance();
+        try (serverChannel) {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                if (!admission.withinRateLimit(channel)) {
+                    continue;
+                }
+                if (!admission.admit()) {
+                    admission.turnAway(channel);
+                    continue;
+                }
+                GopherMetrics.getInstance().connectionAccepted();
+                executor.execute(new GopherServerThread(channel.socket()));
+            }
+        }
+    }
+
+    /**
+     * Gives pool threads a recognizable name, which is handy in a thread dump, and lets them keep buffers (see
+     * GopherBufferPool), since they'll be around for a while.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(GopherBufferPool.keepingBuffers(runnable), "gopher-worker-" + count.incrementAndGet());
+        }
+    }
+}
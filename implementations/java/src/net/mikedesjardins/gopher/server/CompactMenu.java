@@ -0,0 +1,409 @@
+package net.mikedesjardins.gopher.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A menu stored column-wise instead of as a list of GopherMenuItem objects. All the text lives in one byte array
+ * (for a gophermap, that's just the gophermap file itself) and each item is a handful of offsets and lengths into
+ * it, so parsing a gophermap doesn't create a String per field, and rendering is a series of byte copies straight
+ * into a ByteBuffer. Items that point at this server (info lines and directory listings) use the host and port
+ * bytes Config encoded up front.
+ *
+ * The output is the same as building a GopherMenu with GopherMenuFactory and rendering it with GopherMenu.toBytes().
+ */
+public class CompactMenu {
+    private static final Logger LOGGER = Logger.getLogger(CompactMenu.class.getName());
+    private static final byte[] LINE_END = {'\r', '\n'};
+    private static final byte[] MENU_END = {'\r', '\n', '.', '\r', '\n'};
+    private static final FileType[] TYPES_BY_CHAR = new FileType[128];
+
+    // The columns. For item i, the int columns are at [i * COLUMNS + NAME_OFFSET] etc. A host offset of LOCAL means
+    // "this server", in which case the port column is ignored too.
+    private static final int COLUMNS = 7;
+    private static final int NAME_OFFSET = 0;
+    private static final int NAME_LENGTH = 1;
+    private static final int SELECTOR_OFFSET = 2;
+    private static final int SELECTOR_LENGTH = 3;
+    private static final int HOST_OFFSET = 4;
+    private static final int HOST_LENGTH = 5;
+    private static final int PORT = 6;
+    private static final int LOCAL = -1;
+    private static final long NOT_A_PORT = Long.MIN_VALUE;
+
+    static {
+        for (FileType type : FileType.values()) {
+            TYPES_BY_CHAR[type.gopherType] = type;
+        }
+    }
+
+    private byte[] data;
+    private int dataLength;
+    private byte[] types;
+    private int[] columns;
+    private int size;
+
+    private CompactMenu(byte[] data, int dataLength, int capacity) {
+        this.data = data;
+        this.dataLength = dataLength;
+        this.types = new byte[capacity];
+        this.columns = new int[capacity * COLUMNS];
+    }
+
+    /**
+     * Creates an empty menu to be filled in with add(), addLocal() and addInfo().
+     */
+    public CompactMenu() {
+        this(new byte[256], 0, 16);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Parses a gophermap. Lines starting with # are comments, lines without tabs are info lines, and everything
+     * else should be type and name, selector, host and port separated by tabs. Lines we can't make sense of are
+     * logged and skipped.
+     * @param gopherMap the raw bytes of a gophermap (UTF-8). The menu keeps hold of the array, so don't change it.
+     * @return a new CompactMenu.
+     */
+    public static CompactMenu parse(byte[] gopherMap) {
+        // Every line is at most one item, so counting line breaks tells us how big the columns need to be.
+        int lines = 1;
+        for (byte b : gopherMap) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        CompactMenu menu = new CompactMenu(gopherMap, gopherMap.length, lines);
+        int position = 0;
+        while (position < gopherMap.length) {
+            int end = position;
+            while (end < gopherMap.length && gopherMap[end] != '\n' && gopherMap[end] != '\r') {
+                end++;
+            }
+            menu.parseLine(position, end);
+            // Line endings are \n, \r or \r\n, same as BufferedReader.readLine().
+            if (end < gopherMap.length && gopherMap[end] == '\r' && end + 1 < gopherMap.length && gopherMap[end + 1] == '\n') {
+                end++;
+            }
+            position = end + 1;
+        }
+        return menu;
+    }
+
+    private void parseLine(int start, int end) {
+        if (start < end && data[start] == '#') {
+            return;
+        }
+        int nameEnd = indexOf((byte) '\t', start, end);
+        if (nameEnd < 0) {
+            // No tabs at all, so it's informational text.
+            addColumns(FileType.INFO, start, end - start, 0, 0, LOCAL, 0, 0);
+            return;
+        }
+
+        // Empty fields at the end of a line don't count when deciding what sort of line this is, so "0name\t\t"
+        // has one field, not three.
+        int fields = fieldCount(start, end);
+        if (fields == 1) {
+            // Only the first field has anything in it. Treat the whole line, minus its first character, as info.
+            int skip = utf8Length(data[start]);
+            addColumns(FileType.INFO, start + skip, end - start - skip, 0, 0, LOCAL, 0, 0);
+            return;
+        }
+        if (nameEnd == start || fields < 4) {
+            warn(start, end);
+            return;
+        }
+
+        int selectorEnd = indexOf((byte) '\t', nameEnd + 1, end);
+        int hostEnd = indexOf((byte) '\t', selectorEnd + 1, end);
+        int portEnd = indexOf((byte) '\t', hostEnd + 1, end);
+        if (portEnd < 0) {
+            portEnd = end;
+        }
+        int typeChar = data[start];
+        FileType type = typeChar >= 0 && typeChar < TYPES_BY_CHAR.length ? TYPES_BY_CHAR[typeChar] : null;
+        long port = parsePort(hostEnd + 1, portEnd);
+        if (type == null || port == NOT_A_PORT) {
+            warn(start, end);
+            return;
+        }
+        addColumns(type,
+                start + 1, nameEnd - start - 1,
+                nameEnd + 1, selectorEnd - nameEnd - 1,
+                selectorEnd + 1, hostEnd - selectorEnd - 1,
+                (int) port);
+    }
+
+    /**
+     * @return how many tab separated fields there are in the line, not counting empty ones at the end.
+     */
+    private int fieldCount(int start, int end) {
+        int fields = 0;
+        int field = 0;
+        int fieldStart = start;
+        while (true) {
+            field++;
+            int tab = indexOf((byte) '\t', fieldStart, end);
+            int fieldEnd = tab < 0 ? end : tab;
+            if (fieldEnd > fieldStart) {
+                fields = field;
+            }
+            if (tab < 0) {
+                return fields;
+            }
+            fieldStart = tab + 1;
+        }
+    }
+
+    /**
+     * Parses a port number the way Integer.parseInt would, without making a String first.
+     * @return the port, or NOT_A_PORT if it isn't a number.
+     */
+    private long parsePort(int start, int end) {
+        if (start >= end) {
+            return NOT_A_PORT;
+        }
+        boolean negative = data[start] == '-';
+        int position = (data[start] == '-' || data[start] == '+') ? start + 1 : start;
+        if (position >= end) {
+            return NOT_A_PORT;
+        }
+        long value = 0;
+        for (; position < end; position++) {
+            int digit = data[position] - '0';
+            if (digit < 0 || digit > 9) {
+                return NOT_A_PORT;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return NOT_A_PORT;
+            }
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? NOT_A_PORT : value;
+    }
+
+    private void warn(int start, int end) {
+        LOGGER.log(Level.WARNING, "Invalid line in Gophermap: " + new String(data, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds an item pointing at some host and port.
+     */
+    public void add(FileType type, String name, String selector, String host, int port) {
+        int nameOffset = append(name);
+        int selectorOffset = append(selector);
+        int hostOffset = append(host);
+        addColumns(type, nameOffset, selectorOffset - nameOffset,
+                selectorOffset, hostOffset - selectorOffset,
+                hostOffset, dataLength - hostOffset, port);
+    }
+
+    /**
+     * Adds an item pointing at this server.
+     */
+    public void addLocal(FileType type, String name, String selector) {
+        int nameOffset = append(name);
+        int selectorOffset = append(selector);
+        addColumns(type, nameOffset, selectorOffset - nameOffset, selectorOffset, dataLength - selectorOffset, LOCAL, 0, 0);
+    }
+
+    /**
+     * Adds an informational line.
+     */
+    public void addInfo(String text) {
+        int offset = append(text);
+        addColumns(FileType.INFO, offset, dataLength - offset, 0, 0, LOCAL, 0, 0);
+    }
+
+    /**
+     * Empties the menu so it can be filled up again, keeping the arrays it's already grown. Only for menus built up
+     * with add() and friends, since a parsed menu's text is the gophermap it was parsed from.
+     */
+    public void clear() {
+        size = 0;
+        dataLength = 0;
+    }
+
+    /**
+     * @return exactly how many bytes render() will write.
+     */
+    public int renderedLength() {
+        return itemsLength() + MENU_END.length;
+    }
+
+    /**
+     * @return exactly how many bytes renderItems() will write.
+     */
+    int itemsLength() {
+        Config.Snapshot config = Config.current();
+        int hostLength = config.getHostBytes().length;
+        int portLength = config.getPortBytes().length;
+        int length = Math.max(0, size - 1) * LINE_END.length;
+        for (int i = 0; i < size; i++) {
+            int column = i * COLUMNS;
+            length += 1 + columns[column + NAME_LENGTH] + 1 + columns[column + SELECTOR_LENGTH] + 1;
+            if (columns[column + HOST_OFFSET] == LOCAL) {
+                length += hostLength + 1 + portLength;
+            } else {
+                length += columns[column + HOST_LENGTH] + 1 + digits(columns[column + PORT]);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Renders the menu into the supplied buffer, which needs at least renderedLength() bytes free.
+     * @param out where the menu goes.
+     */
+    public void render(ByteBuffer out) {
+        renderItems(out);
+        out.put(MENU_END);
+    }
+
+    /**
+     * Renders just the items, separated by line ends, without the end of menu marker. Streaming menus use this to
+     * render a batch at a time.
+     * @param out where the items go. It needs at least itemsLength() bytes free.
+     */
+    void renderItems(ByteBuffer out) {
+        Config.Snapshot config = Config.current();
+        byte[] hostBytes = config.getHostBytes();
+        byte[] portBytes = config.getPortBytes();
+        for (int i = 0; i < size; i++) {
+            int column = i * COLUMNS;
+            if (i > 0) {
+                out.put(LINE_END);
+            }
+            out.put(types[i]);
+            out.put(data, columns[column + NAME_OFFSET], columns[column + NAME_LENGTH]);
+            out.put((byte) '\t');
+            out.put(data, columns[column + SELECTOR_OFFSET], columns[column + SELECTOR_LENGTH]);
+            out.put((byte) '\t');
+            if (columns[column + HOST_OFFSET] == LOCAL) {
+                out.put(hostBytes);
+                out.put((byte) '\t');
+                out.put(portBytes);
+            } else {
+                out.put(data, columns[column + HOST_OFFSET], columns[column + HOST_LENGTH]);
+                out.put((byte) '\t');
+                putInt(out, columns[column + PORT]);
+            }
+        }
+    }
+
+    /**
+     * Writes what goes between two batches of renderItems().
+     */
+    static void renderLineEnd(ByteBuffer out) {
+        out.put(LINE_END);
+    }
+
+    /**
+     * Writes what goes after the last batch of renderItems().
+     */
+    static void renderMenuEnd(ByteBuffer out) {
+        out.put(MENU_END);
+    }
+
+    /**
+     * @return the rendered menu in a new array.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[renderedLength()];
+        render(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    private void addColumns(FileType type, int nameOffset, int nameLength, int selectorOffset, int selectorLength,
+                            int hostOffset, int hostLength, int port) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, Math.max(16, size * 2));
+            columns = Arrays.copyOf(columns, Math.max(16, size * 2) * COLUMNS);
+        }
+        int column = size * COLUMNS;
+        types[size] = (byte) type.gopherType;
+        columns[column + NAME_OFFSET] = nameOffset;
+        columns[column + NAME_LENGTH] = nameLength;
+        columns[column + SELECTOR_OFFSET] = selectorOffset;
+        columns[column + SELECTOR_LENGTH] = selectorLength;
+        columns[column + HOST_OFFSET] = hostOffset;
+        columns[column + HOST_LENGTH] = hostLength;
+        columns[column + PORT] = port;
+        size++;
+    }
+
+    private int append(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (dataLength + bytes.length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + bytes.length));
+        }
+        int offset = dataLength;
+        System.arraycopy(bytes, 0, data, dataLength, bytes.length);
+        dataLength += bytes.length;
+        return offset;
+    }
+
+    private int indexOf(byte b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return how many bytes the UTF-8 character starting with this byte takes up.
+     */
+    private static int utf8Length(byte lead) {
+        if ((lead & 0x80) == 0) {
+            return 1;
+        } else if ((lead & 0xE0) == 0xC0) {
+            return 2;
+        } else if ((lead & 0xF0) == 0xE0) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static int digits(int value) {
+        if (value < 0) {
+            return value == Integer.MIN_VALUE ? 11 : 1 + digits(-value);
+        }
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Writes an int in decimal without going through Integer.toString().
+     */
+    private static void putInt(ByteBuffer out, int value) {
+        if (value == Integer.MIN_VALUE) {
+            out.put("-2147483648".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+}
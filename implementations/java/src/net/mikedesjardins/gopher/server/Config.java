@@ -1,43 +1,170 @@
 package net.mikedesjardins.gopher.server;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Nasty static global config object.
+ * Nasty static global config object. Main fills it in from the command line, and anything that runs per request
+ * should read it through current(), which is an immutable Snapshot of the whole thing, instead of one static getter
+ * at a time.
  */
 public class Config {
     private static final Logger LOGGER = Logger.getLogger(Config.class.getName());
-    private static String host = "localhost";
+    private static volatile String host;
+    private static volatile byte[] hostBytes;
+    private static CompletableFuture<String> hostLookup;
+    private static volatile Snapshot snapshot;
+    private static long hostLookupTimeout = 2_000;
     private static int port = 70;
+    private static byte[] portBytes = encode("70");
     private static String root = "/var/gopher";
     private static String mapFilename = "gophermap";
+    private static EngineType engine = EngineType.THREAD;
+    private static boolean menuCache = true;
+    private static long menuCacheSize = 16L * 1024 * 1024;
+    private static boolean index = true;
+    private static long contentCacheSize = 64L * 1024 * 1024;
+    private static long contentCacheEntrySize = 256L * 1024;
+    private static boolean contentCacheDirect = true;
+    private static long mapThreshold = 0;
+    private static long mapIdleSeconds = 30;
+    private static String statsSelector = "_stats";
+    private static String accessLog = "";
+    private static long accessLogMaxBytes = 64L * 1024 * 1024;
+    private static int accessLogFiles = 5;
+    private static int threads = Runtime.getRuntime().availableProcessors() * 4;
+    private static boolean multiAccept = false;
+    private static int acceptors = Runtime.getRuntime().availableProcessors();
+    private static int maxConnections = 1024;
+    private static long readTimeout = 10_000;
+    private static long writeTimeout = 60_000;
+    private static int maxSelectorLength = 1024;
+    private static String image = "";
+    private static String searchSelector = "_search";
+    private static boolean schedule = false;
+    private static long bandwidth = 0;
+    private static long connectionBandwidth = 0;
+    private static long bulkThreshold = 256L * 1024;
+    private static int menuStreamThreshold = 10_000;
+    private static boolean menuSort = false;
+    private static int menuPageSize = 0;
+    private static String upstream = "";
+    private static String mirrorSelector = "mirror";
+    private static long mirrorTtl = 300;
+    private static long mirrorStale = 24 * 60 * 60;
+    private static long mirrorCacheSize = 64L * 1024 * 1024;
+    private static String mirrorCacheDir = "";
+    private static long mirrorCacheDirSize = 1024L * 1024 * 1024;
+    private static long mirrorMaxBytes = 16L * 1024 * 1024;
+    private static long rateLimit = 0;
+    private static long rateBurst = 0;
+    private static long clientBandwidth = 0;
+    private static boolean prefetch = false;
+    private static long prefetchBudget = 8L * 1024 * 1024;
+    private static int prefetchLinks = 8;
+    private static long slowRequest = 500;
+    private static long bufferPool = 16L * 1024 * 1024;
+    private static int bufferLeaks = 256;
+    private static boolean archives = true;
+    private static int archiveCache = 250_000;
 
-    static {
-        try {
-            host = InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException e) {
-            LOGGER.log(Level.WARNING, "Unable to determine host name.");
+    /**
+     * The host name as configured by the user. If it wasn't, we try to determine it using getHostName (see
+     * lookUpHost()), and if that fails, or takes longer than the host lookup timeout, we fall back to 'localhost'.
+     * @return hostname to be rendered on Gopher Menu Items.
+     */
+    public static String getHost() {
+        String host = Config.host;
+        return host != null ? host : awaitHost();
+    }
+    public static void setHost(String host) { Config.hostBytes = encode(host); Config.host = host; changed(); }
+
+    /**
+     * Starts looking up our host name in the background, unless we already know it. Main does this as early as it
+     * can, so the answer is usually in by the time the first menu needs it, and a slow DNS server can't hold up
+     * startup.
+     */
+    public static synchronized void lookUpHost() {
+        if (host != null || hostLookup != null) {
+            return;
         }
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                lookup.complete(InetAddress.getLocalHost().getHostName());
+            } catch (Exception e) {
+                lookup.completeExceptionally(e);
+            }
+        }, "gopher-host-lookup");
+        thread.setDaemon(true);
+        thread.start();
+        hostLookup = lookup;
     }
 
     /**
-     * The host name as configured by the user. By default we try to determine it using getHostName, and if that fails
-     * we fall back to 'localhost'.
-     * @return hostname to be rendered on Gopher Menu Items.
+     * @return true if we've got a host name, i.e. getHost() won't have to wait for the lookup.
      */
-    public static String getHost() { return host; }
-    public static void setHost(String host) { Config.host = host; }
+    public static boolean isHostKnown() {
+        return host != null;
+    }
+
+    private static synchronized String awaitHost() {
+        if (host == null) {
+            lookUpHost();
+            try {
+                setHost(hostLookup.get(hostLookupTimeout, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                LOGGER.log(Level.WARNING, "Looking up our host name is taking too long, so we're going with localhost.");
+                setHost("localhost");
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Unable to determine host name.");
+                setHost("localhost");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                setHost("localhost");
+            }
+        }
+        return host;
+    }
+
+    /**
+     * How long we'll wait for the host name lookup, in milliseconds, the first time we need the host name and
+     * weren't given one. Default is 2 seconds.
+     * @return the lookup timeout in milliseconds.
+     */
+    public static long getHostLookupTimeout() { return hostLookupTimeout; }
+    public static void setHostLookupTimeout(long hostLookupTimeout) { Config.hostLookupTimeout = hostLookupTimeout; changed(); }
+    public static void setHostLookupTimeout(String hostLookupTimeout) { setHostLookupTimeout(Long.parseLong(hostLookupTimeout)); }
+
+    /**
+     * The host name already encoded the way it goes out on the wire, so menus don't have to encode it every time.
+     * Don't modify the array.
+     * @return UTF-8 bytes of getHost().
+     */
+    public static byte[] getHostBytes() {
+        getHost();
+        return hostBytes;
+    }
 
     /**
      * The port number as configured by the user. Default is 70.
      * @return port number.
      */
     public static int getPort() { return port; }
-    public static void setPort(int port) { Config.port = port; }
-    public static void setPort(String port) { Config.port = Integer.parseInt(port); }
+    public static void setPort(int port) { Config.port = port; Config.portBytes = encode(Integer.toString(port)); changed(); }
+    public static void setPort(String port) { setPort(Integer.parseInt(port)); }
+
+    /**
+     * The port number as the digits that go out on the wire. Don't modify the array.
+     * @return the encoded port number.
+     */
+    public static byte[] getPortBytes() { return portBytes; }
 
     /**
      * The root directory of the files to be served by this Gopher server. Defaults to /var/gopher.
@@ -48,6 +175,7 @@ public class Config {
     }
     public static void setRoot(String root) {
         Config.root = root;
+        changed();
     }
 
     /**
@@ -55,5 +183,617 @@ public class Config {
      * @return The gophermap filename
      */
     public static String getMapFilename() { return mapFilename; }
-    public static void setMapFilename(String mapFilename) { Config.mapFilename = mapFilename; }
+    public static void setMapFilename(String mapFilename) { Config.mapFilename = mapFilename; changed(); }
+
+    /**
+     * The connection engine used to service clients. Default is 'thread', which is the old one-platform-thread-per-
+     * connection behavior.
+     * @return The engine type.
+     */
+    public static EngineType getEngine() { return engine; }
+    public static void setEngine(EngineType engine) { Config.engine = engine; changed(); }
+    public static void setEngine(String engine) { Config.engine = EngineType.fromName(engine); changed(); }
+
+    /**
+     * The number of worker threads used by the bounded 'pool' engine, and by the 'nio' engine for anything that
+     * touches the disk. Default is four per core.
+     * @return number of worker threads.
+     */
+    public static int getThreads() { return threads; }
+    public static void setThreads(int threads) { Config.threads = threads; changed(); }
+    public static void setThreads(String threads) { Config.threads = Integer.parseInt(threads); changed(); }
+
+    /**
+     * Whether rendered menus are cached (and invalidated when their directory changes). Default is true.
+     * @return true if menus should be cached.
+     */
+    public static boolean isMenuCache() { return menuCache; }
+    public static void setMenuCache(boolean menuCache) { Config.menuCache = menuCache; changed(); }
+    public static void setMenuCache(String menuCache) { Config.menuCache = Boolean.parseBoolean(menuCache); changed(); }
+
+    /**
+     * The total number of bytes of rendered menus we'll keep in memory. Default is 16 MB.
+     * @return the menu cache budget in bytes.
+     */
+    public static long getMenuCacheSize() { return menuCacheSize; }
+    public static void setMenuCacheSize(long menuCacheSize) { Config.menuCacheSize = menuCacheSize; changed(); }
+    public static void setMenuCacheSize(String menuCacheSize) { Config.menuCacheSize = Long.parseLong(menuCacheSize); changed(); }
+
+    /**
+     * The total number of bytes of file content we'll keep in memory. Default is 64 MB. Zero turns the content
+     * cache off.
+     * @return the content cache budget in bytes.
+     */
+    public static long getContentCacheSize() { return contentCacheSize; }
+    public static void setContentCacheSize(long contentCacheSize) { Config.contentCacheSize = contentCacheSize; changed(); }
+    public static void setContentCacheSize(String contentCacheSize) { Config.contentCacheSize = Long.parseLong(contentCacheSize); changed(); }
+
+    /**
+     * The biggest file we'll put in the content cache. Default is 256 KB.
+     * @return the largest cacheable file in bytes.
+     */
+    public static long getContentCacheEntrySize() { return contentCacheEntrySize; }
+    public static void setContentCacheEntrySize(long contentCacheEntrySize) { Config.contentCacheEntrySize = contentCacheEntrySize; changed(); }
+    public static void setContentCacheEntrySize(String contentCacheEntrySize) { Config.contentCacheEntrySize = Long.parseLong(contentCacheEntrySize); changed(); }
+
+    /**
+     * Whether the content cache keeps its bytes off-heap in direct ByteBuffers. Default is true.
+     * @return true for direct buffers, false for heap buffers.
+     */
+    public static boolean isContentCacheDirect() { return contentCacheDirect; }
+    public static void setContentCacheDirect(boolean contentCacheDirect) { Config.contentCacheDirect = contentCacheDirect; changed(); }
+    public static void setContentCacheDirect(String contentCacheDirect) { Config.contentCacheDirect = Boolean.parseBoolean(contentCacheDirect); changed(); }
+
+    /**
+     * Whether selectors are looked up in the in-memory GopherNamespace index instead of being probed on the
+     * filesystem. Default is true.
+     * @return true if the namespace index is used.
+     */
+    public static boolean isIndex() { return index; }
+    public static void setIndex(boolean index) { Config.index = index; changed(); }
+    public static void setIndex(String index) { Config.index = Boolean.parseBoolean(index); changed(); }
+
+    /**
+     * Binary files at least this big are served from a shared memory mapping. Default is zero, which turns the
+     * mapped tier off and leaves them to transferTo(), which is sendfile on Linux and the better bet for one-off
+     * downloads. Mapping pays off when lots of clients want the same big file at once.
+     * @return the smallest file, in bytes, that gets mapped.
+     */
+    public static long getMapThreshold() { return mapThreshold; }
+    public static void setMapThreshold(long mapThreshold) { Config.mapThreshold = mapThreshold; changed(); }
+    public static void setMapThreshold(String mapThreshold) { Config.mapThreshold = Long.parseLong(mapThreshold); changed(); }
+
+    /**
+     * How long a memory mapping nobody is using hangs around before we unmap it. Default is 30 seconds.
+     * @return idle time in seconds.
+     */
+    public static long getMapIdleSeconds() { return mapIdleSeconds; }
+    public static void setMapIdleSeconds(long mapIdleSeconds) { Config.mapIdleSeconds = mapIdleSeconds; changed(); }
+    public static void setMapIdleSeconds(String mapIdleSeconds) { Config.mapIdleSeconds = Long.parseLong(mapIdleSeconds); changed(); }
+
+    /**
+     * The reserved selector that serves a text page of server stats. Default is '_stats'. Empty turns it off.
+     * @return the stats selector, without any leading slash.
+     */
+    public static String getStatsSelector() { return statsSelector; }
+    public static void setStatsSelector(String statsSelector) { Config.statsSelector = statsSelector.replaceFirst("^/+", ""); changed(); }
+
+    /**
+     * Where to write the access log. Default is '', meaning no access log (requests get logged through
+     * java.util.logging instead, like they always were).
+     * @return a file path, or an empty string.
+     */
+    public static String getAccessLog() { return accessLog; }
+    public static void setAccessLog(String accessLog) { Config.accessLog = accessLog; changed(); }
+
+    /**
+     * How big the access log gets before it's rotated. Default is 64 MB.
+     * @return the rotation size in bytes.
+     */
+    public static long getAccessLogMaxBytes() { return accessLogMaxBytes; }
+    public static void setAccessLogMaxBytes(long accessLogMaxBytes) { Config.accessLogMaxBytes = accessLogMaxBytes; changed(); }
+    public static void setAccessLogMaxBytes(String accessLogMaxBytes) { Config.accessLogMaxBytes = Long.parseLong(accessLogMaxBytes); changed(); }
+
+    /**
+     * How many rotated access logs to keep around. Default is 5.
+     * @return the number of old files to keep.
+     */
+    public static int getAccessLogFiles() { return accessLogFiles; }
+    public static void setAccessLogFiles(int accessLogFiles) { Config.accessLogFiles = accessLogFiles; changed(); }
+    public static void setAccessLogFiles(String accessLogFiles) { Config.accessLogFiles = Integer.parseInt(accessLogFiles); changed(); }
+
+    /**
+     * Whether to listen on several sockets bound to the same port with SO_REUSEPORT, each with its own accept loop,
+     * so the kernel spreads new connections across them. Default is false (one socket, one accept loop).
+     * @return true for multi-acceptor mode.
+     */
+    public static boolean isMultiAccept() { return multiAccept; }
+    public static void setMultiAccept(boolean multiAccept) { Config.multiAccept = multiAccept; changed(); }
+    public static void setMultiAccept(String multiAccept) { Config.multiAccept = Boolean.parseBoolean(multiAccept); changed(); }
+
+    /**
+     * The number of listening sockets (and accept loops) in multi-acceptor mode. Default is one per core.
+     * @return number of acceptors.
+     */
+    public static int getAcceptors() { return acceptors; }
+    public static void setAcceptors(int acceptors) { Config.acceptors = acceptors; changed(); }
+    public static void setAcceptors(String acceptors) { Config.acceptors = Integer.parseInt(acceptors); changed(); }
+
+    /**
+     * How many connections we'll work on at once. Past that, new connections get a "server busy" error and are
+     * closed straight away. Default is 1024, 0 means no limit.
+     * @return the maximum number of in-flight connections.
+     */
+    public static int getMaxConnections() { return maxConnections; }
+    public static void setMaxConnections(int maxConnections) { Config.maxConnections = maxConnections; changed(); }
+    public static void setMaxConnections(String maxConnections) { Config.maxConnections = Integer.parseInt(maxConnections); changed(); }
+
+    /**
+     * How long a client gets to send its whole selector, in milliseconds. Default is 10 seconds, 0 means forever.
+     * @return the read deadline in milliseconds.
+     */
+    public static long getReadTimeout() { return readTimeout; }
+    public static void setReadTimeout(long readTimeout) { Config.readTimeout = readTimeout; changed(); }
+    public static void setReadTimeout(String readTimeout) { Config.readTimeout = Long.parseLong(readTimeout); changed(); }
+
+    /**
+     * How long a client can go without taking any of its response before we give up on it, in milliseconds. The
+     * clock starts over every time a write gets somewhere, so a big file to a slow client is fine as long as it
+     * keeps moving. Default is 60 seconds, 0 means forever.
+     * @return the write timeout in milliseconds.
+     */
+    public static long getWriteTimeout() { return writeTimeout; }
+    public static void setWriteTimeout(long writeTimeout) { Config.writeTimeout = writeTimeout; changed(); }
+    public static void setWriteTimeout(String writeTimeout) { Config.writeTimeout = Long.parseLong(writeTimeout); changed(); }
+
+    /**
+     * The longest selector (in bytes) we'll accept. Default is 1024, 0 means no limit.
+     * @return the maximum selector length.
+     */
+    public static int getMaxSelectorLength() { return maxSelectorLength; }
+    public static void setMaxSelectorLength(int maxSelectorLength) { Config.maxSelectorLength = maxSelectorLength; changed(); }
+    public static void setMaxSelectorLength(String maxSelectorLength) { Config.maxSelectorLength = Integer.parseInt(maxSelectorLength); changed(); }
+
+    /**
+     * A compiled GopherImage to serve everything from instead of the root. Default is none.
+     * @return path to the image, or an empty string.
+     */
+    public static String getImage() { return image; }
+    public static void setImage(String image) { Config.image = image; changed(); }
+
+    /**
+     * The selector that answers type 7 full-text searches. Like the stats selector, leading slashes don't matter,
+     * and an empty string turns it off. Default is "_search".
+     * @return the search selector, without leading slashes.
+     */
+    public static String getSearchSelector() { return searchSelector; }
+    public static void setSearchSelector(String searchSelector) { Config.searchSelector = searchSelector.replaceFirst("^/+", ""); changed(); }
+
+    /**
+     * Whether response bodies are sent by the GopherScheduler, which interleaves them so big downloads can't crowd
+     * out menus. Default is false (each connection writes its own response as fast as it can). Setting either of the
+     * bandwidth caps turns it on too.
+     * @return true if responses go through the scheduler.
+     */
+    public static boolean isSchedule() { return schedule; }
+    public static void setSchedule(boolean schedule) { Config.schedule = schedule; changed(); }
+    public static void setSchedule(String schedule) { Config.schedule = Boolean.parseBoolean(schedule); changed(); }
+
+    /**
+     * The most bytes per second we'll send, across every connection. Default is 0, meaning no limit.
+     * @return the total bandwidth cap in bytes per second.
+     */
+    public static long getBandwidth() { return bandwidth; }
+    public static void setBandwidth(long bandwidth) { Config.bandwidth = bandwidth; changed(); }
+    public static void setBandwidth(String bandwidth) { Config.bandwidth = Long.parseLong(bandwidth); changed(); }
+
+    /**
+     * The most bytes per second we'll send to any one connection. Default is 0, meaning no limit.
+     * @return the per-connection bandwidth cap in bytes per second.
+     */
+    public static long getConnectionBandwidth() { return connectionBandwidth; }
+    public static void setConnectionBandwidth(long connectionBandwidth) { Config.connectionBandwidth = connectionBandwidth; changed(); }
+    public static void setConnectionBandwidth(String connectionBandwidth) { Config.connectionBandwidth = Long.parseLong(connectionBandwidth); changed(); }
+
+    /**
+     * Files bigger than this are bulk transfers as far as the scheduler is concerned, and wait their turn behind
+     * menus and small files. Default is 256 KB.
+     * @return the bulk threshold in bytes.
+     */
+    public static long getBulkThreshold() { return bulkThreshold; }
+    public static void setBulkThreshold(long bulkThreshold) { Config.bulkThreshold = bulkThreshold; changed(); }
+    public static void setBulkThreshold(String bulkThreshold) { Config.bulkThreshold = Long.parseLong(bulkThreshold); changed(); }
+
+    /**
+     * Directories without a gophermap that have more entries than this get their menus streamed out as they're
+     * read, instead of rendered (and cached) in one go. Default is 10000, 0 means never.
+     * @return the number of entries past which menus are streamed.
+     */
+    public static int getMenuStreamThreshold() { return menuStreamThreshold; }
+    public static void setMenuStreamThreshold(int menuStreamThreshold) { Config.menuStreamThreshold = menuStreamThreshold; changed(); }
+    public static void setMenuStreamThreshold(String menuStreamThreshold) { Config.menuStreamThreshold = Integer.parseInt(menuStreamThreshold); changed(); }
+
+    /**
+     * Whether directories without a gophermap are listed sorted by name. Default is false, which lists them in
+     * whatever order the filesystem gives us.
+     * @return true if directory menus are sorted.
+     */
+    public static boolean isMenuSort() { return menuSort; }
+    public static void setMenuSort(boolean menuSort) { Config.menuSort = menuSort; changed(); }
+    public static void setMenuSort(String menuSort) { Config.menuSort = Boolean.parseBoolean(menuSort); changed(); }
+
+    /**
+     * How many entries go on each page of a directory without a gophermap. Bigger directories are split into
+     * pages, linked together with "Previous page" and "Next page" items. Default is 0, meaning no pages.
+     * @return the page size in entries.
+     */
+    public static int getMenuPageSize() { return menuPageSize; }
+    public static void setMenuPageSize(int menuPageSize) { Config.menuPageSize = menuPageSize; changed(); }
+    public static void setMenuPageSize(String menuPageSize) { Config.menuPageSize = Integer.parseInt(menuPageSize); changed(); }
+
+    /**
+     * The upstream gopher server we mirror, as host:port (the port defaults to 70). Default is "", meaning we don't
+     * mirror anything. See GopherMirror.
+     * @return the upstream server.
+     */
+    public static String getUpstream() { return upstream; }
+    public static void setUpstream(String upstream) { Config.upstream = upstream; changed(); }
+
+    /**
+     * The selector the mirror lives under. Selectors under it are fetched from the upstream server. Default is
+     * "mirror".
+     * @return the mirror selector.
+     */
+    public static String getMirrorSelector() { return mirrorSelector; }
+    public static void setMirrorSelector(String mirrorSelector) { Config.mirrorSelector = mirrorSelector; changed(); }
+
+    /**
+     * How long something we fetched from upstream is good for, in seconds. Default is 5 minutes.
+     * @return the time to live in seconds.
+     */
+    public static long getMirrorTtl() { return mirrorTtl; }
+    public static void setMirrorTtl(long mirrorTtl) { Config.mirrorTtl = mirrorTtl; changed(); }
+    public static void setMirrorTtl(String mirrorTtl) { Config.mirrorTtl = Long.parseLong(mirrorTtl); changed(); }
+
+    /**
+     * How long past its time to live we'll keep serving something from upstream while we fetch a fresh copy in the
+     * background, in seconds. Default is a day. Past that, the request waits for the fresh copy.
+     * @return how long stale content can be served for, in seconds.
+     */
+    public static long getMirrorStale() { return mirrorStale; }
+    public static void setMirrorStale(long mirrorStale) { Config.mirrorStale = mirrorStale; changed(); }
+    public static void setMirrorStale(String mirrorStale) { Config.mirrorStale = Long.parseLong(mirrorStale); changed(); }
+
+    /**
+     * How many bytes of mirrored content we keep in memory. Default is 64 MB.
+     * @return the memory cache budget in bytes.
+     */
+    public static long getMirrorCacheSize() { return mirrorCacheSize; }
+    public static void setMirrorCacheSize(long mirrorCacheSize) { Config.mirrorCacheSize = mirrorCacheSize; changed(); }
+    public static void setMirrorCacheSize(String mirrorCacheSize) { Config.mirrorCacheSize = Long.parseLong(mirrorCacheSize); changed(); }
+
+    /**
+     * A directory to keep mirrored content in as well, so it survives a restart and isn't limited by the memory
+     * budget. Default is "", meaning memory only.
+     * @return the disk cache directory.
+     */
+    public static String getMirrorCacheDir() { return mirrorCacheDir; }
+    public static void setMirrorCacheDir(String mirrorCacheDir) { Config.mirrorCacheDir = mirrorCacheDir; changed(); }
+
+    /**
+     * How many bytes of mirrored content we keep in the cache directory. Past that, whatever's gone longest without
+     * being fetched or read goes first. Default is 1 GB.
+     * @return the disk cache budget in bytes.
+     */
+    public static long getMirrorCacheDirSize() { return mirrorCacheDirSize; }
+    public static void setMirrorCacheDirSize(long mirrorCacheDirSize) { Config.mirrorCacheDirSize = mirrorCacheDirSize; changed(); }
+    public static void setMirrorCacheDirSize(String mirrorCacheDirSize) { Config.mirrorCacheDirSize = Long.parseLong(mirrorCacheDirSize); changed(); }
+
+    /**
+     * The biggest response we'll fetch from upstream, in bytes. Anything bigger gets an error. Default is 16 MB.
+     * @return the size limit in bytes.
+     */
+    public static long getMirrorMaxBytes() { return mirrorMaxBytes; }
+    public static void setMirrorMaxBytes(long mirrorMaxBytes) { Config.mirrorMaxBytes = mirrorMaxBytes; changed(); }
+    public static void setMirrorMaxBytes(String mirrorMaxBytes) { Config.mirrorMaxBytes = Long.parseLong(mirrorMaxBytes); changed(); }
+
+    /**
+     * How many connections a second each client address gets, on average. Default is 0, meaning no limit. See
+     * GopherRateLimiter.
+     * @return the per-client request rate.
+     */
+    public static long getRateLimit() { return rateLimit; }
+    public static void setRateLimit(long rateLimit) { Config.rateLimit = rateLimit; changed(); }
+    public static void setRateLimit(String rateLimit) { Config.rateLimit = Long.parseLong(rateLimit); changed(); }
+
+    /**
+     * How many connections a client can make in a burst before the rate limit kicks in. Default is 0, meaning a
+     * second's worth.
+     * @return the per-client burst.
+     */
+    public static long getRateBurst() { return rateBurst; }
+    public static void setRateBurst(long rateBurst) { Config.rateBurst = rateBurst; changed(); }
+    public static void setRateBurst(String rateBurst) { Config.rateBurst = Long.parseLong(rateBurst); changed(); }
+
+    /**
+     * How many bytes a second we'll send each client address, on average, before we start turning its new
+     * connections away. Default is 0, meaning no limit.
+     * @return the per-client bandwidth in bytes per second.
+     */
+    public static long getClientBandwidth() { return clientBandwidth; }
+    public static void setClientBandwidth(long clientBandwidth) { Config.clientBandwidth = clientBandwidth; changed(); }
+    public static void setClientBandwidth(String clientBandwidth) { Config.clientBandwidth = Long.parseLong(clientBandwidth); changed(); }
+
+    /**
+     * Whether we warm up what's linked from a menu right after sending it, on the guess that the client's about to
+     * ask for some of it. Default is false. See GopherPrefetcher.
+     * @return true if prefetching is on.
+     */
+    public static boolean isPrefetch() { return prefetch; }
+    public static void setPrefetch(boolean prefetch) { Config.prefetch = prefetch; changed(); }
+    public static void setPrefetch(String prefetch) { Config.prefetch = Boolean.parseBoolean(prefetch); changed(); }
+
+    /**
+     * How many bytes a second the prefetcher is allowed to read, so it can't steal the disk from real requests.
+     * Default is 8MB.
+     * @return the prefetch budget in bytes per second.
+     */
+    public static long getPrefetchBudget() { return prefetchBudget; }
+    public static void setPrefetchBudget(long prefetchBudget) { Config.prefetchBudget = prefetchBudget; changed(); }
+    public static void setPrefetchBudget(String prefetchBudget) { Config.prefetchBudget = Long.parseLong(prefetchBudget); changed(); }
+
+    /**
+     * The most items we'll warm for any one menu. Default is 8.
+     * @return the number of links to prefetch per menu.
+     */
+    public static int getPrefetchLinks() { return prefetchLinks; }
+    public static void setPrefetchLinks(int prefetchLinks) { Config.prefetchLinks = prefetchLinks; changed(); }
+    public static void setPrefetchLinks(String prefetchLinks) { Config.prefetchLinks = Integer.parseInt(prefetchLinks); changed(); }
+
+    /**
+     * Requests that take longer than this, in milliseconds, get a SlowRequest event in the flight recording, if
+     * there is one (see GopherEvents). Default is 500. 0 means every request.
+     * @return the slow request threshold in milliseconds.
+     */
+    public static long getSlowRequest() { return slowRequest; }
+    public static void setSlowRequest(long slowRequest) { Config.slowRequest = slowRequest; changed(); }
+    public static void setSlowRequest(String slowRequest) { Config.slowRequest = Long.parseLong(slowRequest); changed(); }
+
+    /**
+     * How many bytes of spare buffers we keep around for requests to reuse, in each of GopherBufferPool's two arenas
+     * (on top of the few each thread keeps for itself). Default is 16MB. 0 means buffers aren't reused at all.
+     * @return the buffer pool size in bytes.
+     */
+    public static long getBufferPool() { return bufferPool; }
+    public static void setBufferPool(long bufferPool) { Config.bufferPool = bufferPool; changed(); }
+    public static void setBufferPool(String bufferPool) { Config.bufferPool = Long.parseLong(bufferPool); changed(); }
+
+    /**
+     * One in this many pooled buffers is watched to make sure it gets given back. Default is 256. 0 turns leak
+     * detection off, and 1 watches every buffer, which is slow but tells you about every leak.
+     * @return the leak detection sampling rate.
+     */
+    public static int getBufferLeaks() { return bufferLeaks; }
+    public static void setBufferLeaks(int bufferLeaks) { Config.bufferLeaks = bufferLeaks; changed(); }
+    public static void setBufferLeaks(String bufferLeaks) { Config.bufferLeaks = Integer.parseInt(bufferLeaks); changed(); }
+
+    /**
+     * Should ZIP archives be browsable, so that "foo.zip/" is a menu of what's in foo.zip and "foo.zip/bar.txt" is
+     * one of its members? "foo.zip" on its own is still the whole archive either way. Default is true. See
+     * GopherArchive.
+     * @return true if archives can be browsed.
+     */
+    public static boolean isArchives() { return archives; }
+    public static void setArchives(boolean archives) { Config.archives = archives; changed(); }
+    public static void setArchives(String archives) { Config.archives = Boolean.parseBoolean(archives); changed(); }
+
+    /**
+     * How many archive entries' worth of central directories GopherArchiveCache keeps, so browsing an archive
+     * doesn't read its index on every request. Default is 250,000. 0 means they're read every time.
+     * @return the archive cache size in entries.
+     */
+    public static int getArchiveCache() { return archiveCache; }
+    public static void setArchiveCache(int archiveCache) { Config.archiveCache = archiveCache; changed(); }
+    public static void setArchiveCache(String archiveCache) { Config.archiveCache = Integer.parseInt(archiveCache); changed(); }
+
+    /**
+     * @return the config as it stands, frozen. It's rebuilt after anything changes, which in practice means once,
+     * after Main has parsed the command line.
+     */
+    public static Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            current = new Snapshot();
+            snapshot = current;
+        }
+        return current;
+    }
+
+    private static void changed() {
+        snapshot = null;
+    }
+
+    /**
+     * An immutable copy of every setting, for code that runs on every request. Taking one is a single volatile
+     * read, after which everything's a plain final field, and a request sees the same settings from start to
+     * finish. The getters are the same as Config's. Don't modify the byte arrays. The one exception is the host
+     * name: a snapshot taken while it's still being looked up leaves it to Config, so only asking for it can wait.
+     */
+    public static final class Snapshot {
+        private final String host;
+        private final long hostLookupTimeout;
+        private final byte[] hostBytes;
+        private final int port;
+        private final byte[] portBytes;
+        private final String root;
+        private final String mapFilename;
+        private final EngineType engine;
+        private final int threads;
+        private final boolean menuCache;
+        private final long menuCacheSize;
+        private final long contentCacheSize;
+        private final long contentCacheEntrySize;
+        private final boolean contentCacheDirect;
+        private final boolean index;
+        private final long mapThreshold;
+        private final long mapIdleSeconds;
+        private final String statsSelector;
+        private final String accessLog;
+        private final long accessLogMaxBytes;
+        private final int accessLogFiles;
+        private final boolean multiAccept;
+        private final int acceptors;
+        private final int maxConnections;
+        private final long readTimeout;
+        private final long writeTimeout;
+        private final int maxSelectorLength;
+        private final String image;
+        private final String searchSelector;
+        private final boolean schedule;
+        private final long bandwidth;
+        private final long connectionBandwidth;
+        private final long bulkThreshold;
+        private final int menuStreamThreshold;
+        private final boolean menuSort;
+        private final int menuPageSize;
+        private final String upstream;
+        private final String mirrorSelector;
+        private final long mirrorTtl;
+        private final long mirrorStale;
+        private final long mirrorCacheSize;
+        private final String mirrorCacheDir;
+        private final long mirrorCacheDirSize;
+        private final long mirrorMaxBytes;
+        private final long rateLimit;
+        private final long rateBurst;
+        private final long clientBandwidth;
+        private final boolean prefetch;
+        private final long prefetchBudget;
+        private final int prefetchLinks;
+        private final long slowRequest;
+        private final long bufferPool;
+        private final int bufferLeaks;
+        private final boolean archives;
+        private final int archiveCache;
+
+        private Snapshot() {
+            // Only what we already know: taking a snapshot mustn't wait on the host lookup. If it's still going, the
+            // host getters ask Config, and setHost() throws this snapshot away once the answer's in.
+            host = Config.host;
+            hostLookupTimeout = Config.getHostLookupTimeout();
+            hostBytes = host != null ? Config.hostBytes : null;
+            port = Config.getPort();
+            portBytes = Config.getPortBytes();
+            root = Config.getRoot();
+            mapFilename = Config.getMapFilename();
+            engine = Config.getEngine();
+            threads = Config.getThreads();
+            menuCache = Config.isMenuCache();
+            menuCacheSize = Config.getMenuCacheSize();
+            contentCacheSize = Config.getContentCacheSize();
+            contentCacheEntrySize = Config.getContentCacheEntrySize();
+            contentCacheDirect = Config.isContentCacheDirect();
+            index = Config.isIndex();
+            mapThreshold = Config.getMapThreshold();
+            mapIdleSeconds = Config.getMapIdleSeconds();
+            statsSelector = Config.getStatsSelector();
+            accessLog = Config.getAccessLog();
+            accessLogMaxBytes = Config.getAccessLogMaxBytes();
+            accessLogFiles = Config.getAccessLogFiles();
+            multiAccept = Config.isMultiAccept();
+            acceptors = Config.getAcceptors();
+            maxConnections = Config.getMaxConnections();
+            readTimeout = Config.getReadTimeout();
+            writeTimeout = Config.getWriteTimeout();
+            maxSelectorLength = Config.getMaxSelectorLength();
+            image = Config.getImage();
+            searchSelector = Config.getSearchSelector();
+            schedule = Config.isSchedule();
+            bandwidth = Config.getBandwidth();
+            connectionBandwidth = Config.getConnectionBandwidth();
+            bulkThreshold = Config.getBulkThreshold();
+            menuStreamThreshold = Config.getMenuStreamThreshold();
+            menuSort = Config.isMenuSort();
+            menuPageSize = Config.getMenuPageSize();
+            upstream = Config.getUpstream();
+            mirrorSelector = Config.getMirrorSelector();
+            mirrorTtl = Config.getMirrorTtl();
+            mirrorStale = Config.getMirrorStale();
+            mirrorCacheSize = Config.getMirrorCacheSize();
+            mirrorCacheDir = Config.getMirrorCacheDir();
+            mirrorCacheDirSize = Config.getMirrorCacheDirSize();
+            mirrorMaxBytes = Config.getMirrorMaxBytes();
+            rateLimit = Config.getRateLimit();
+            rateBurst = Config.getRateBurst();
+            clientBandwidth = Config.getClientBandwidth();
+            prefetch = Config.isPrefetch();
+            prefetchBudget = Config.getPrefetchBudget();
+            prefetchLinks = Config.getPrefetchLinks();
+            slowRequest = Config.getSlowRequest();
+            bufferPool = Config.getBufferPool();
+            bufferLeaks = Config.getBufferLeaks();
+            archives = Config.isArchives();
+            archiveCache = Config.getArchiveCache();
+        }
+
+        public String getHost() { return host != null ? host : Config.getHost(); }
+        public long getHostLookupTimeout() { return hostLookupTimeout; }
+        public byte[] getHostBytes() { return hostBytes != null ? hostBytes : Config.getHostBytes(); }
+        public int getPort() { return port; }
+        public byte[] getPortBytes() { return portBytes; }
+        public String getRoot() { return root; }
+        public String getMapFilename() { return mapFilename; }
+        public EngineType getEngine() { return engine; }
+        public int getThreads() { return threads; }
+        public boolean isMenuCache() { return menuCache; }
+        public long getMenuCacheSize() { return menuCacheSize; }
+        public long getContentCacheSize() { return contentCacheSize; }
+        public long getContentCacheEntrySize() { return contentCacheEntrySize; }
+        public boolean isContentCacheDirect() { return contentCacheDirect; }
+        public boolean isIndex() { return index; }
+        public long getMapThreshold() { return mapThreshold; }
+        public long getMapIdleSeconds() { return mapIdleSeconds; }
+        public String getStatsSelector() { return statsSelector; }
+        public String getAccessLog() { return accessLog; }
+        public long getAccessLogMaxBytes() { return accessLogMaxBytes; }
+        public int getAccessLogFiles() { return accessLogFiles; }
+        public boolean isMultiAccept() { return multiAccept; }
+        public int getAcceptors() { return acceptors; }
+        public int getMaxConnections() { return maxConnections; }
+        public long getReadTimeout() { return readTimeout; }
+        public long getWriteTimeout() { return writeTimeout; }
+        public int getMaxSelectorLength() { return maxSelectorLength; }
+        public String getImage() { return image; }
+        public String getSearchSelector() { return searchSelector; }
+        public boolean isSchedule() { return schedule; }
+        public long getBandwidth() { return bandwidth; }
+        public long getConnectionBandwidth() { return connectionBandwidth; }
+        public long getBulkThreshold() { return bulkThreshold; }
+        public int getMenuStreamThreshold() { return menuStreamThreshold; }
+        public boolean isMenuSort() { return menuSort; }
+        public int getMenuPageSize() { return menuPageSize; }
+        public String getUpstream() { return upstream; }
+        public String getMirrorSelector() { return mirrorSelector; }
+        public long getMirrorTtl() { return mirrorTtl; }
+        public long getMirrorStale() { return mirrorStale; }
+        public long getMirrorCacheSize() { return mirrorCacheSize; }
+        public String getMirrorCacheDir() { return mirrorCacheDir; }
+        public long getMirrorCacheDirSize() { return mirrorCacheDirSize; }
+        public long getMirrorMaxBytes() { return mirrorMaxBytes; }
+        public long getRateLimit() { return rateLimit; }
+        public long getRateBurst() { return rateBurst; }
+        public long getClientBandwidth() { return clientBandwidth; }
+        public boolean isPrefetch() { return prefetch; }
+        public long getPrefetchBudget() { return prefetchBudget; }
+        public int getPrefetchLinks() { return prefetchLinks; }
+        public long getSlowRequest() { return slowRequest; }
+        public long getBufferPool() { return bufferPool; }
+        public int getBufferLeaks() { return bufferLeaks; }
+        public boolean isArchives() { return archives; }
+        public int getArchiveCache() { return archiveCache; }
+    }
+
+    private static byte[] encode(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
 }
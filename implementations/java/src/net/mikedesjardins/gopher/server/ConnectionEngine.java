@@ -0,0 +1,15 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+
+/**
+ * Something that can accept connections on a port and get them serviced. See EngineType for the flavors we have.
+ */
+public interface ConnectionEngine {
+    /**
+     * Accepts and services connections until the end of time (or an exception).
+     * @param port the port to listen on.
+     * @throws IOException if we can't listen or accept.
+     */
+    void serve(int port) throws IOException;
+}
@@ -0,0 +1,237 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wraps a UTF-8 text stream and rewrites it on the fly so that every line ends with a carriage return and line feed
+ * and has no trailing whitespace, which is what the Gopher protocol wants for text. The output is the same as
+ * reading the text with Files.lines(), calling stripTrailing() on each line and joining them with "\r\n" (including
+ * a trailing one), but we only ever hold a chunk of the file in memory at a time. That includes whitespace we're
+ * holding back in case it's trailing, so a run of more than a chunk of it is sent as it is. The chunks are borrowed
+ * from the GopherBufferPool and given back on close(), so close it.
+ */
+public class CrlfInputStream extends InputStream {
+    private static final int CHUNK_SIZE = 4096;
+    private final InputStream in;
+    private final GopherBufferPool.Lease rawLease;
+    private final GopherBufferPool.Lease charsLease;
+    private final GopherBufferPool.Lease pendingCharsLease;
+    private final GopherBufferPool.Lease pendingBytesLease;
+    // Bytes read from the file that haven't been decoded yet (in fill mode), the characters they decoded to (in
+    // drain mode), the converted characters (fill mode) and their bytes (drain mode).
+    private final ByteBuffer raw;
+    private final CharBuffer chars;
+    private final CharBuffer pendingChars;
+    private final ByteBuffer pendingBytes;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Whitespace we've seen on the current line but haven't emitted yet, since it may turn out to be trailing. It
+    // never holds more than a chunk: past that, whitespace is sent like anything else.
+    private final StringBuilder whitespace = new StringBuilder();
+    private boolean lineStarted;
+    private boolean lastWasCarriageReturn;
+    private boolean endOfInput;
+    private boolean endOfFile;
+    private boolean decoded;
+    private boolean closed;
+    // Only when we're serving a selector, and only when there's a recording that wants it.
+    private GopherEvents.Convert event;
+
+    public CrlfInputStream(InputStream in) {
+        this.in = in;
+        GopherBufferPool pool = GopherBufferPool.getInstance();
+        rawLease = pool.heap(CHUNK_SIZE * 2);
+        charsLease = pool.heap(CHUNK_SIZE * 2);
+        pendingCharsLease = pool.heap(CHUNK_SIZE * 2);
+        pendingBytesLease = pool.heap(CHUNK_SIZE * 3);
+        raw = rawLease.buffer().limit(CHUNK_SIZE * 2);
+        chars = charsLease.buffer().limit(CHUNK_SIZE * 2).asCharBuffer().limit(0);
+        pendingChars = pendingCharsLease.buffer().limit(CHUNK_SIZE * 2).asCharBuffer();
+        pendingBytes = pendingBytesLease.buffer().limit(0);
+    }
+
+    /**
+     * Same as above, but records a Convert event for the selector when it's closed (see GopherEvents).
+     * @param in the text.
+     * @param selector the selector it's being sent for.
+     */
+    public CrlfInputStream(InputStream in, String selector) {
+        this(in);
+        GopherEvents.Convert event = new GopherEvents.Convert();
+        if (event.isEnabled()) {
+            event.selector = selector;
+            event.begin();
+            this.event = event;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!pendingBytes.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return pendingBytes.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!pendingBytes.hasRemaining() && !fill()) {
+            return -1;
+        }
+        int count = Math.min(length, pendingBytes.remaining());
+        pendingBytes.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            in.close();
+        } finally {
+            rawLease.close();
+            charsLease.close();
+            pendingCharsLease.close();
+            pendingBytesLease.close();
+        }
+        if (event != null) {
+            event.commit();
+            event = null;
+        }
+    }
+
+    /**
+     * Refills pendingBytes with the next chunk of output.
+     * @return false if there's nothing left to send.
+     * @throws IOException if the underlying stream has a problem.
+     */
+    private boolean fill() throws IOException {
+        long started = event != null ? System.nanoTime() : 0;
+        pendingBytes.clear().limit(CHUNK_SIZE * 3);
+        while (pendingBytes.position() == 0) {
+            boolean more = transcode();
+            pendingChars.flip();
+            encoder.encode(pendingChars, pendingBytes, !more);
+            if (!more) {
+                encoder.flush(pendingBytes);
+                pendingChars.compact();
+                break;
+            }
+            pendingChars.compact();
+        }
+        pendingBytes.flip();
+        if (event != null) {
+            event.conversionTime += System.nanoTime() - started;
+            event.bytes += pendingBytes.remaining();
+        }
+        return pendingBytes.hasRemaining();
+    }
+
+    /**
+     * Moves as many characters as will fit from chars into pendingChars, fixing line endings and dropping
+     * trailing whitespace along the way. Line endings are the same ones BufferedReader.readLine() understands: a
+     * line feed, a carriage return, or a carriage return followed by a line feed.
+     * @return false once the input is exhausted and everything has been handed over.
+     * @throws IOException if the underlying stream has a problem.
+     */
+    private boolean transcode() throws IOException {
+        if (!chars.hasRemaining()) {
+            if (endOfInput) {
+                return false;
+            }
+            if (!decode()) {
+                // The last line doesn't need a line ending in the file, but it gets one on the wire.
+                endOfInput = true;
+                if (lineStarted) {
+                    pendingChars.put('\r').put('\n');
+                }
+                return true;
+            }
+        }
+
+        while (chars.hasRemaining() && pendingChars.remaining() >= 2) {
+            char c = chars.get(chars.position());
+            if (lastWasCarriageReturn && c == '\n') {
+                // Second half of a \r\n that we already turned into a line ending.
+                lastWasCarriageReturn = false;
+                chars.get();
+                continue;
+            }
+            lastWasCarriageReturn = false;
+
+            if (c == '\r' || c == '\n') {
+                whitespace.setLength(0);
+                pendingChars.put('\r').put('\n');
+                lineStarted = false;
+                lastWasCarriageReturn = (c == '\r');
+            } else if (Character.isWhitespace(c) && whitespace.length() < CHUNK_SIZE) {
+                whitespace.append(c);
+                lineStarted = true;
+            } else {
+                if (whitespace.length() > 0) {
+                    // Turns out it wasn't trailing whitespace after all. Emit as much of it as fits.
+                    int count = Math.min(whitespace.length(), pendingChars.remaining() - 1);
+                    for (int i = 0; i < count; i++) {
+                        pendingChars.put(whitespace.charAt(i));
+                    }
+                    whitespace.delete(0, count);
+                    if (whitespace.length() > 0) {
+                        break;
+                    }
+                }
+                pendingChars.put(c);
+                lineStarted = true;
+            }
+            chars.get();
+        }
+        return true;
+    }
+
+    /**
+     * Reads and decodes the next lot of characters into chars. Like InputStreamReader, bytes that aren't UTF-8 come
+     * out as replacement characters.
+     * @return false once the file's been read and decoded to the end.
+     * @throws IOException if the underlying stream has a problem.
+     */
+    private boolean decode() throws IOException {
+        chars.clear();
+        while (chars.position() == 0 && !decoded) {
+            if (!endOfFile) {
+                int count = in.read(raw.array(), raw.position(), raw.remaining());
+                if (count < 0) {
+                    endOfFile = true;
+                } else {
+                    raw.position(raw.position() + count);
+                }
+            }
+            raw.flip();
+            CoderResult result = decoder.decode(raw, chars, endOfFile);
+            raw.compact();
+            if (endOfFile && result.isUnderflow()) {
+                decoder.flush(chars);
+                decoded = true;
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+}
@@ -0,0 +1,40 @@
+package net.mikedesjardins.gopher.server;
+
+/**
+ * The different ways the server can service the connections it accepts. Selected with --engine on the command line.
+ */
+public enum EngineType {
+    /** One brand new platform thread per connection. The original (and still default) behavior. */
+    THREAD("thread"),
+    /** One virtual thread per connection. Needs a JDK with virtual threads, otherwise we fall back to POOL. */
+    VIRTUAL("virtual"),
+    /** A fixed-size pool of platform threads, sized by --threads. */
+    POOL("pool"),
+    /** A single thread multiplexing every connection with a java.nio Selector (one per acceptor with --multiaccept). */
+    NIO("nio");
+
+    private final String name;
+
+    EngineType(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Looks up an engine by the name used on the command line.
+     * @param name one of thread, virtual, pool or nio.
+     * @return the matching EngineType.
+     * @throws IllegalArgumentException if we don't know the name.
+     */
+    public static EngineType fromName(String name) {
+        for (EngineType engineType : values()) {
+            if (engineType.name.equalsIgnoreCase(name)) {
+                return engineType;
+            }
+        }
+        throw new IllegalArgumentException("Unknown engine: " + name);
+    }
+}
@@ -78,4 +78,16 @@ public enum FileType {
     public static FileType getFromExtension(String extension) {
         return extensionMap.getOrDefault(extension, FileType.BINARY);
     }
+
+    /**
+     * Same as getFromExtension, but pulls the extension off of a file name for you. Files without an extension are
+     * BINARY.
+     */
+    public static FileType getFromFileName(String fileName) {
+        int index = fileName.lastIndexOf('.');
+        if (index > 0) {
+            return getFromExtension(fileName.substring(index + 1));
+        }
+        return FileType.BINARY;
+    }
 }
@@ -0,0 +1,220 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The access log. Request threads drop a fixed-shape record into a lock-free ring buffer and get on with their
+ * lives; a background thread drains the ring in batches and writes them to a file, which gets rotated when it grows
+ * past a size limit. If the writer can't keep up and the ring fills, new records are dropped (and counted) rather
+ * than making requests wait.
+ *
+ * Each line is tab separated: the time in epoch millis, the client's address, a one letter RequestOutcome code,
+ * the bytes sent, the time taken in microseconds, and the selector.
+ */
+public class GopherAccessLog {
+    private static final Logger LOGGER = Logger.getLogger(GopherAccessLog.class.getName());
+    private static final int RING_SIZE = 1 << 16;
+    private static final int MASK = RING_SIZE - 1;
+    private static GopherAccessLog instance;
+
+    // The ring. A slot's sequence says which record it holds: the record is ready to read once the slot's sequence
+    // equals the record's position, and the slot can be reused once the writer has moved past it.
+    private final Record[] records = new Record[RING_SIZE];
+    private final AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean stopping;
+
+    private final Path path;
+    private Writer writer;
+    private long fileSize;
+
+    private GopherAccessLog(Path path) {
+        this.path = path;
+        for (int i = 0; i < RING_SIZE; i++) {
+            records[i] = new Record();
+            sequences.set(i, -1);
+        }
+    }
+
+    /**
+     * @return the access log, or null if there isn't one configured.
+     */
+    public static synchronized GopherAccessLog getInstance() {
+        if (instance == null && !Config.getAccessLog().isEmpty()) {
+            GopherAccessLog accessLog = new GopherAccessLog(Paths.get(Config.getAccessLog()));
+            Thread thread = new Thread(accessLog::drain, "gopher-access-log");
+            thread.setDaemon(true);
+            thread.start();
+
+            // Give the writer a moment to get everything that's queued onto disk when we're shut down.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                accessLog.stopping = true;
+                try {
+                    thread.join(TimeUnit.SECONDS.toMillis(2));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            instance = accessLog;
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a record for the log. Never blocks.
+     * @param client the client's address.
+     * @param selector what they asked for.
+     * @param outcome what we sent them.
+     * @param bytes how many bytes we sent.
+     * @param nanos how long it took.
+     */
+    public void log(InetAddress client, String selector, RequestOutcome outcome, long bytes, long nanos) {
+        long position;
+        do {
+            position = tail.get();
+            if (position - head >= RING_SIZE) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(position, position + 1));
+
+        Record record = records[(int) (position & MASK)];
+        record.timestamp = System.currentTimeMillis();
+        record.client = client;
+        record.selector = selector;
+        record.outcome = outcome;
+        record.bytes = bytes;
+        record.nanos = nanos;
+        sequences.lazySet((int) (position & MASK), position);
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Runs on the writer thread until shutdown. Writes whatever is ready, flushing once the ring is empty, and naps
+     * when there's nothing to do.
+     */
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            long position = head;
+            int slot = (int) (position & MASK);
+            if (sequences.get(slot) != position) {
+                flush();
+                if (stopping) {
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            Record record = records[slot];
+            line.setLength(0);
+            line.append(record.timestamp).append('\t')
+                    .append(record.client == null ? "-" : record.client.getHostAddress()).append('\t')
+                    .append(record.outcome.getCode()).append('\t')
+                    .append(record.bytes).append('\t')
+                    .append(record.nanos / 1000).append('\t');
+            appendSelector(line, record.selector);
+            line.append('\n');
+            record.client = null;
+            record.selector = null;
+            head = position + 1;
+            write(line);
+        }
+    }
+
+    private void appendSelector(StringBuilder line, String selector) {
+        if (selector == null) {
+            line.append('-');
+            return;
+        }
+        for (int i = 0; i < selector.length(); i++) {
+            char c = selector.charAt(i);
+            line.append(c == '\t' ? ' ' : c);
+        }
+    }
+
+    private void write(CharSequence line) {
+        try {
+            if (writer == null || fileSize >= Config.getAccessLogMaxBytes()) {
+                rotate();
+            }
+            writer.append(line);
+            fileSize += line.length();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to write to the access log " + path + ": " + e.getMessage());
+            writer = null;
+        }
+    }
+
+    private void flush() {
+        try {
+            if (writer != null) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to write to the access log " + path + ": " + e.getMessage());
+            writer = null;
+        }
+    }
+
+    /**
+     * Closes the current file and opens a fresh one. Old files are shuffled along: access.log becomes access.log.1,
+     * access.log.1 becomes access.log.2 and so on, and the oldest one falls off the end.
+     */
+    private void rotate() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            int keep = Config.getAccessLogFiles();
+            for (int i = keep - 1; i >= 1; i--) {
+                Path older = Paths.get(path + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (keep > 0) {
+                Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(path);
+            }
+        }
+        OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        fileSize = Files.size(path);
+    }
+
+    /**
+     * One slot in the ring. Slots are reused, so a request only ever fills in fields, it never allocates a record.
+     */
+    private static class Record {
+        private long timestamp;
+        private InetAddress client;
+        private String selector;
+        private RequestOutcome outcome;
+        private long bytes;
+        private long nanos;
+    }
+}
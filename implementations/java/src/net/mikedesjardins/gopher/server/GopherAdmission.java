@@ -0,0 +1,252 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which connections we're willing to work on. There's a cap on how many connections can be in flight at
+ * once, and anything past it is turned away with a canned type 3 error (encoded once, the first time it's needed)
+ * instead of being queued up behind everyone else, as is any client over its GopherRateLimiter limits. Clients also
+ * have to send their selector within the read deadline, keep it under the length limit, and keep taking their
+ * response: a client that takes nothing for the write timeout is dropped. Every connection we give up on is counted
+ * by reason.
+ */
+public class GopherAdmission {
+    private static final Logger LOGGER = Logger.getLogger(GopherAdmission.class.getName());
+    private static GopherAdmission instance;
+
+    /**
+     * Why we gave up on a connection.
+     */
+    public enum Rejection {
+        BUSY,
+        SELECTOR_TOO_LONG,
+        READ_TIMEOUT,
+        WRITE_TIMEOUT,
+        RATE_LIMITED
+    }
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder[] rejections = new LongAdder[Rejection.values().length];
+    private final int maxConnections;
+    // Encoded the first time they're needed, so starting up doesn't have to wait for our host name.
+    private volatile ByteBuffer busy;
+    private volatile ByteBuffer selectorTooLong;
+    private volatile ByteBuffer rateLimited;
+    private final ScheduledExecutorService deadlines;
+
+    private GopherAdmission() {
+        maxConnections = Config.getMaxConnections();
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+        deadlines = Config.getWriteTimeout() > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gopher-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    public static synchronized GopherAdmission getInstance() {
+        if (instance == null) {
+            instance = new GopherAdmission();
+        }
+        return instance;
+    }
+
+    /**
+     * Claims a slot for a new connection. If this returns true, release() has to be called when the connection is
+     * done with.
+     * @return false if we're already at the limit, in which case the connection should be turned away.
+     */
+    public boolean admit() {
+        if (inFlight.incrementAndGet() > maxConnections && maxConnections > 0) {
+            inFlight.decrementAndGet();
+            rejected(Rejection.BUSY);
+            return false;
+        }
+        return true;
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    public void rejected(Rejection reason) {
+        rejections[reason.ordinal()].increment();
+    }
+
+    /**
+     * Sends the "server busy" error to a connection we didn't admit and closes it. The error is tiny, so it goes
+     * in one non-blocking write; if the client's socket can't even take that, it doesn't get an explanation.
+     * @param channel a freshly accepted connection.
+     */
+    public void turnAway(SocketChannel channel) {
+        if (busy == null) {
+            busy = error("Server's too busy right now, try again later!");
+        }
+        turnAway(channel, busy);
+    }
+
+    /**
+     * Checks a freshly accepted connection against the per-client rate limits (see GopherRateLimiter), and if
+     * it's over them, sends it the "slow down" error and closes it, the same way turnAway() does. A connection
+     * that's already gone by the time we ask who it's from is just closed, and doesn't count as a rejection.
+     * @param channel a freshly accepted connection.
+     * @return false if the connection was turned away (or was already gone).
+     */
+    public boolean withinRateLimit(SocketChannel channel) {
+        GopherRateLimiter limiter = GopherRateLimiter.getInstance();
+        if (limiter == null) {
+            return true;
+        }
+        SocketAddress remote;
+        try {
+            remote = channel.getRemoteAddress();
+        } catch (IOException e) {
+            remote = null;
+        }
+        if (!(remote instanceof InetSocketAddress)) {
+            close(channel);
+            return false;
+        }
+        if (limiter.tryAcquire(((InetSocketAddress) remote).getAddress())) {
+            return true;
+        }
+        rejected(Rejection.RATE_LIMITED);
+        if (rateLimited == null) {
+            rateLimited = error("You're making too many requests, slow down and try again in a bit!");
+        }
+        turnAway(channel, rateLimited);
+        return false;
+    }
+
+    /**
+     * Charges a client for what we sent it, if there's a per-client bandwidth limit.
+     * @param client the client's address.
+     * @param bytes how many bytes we sent it.
+     */
+    public void sent(InetAddress client, long bytes) {
+        GopherRateLimiter limiter = GopherRateLimiter.getInstance();
+        if (limiter != null && client != null) {
+            limiter.charge(client, bytes);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to close a connection: " + e.getMessage());
+        }
+    }
+
+    private void turnAway(SocketChannel channel, ByteBuffer error) {
+        try (channel) {
+            channel.configureBlocking(false);
+            channel.write(error.duplicate());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to turn away a connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the pre-encoded error for selectors over the length limit, ready to write.
+     */
+    public ByteBuffer selectorTooLong() {
+        if (selectorTooLong == null) {
+            selectorTooLong = error("That selector is too long!");
+        }
+        return selectorTooLong.duplicate();
+    }
+
+    /**
+     * Arranges for a blocking connection to be closed if it goes the write timeout without the writing thread
+     * getting anywhere. Closing the socket out from under the writing thread is what unsticks it.
+     * @param connection what to close.
+     * @return the deadline, which the writer pushes back with progress() and has to cancel() once it's done, or
+     * null if there's no write timeout.
+     */
+    public WriteDeadline writeDeadline(Closeable connection) {
+        if (deadlines == null) {
+            return null;
+        }
+        WriteDeadline deadline = new WriteDeadline(connection, TimeUnit.MILLISECONDS.toNanos(Config.getWriteTimeout()));
+        deadline.schedule(deadline.timeout);
+        return deadline;
+    }
+
+    public int getInFlight() { return inFlight.get(); }
+    public long getRejections(Rejection reason) { return rejections[reason.ordinal()].sum(); }
+
+    private static ByteBuffer error(String message) {
+        Config.Snapshot config = Config.current();
+        String error = "3 " + message + "\t\t" + config.getHost() + "\t" + config.getPort() + "\r\n";
+        return ByteBuffer.wrap(error.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * A write timeout that starts over whenever the writer gets somewhere. Writers only touch a volatile, and when
+     * the timer goes off it checks how long it's really been and, if the writer's been getting somewhere, goes back
+     * to sleep for the rest.
+     */
+    public class WriteDeadline {
+        private final Closeable connection;
+        private final long timeout;
+        private volatile long lastProgress = System.nanoTime();
+        private volatile ScheduledFuture<?> timer;
+        private volatile boolean done;
+
+        private WriteDeadline(Closeable connection, long timeout) {
+            this.connection = connection;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Says some of the response went out, so the client has as long again.
+         */
+        public void progress() {
+            lastProgress = System.nanoTime();
+        }
+
+        public void cancel() {
+            done = true;
+            timer.cancel(false);
+        }
+
+        private void schedule(long delay) {
+            timer = deadlines.schedule(this::check, delay, TimeUnit.NANOSECONDS);
+        }
+
+        private void check() {
+            if (done) {
+                return;
+            }
+            long idle = System.nanoTime() - lastProgress;
+            if (idle < timeout) {
+                schedule(timeout - idle);
+                return;
+            }
+            rejected(Rejection.WRITE_TIMEOUT);
+            try {
+                connection.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close a timed out connection: " + e.getMessage());
+            }
+        }
+    }
+}
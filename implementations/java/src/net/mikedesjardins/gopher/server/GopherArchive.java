@@ -0,0 +1,313 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * The central directory of a ZIP archive, which is the list of what's in it and where, read once so that listing
+ * its members and finding one doesn't mean reading the archive's index all over again (GopherArchiveCache keeps
+ * these around). We read it ourselves rather than with java.util.zip.ZipFile because ZipFile won't tell us where a
+ * member's bytes are in the archive, and for members that are stored rather than compressed that's all we need to
+ * send them straight from the file with transferTo().
+ *
+ * The names are kept sorted, so a member is a binary search away, and everything in a directory is one contiguous
+ * run of names. Archives don't have to have entries for their directories (lots don't), so a directory is anything
+ * that's a prefix of some member's name, up to a slash. Only stored and deflated members that aren't encrypted are
+ * listed, since those are the only ones we know how to send, and members with absolute names or ".." in them are
+ * left out (see isSafe()). Zip64 archives are fine, archives split over several files aren't.
+ */
+public class GopherArchive {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_LENGTH = 22;
+    private static final int MAX_COMMENT = 0xffff;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_LENGTH = 56;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_LENGTH = 46;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_LENGTH = 30;
+    private static final int ENCRYPTED_FLAG = 0x0001;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final long MAX_32 = 0xffffffffL;
+    // Names not flagged as UTF-8 are supposed to be in the original IBM PC code page.
+    private static final Charset CP437 = Charset.isSupported("IBM437") ? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1;
+
+    private final String[] names;
+    private final int[] methods;
+    private final long[] offsets;
+    private final long[] compressedSizes;
+    private final long[] sizes;
+
+    private GopherArchive(List<Entry> entries) {
+        entries.sort(Comparator.comparing(entry -> entry.name));
+        int count = entries.size();
+        names = new String[count];
+        methods = new int[count];
+        offsets = new long[count];
+        compressedSizes = new long[count];
+        sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries.get(i);
+            names[i] = entry.name;
+            methods[i] = entry.method;
+            offsets[i] = entry.offset;
+            compressedSizes[i] = entry.compressedSize;
+            sizes[i] = entry.size;
+        }
+    }
+
+    /**
+     * Reads an archive's central directory.
+     * @param path the archive.
+     * @return what's in it.
+     * @throws ZipException if it isn't an archive we can make sense of.
+     * @throws IOException if we can't read it.
+     */
+    public static GopherArchive read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            // The end of central directory record is at the very end, unless the archive has a comment, which can be
+            // up to 64K. So we read the most it could be and look for it backwards.
+            int tailLength = (int) Math.min(size, END_LENGTH + MAX_COMMENT);
+            long tailStart = size - tailLength;
+            ByteBuffer tail = read(channel, tailStart, tailLength);
+            int end = -1;
+            for (int i = tailLength - END_LENGTH; i >= 0; i--) {
+                if (tail.getInt(i) == END_SIGNATURE) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                throw new ZipException("Not a ZIP archive: " + path);
+            }
+            long count = tail.getShort(end + 10) & 0xffff;
+            long directorySize = tail.getInt(end + 12) & MAX_32;
+            long directoryOffset = tail.getInt(end + 16) & MAX_32;
+            if (count == 0xffff || directorySize == MAX_32 || directoryOffset == MAX_32) {
+                // Too big for the old record, so the real numbers are in the Zip64 one, which the locator just before
+                // the old record points at.
+                ByteBuffer locator = read(channel, tailStart + end - ZIP64_LOCATOR_LENGTH, ZIP64_LOCATOR_LENGTH);
+                if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                    ByteBuffer zip64End = read(channel, locator.getLong(8), ZIP64_END_LENGTH);
+                    if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                        throw new ZipException("Bad Zip64 end of central directory: " + path);
+                    }
+                    count = zip64End.getLong(32);
+                    directorySize = zip64End.getLong(40);
+                    directoryOffset = zip64End.getLong(48);
+                }
+            }
+            if (directorySize < 0 || directorySize > Integer.MAX_VALUE || directoryOffset < 0 || directoryOffset + directorySize > size) {
+                throw new ZipException("Bad central directory: " + path);
+            }
+            return new GopherArchive(parse(read(channel, directoryOffset, (int) directorySize), count, path));
+        }
+    }
+
+    /**
+     * Works through the central directory's records, one per member.
+     */
+    private static List<Entry> parse(ByteBuffer directory, long count, Path path) throws ZipException {
+        List<Entry> entries = new ArrayList<>((int) Math.min(count, 1 << 16));
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (position + CENTRAL_LENGTH > directory.limit() || directory.getInt(position) != CENTRAL_SIGNATURE) {
+                throw new ZipException("Bad central directory: " + path);
+            }
+            int flags = directory.getShort(position + 8) & 0xffff;
+            int method = directory.getShort(position + 10) & 0xffff;
+            long compressedSize = directory.getInt(position + 20) & MAX_32;
+            long size = directory.getInt(position + 24) & MAX_32;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long offset = directory.getInt(position + 42) & MAX_32;
+            int nameStart = position + CENTRAL_LENGTH;
+            int extraStart = nameStart + nameLength;
+            position = extraStart + extraLength + commentLength;
+            if (position > directory.limit()) {
+                throw new ZipException("Bad central directory: " + path);
+            }
+
+            // The Zip64 extra field has the real values of whichever of these didn't fit, in this order.
+            for (int extra = extraStart; extra + 4 <= extraStart + extraLength; ) {
+                int id = directory.getShort(extra) & 0xffff;
+                int length = directory.getShort(extra + 2) & 0xffff;
+                int field = extra + 4;
+                extra = field + length;
+                if (id != ZIP64_EXTRA || extra > extraStart + extraLength) {
+                    continue;
+                }
+                if (size == MAX_32 && field + 8 <= extra) {
+                    size = directory.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == MAX_32 && field + 8 <= extra) {
+                    compressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (offset == MAX_32 && field + 8 <= extra) {
+                    offset = directory.getLong(field);
+                }
+            }
+
+            if ((flags & ENCRYPTED_FLAG) != 0 || (method != STORED && method != DEFLATED)) {
+                continue;
+            }
+            byte[] bytes = new byte[nameLength];
+            directory.duplicate().position(nameStart).get(bytes);
+            String name = new String(bytes, (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : CP437);
+            if (!isSafe(name)) {
+                continue;
+            }
+            entries.add(new Entry(name, method, offset, compressedSize, size));
+        }
+        return entries;
+    }
+
+    /**
+     * Whether a member's name stays inside the archive. Absolute names and names with a ".." in them are how
+     * archives try to write outside of where they're unpacked, and no archive made in good faith has them.
+     */
+    static boolean isSafe(String name) {
+        if (name.isEmpty() || name.startsWith("/") || name.startsWith("\\") || (name.length() > 1 && name.charAt(1) == ':')) {
+            return false;
+        }
+        for (String part : name.split("[/\\\\]")) {
+            if (part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return how many members we listed, which is how GopherArchiveCache sizes things up.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param name a member's full name, like "poems/wasteland.txt".
+     * @return the member's index, or -1 if there isn't a member by that name (directories don't count).
+     */
+    public int find(String name) {
+        int index = Arrays.binarySearch(names, name);
+        return index >= 0 && !name.endsWith("/") ? index : -1;
+    }
+
+    /**
+     * @param directory a directory's name with its trailing slash, like "poems/", or "" for the top of the archive.
+     * @return true if there's anything in it (or, for the top, always).
+     */
+    public boolean isDirectory(String directory) {
+        if (directory.isEmpty()) {
+            return true;
+        }
+        int first = first(directory);
+        return first < names.length && names[first].startsWith(directory);
+    }
+
+    /**
+     * Adds what's directly in a directory to a menu: its members, and each of its subdirectories once.
+     * @param menu where the items go.
+     * @param directory the directory's name with its trailing slash, or "" for the top of the archive.
+     * @param selector the archive's selector. Items' selectors are this, a slash, and their names.
+     */
+    public void fill(CompactMenu menu, String directory, String selector) {
+        String lastDirectory = null;
+        for (int i = first(directory); i < names.length && names[i].startsWith(directory); i++) {
+            String rest = names[i].substring(directory.length());
+            int slash = rest.indexOf('/');
+            if (slash < 0 && !rest.isEmpty()) {
+                menu.addLocal(FileType.getFromFileName(rest), rest, selector + "/" + names[i]);
+            } else if (slash > 0) {
+                // Sorting keeps everything under a subdirectory together, so we only have to remember the last one.
+                String child = rest.substring(0, slash);
+                if (!child.equals(lastDirectory)) {
+                    menu.addLocal(FileType.DIRECTORY, child, selector + "/" + directory + child + "/");
+                    lastDirectory = child;
+                }
+            }
+        }
+    }
+
+    public String getName(int index) { return names[index]; }
+    public int getMethod(int index) { return methods[index]; }
+    public long getCompressedSize(int index) { return compressedSizes[index]; }
+    public long getSize(int index) { return sizes[index]; }
+
+    /**
+     * Finds where a member's bytes start, which we only know once we've read its local header (the extra field
+     * there can be a different length from the one in the central directory).
+     * @param channel the archive, open.
+     * @param index the member's index.
+     * @return the offset in the archive of the member's first byte.
+     * @throws IOException if we can't read the header, or it isn't one.
+     */
+    public long dataOffset(FileChannel channel, int index) throws IOException {
+        ByteBuffer header = read(channel, offsets[index], LOCAL_LENGTH);
+        if (header.getInt(0) != LOCAL_SIGNATURE) {
+            throw new ZipException("Bad local header for " + names[index]);
+        }
+        long offset = offsets[index] + LOCAL_LENGTH + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        if (offset + compressedSizes[index] > channel.size()) {
+            throw new ZipException("Truncated member " + names[index]);
+        }
+        return offset;
+    }
+
+    /**
+     * @return the index of the first name that's at or after prefix.
+     */
+    private int first(String prefix) {
+        int index = Arrays.binarySearch(names, prefix);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static class Entry {
+        private final String name;
+        private final int method;
+        private final long offset;
+        private final long compressedSize;
+        private final long size;
+
+        Entry(String name, int method, long offset, long compressedSize, long size) {
+            this.name = name;
+            this.method = method;
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the central directories of the ZIP archives people are browsing (see GopherArchive), keyed by the archive's
+ * path, so that going from menu to menu in a 50,000 member archive doesn't read all 50,000 entries every time. An
+ * entry is thrown away when the archive's modified time or size no longer match, and the least recently used ones
+ * are evicted when there are more than --archivecache members' worth cached.
+ *
+ * This is also where we work out whether a selector is in an archive in the first place: anything with ".zip/" in
+ * it, where what comes before the slash is a file.
+ */
+public class GopherArchiveCache {
+    private static final Logger LOGGER = Logger.getLogger(GopherArchiveCache.class.getName());
+    private static final GopherArchiveCache INSTANCE = new GopherArchiveCache();
+    private static final String EXTENSION = ".zip";
+
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long totalMembers;
+
+    public static GopherArchiveCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Resolves a selector that's inside an archive.
+     * @param selector the selector from the client.
+     * @return what to send, which is GopherNotFoundOutput if the archive's there but what's asked for isn't in it (or
+     * the archive's outside the root), or null if the selector isn't inside an archive at all, in which case it's up
+     * to the filesystem.
+     */
+    public GopherOutput lookup(String selector) {
+        int slash = archiveEnd(selector);
+        if (slash < 0) {
+            return null;
+        }
+        String archiveSelector = selector.substring(0, slash);
+        String member = selector.substring(slash + 1);
+        // The archive has to be inside the root just like anything else, whatever's in its name.
+        Path root = Paths.get(Config.current().getRoot()).toAbsolutePath().normalize();
+        String key = GopherNamespace.toKey(root, archiveSelector);
+        if (key == null) {
+            return new GopherNotFoundOutput(selector);
+        }
+        Path path = root.resolve(key);
+        GopherArchive archive;
+        long modified;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            modified = attributes.lastModifiedTime().toMillis();
+            archive = get(path, modified, attributes.size());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to read " + path + " as an archive: " + e.getMessage());
+            return null;
+        }
+
+        if (member.isEmpty() || member.endsWith("/")) {
+            return archive.isDirectory(member) ? new GopherArchiveOutput(selector, archiveSelector, path, modified, archive, member)
+                    : new GopherNotFoundOutput(selector);
+        }
+        int index = archive.find(member);
+        if (index >= 0) {
+            return new GopherArchiveOutput(selector, archiveSelector, path, modified, archive, index);
+        }
+        // Be nice about a directory without its slash.
+        if (archive.isDirectory(member + "/")) {
+            return new GopherArchiveOutput(selector, archiveSelector, path, modified, archive, member + "/");
+        }
+        return new GopherNotFoundOutput(selector);
+    }
+
+    /**
+     * Returns the cached central directory for an archive, reading it if we don't have it or if the archive has
+     * changed since we cached it.
+     * @param path the archive.
+     * @param modified the archive's current modified time in millis, used to tell whether our copy is stale.
+     * @param size the archive's current size, also used to tell whether our copy is stale.
+     * @return the archive's central directory.
+     * @throws IOException if it can't be read, or isn't a ZIP archive.
+     */
+    public GopherArchive get(Path path, long modified, long size) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.modified == modified && entry.size == size) {
+                hits.increment();
+                return entry.archive;
+            }
+        }
+        misses.increment();
+
+        // Read outside the lock. If two requests race to read the same archive, the last one in wins, which is fine.
+        GopherArchive archive = GopherArchive.read(path);
+        if (archive.size() <= Config.current().getArchiveCache()) {
+            put(path, new Entry(archive, modified, size));
+        }
+        return archive;
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public synchronized int size() { return entries.size(); }
+    public synchronized long getTotalMembers() { return totalMembers; }
+
+    private synchronized void put(Path path, Entry entry) {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            totalMembers -= previous.archive.size();
+        }
+        totalMembers += entry.archive.size();
+
+        // Evict from the least recently used end until we fit again.
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (totalMembers > Config.current().getArchiveCache() && iterator.hasNext()) {
+            totalMembers -= iterator.next().getValue().archive.size();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return the index of the slash after the first ".zip" in the selector that's followed by one, or -1 if there
+     * isn't one. Case doesn't matter.
+     */
+    static int archiveEnd(String selector) {
+        for (int slash = selector.indexOf('/'); slash >= 0; slash = selector.indexOf('/', slash + 1)) {
+            if (slash >= EXTENSION.length() && selector.regionMatches(true, slash - EXTENSION.length(), EXTENSION, 0, EXTENSION.length())) {
+                return slash;
+            }
+        }
+        return -1;
+    }
+
+    private static class Entry {
+        private final GopherArchive archive;
+        private final long modified;
+        private final long size;
+
+        Entry(GopherArchive archive, long modified, long size) {
+            this.archive = archive;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Something inside a ZIP archive: either a menu of one of its directories, or one of its members. Members that are
+ * stored as they are (which is what zip does with things that don't compress, like images) are sent straight from
+ * the archive with transferTo(), and deflated ones are inflated as they're sent. Text members get their line endings
+ * fixed like any other text file, and small members go in the GopherContentCache like small files do.
+ */
+public class GopherArchiveOutput extends GopherOutput {
+    private final String archiveSelector;
+    private final Path path;
+    private final long modified;
+    private final GopherArchive archive;
+    // For a menu, the directory it's of, and otherwise null.
+    private final String directory;
+    // For a member, which one it is, and otherwise -1.
+    private final int index;
+    private long length = -1;
+
+    /**
+     * A menu of one of the archive's directories.
+     * @param selector the selector from the client.
+     * @param archiveSelector the part of the selector that's the archive.
+     * @param path the archive.
+     * @param modified the archive's modified time, for the content cache.
+     * @param archive the archive's central directory.
+     * @param directory the directory's name with its trailing slash, or "" for the top of the archive.
+     */
+    public GopherArchiveOutput(String selector, String archiveSelector, Path path, long modified, GopherArchive archive, String directory) {
+        this(selector, archiveSelector, path, modified, archive, directory, -1);
+    }
+
+    /**
+     * One of the archive's members.
+     * @param index the member's index in the archive.
+     */
+    public GopherArchiveOutput(String selector, String archiveSelector, Path path, long modified, GopherArchive archive, int index) {
+        this(selector, archiveSelector, path, modified, archive, null, index);
+    }
+
+    private GopherArchiveOutput(String selector, String archiveSelector, Path path, long modified, GopherArchive archive,
+                                String directory, int index) {
+        super(selector);
+        this.archiveSelector = archiveSelector;
+        this.path = path;
+        this.modified = modified;
+        this.archive = archive;
+        this.directory = directory;
+        this.index = index;
+    }
+
+    public RequestOutcome getOutcome() {
+        return directory != null ? RequestOutcome.MENU : RequestOutcome.FILE;
+    }
+
+    @Override
+    public ByteBuffer buffer() throws IOException {
+        if (directory != null) {
+            return ByteBuffer.wrap(renderMenu());
+        }
+        if (Config.current().getContentCacheSize() <= 0) {
+            return null;
+        }
+        // A String, so it can't clash with a real file, which is keyed by its Path.
+        String key = path.toAbsolutePath().normalize() + "!/" + archive.getName(index);
+        return GopherContentCache.getInstance().get(key, modified, archive.getSize(index), () -> {
+            try (InputStream in = stream()) {
+                return in.readAllBytes();
+            }
+        });
+    }
+
+    /**
+     * Stored members that aren't text are just a range of the archive's bytes.
+     */
+    @Override
+    public FileChannel channel() throws IOException {
+        if (directory != null || archive.getMethod(index) != GopherArchive.STORED || isText()) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            channel.position(archive.dataOffset(channel, index));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        length = archive.getCompressedSize(index);
+        return channel;
+    }
+
+    @Override
+    public long channelLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream stream() throws IOException {
+        if (directory != null) {
+            return new ByteArrayInputStream(renderMenu());
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        InputStream in;
+        try {
+            in = new Range(channel, archive.dataOffset(channel, index), archive.getCompressedSize(index));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (archive.getMethod(index) == GopherArchive.DEFLATED) {
+            in = new Inflating(in);
+        }
+        return isText() ? new CrlfInputStream(in, selector) : in;
+    }
+
+    private byte[] renderMenu() {
+        CompactMenu menu = new CompactMenu();
+        archive.fill(menu, directory, archiveSelector);
+        return menu.toBytes();
+    }
+
+    private boolean isText() {
+        return FileType.getFromFileName(archive.getName(index).substring(archive.getName(index).lastIndexOf('/') + 1)) == FileType.TEXT;
+    }
+
+    /**
+     * Inflates a deflated member. Zip members are raw deflate data, without the zlib header and checksum, so the
+     * Inflater's in nowrap mode, and in that mode it can want one more byte than there is, so we make one up, the
+     * same as ZipFile does.
+     */
+    private static class Inflating extends InflaterInputStream {
+        private boolean endOfInput;
+
+        Inflating(InputStream in) {
+            super(in, new Inflater(true), GopherServerThread.BUFFER_SIZE);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (endOfInput) {
+                throw new EOFException("Unexpected end of a deflated archive member");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len < 0) {
+                buf[0] = 0;
+                len = 1;
+                endOfInput = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // We made the Inflater, so super.close() leaves it to us.
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * Reads one stretch of a file, and closes the file when it's closed.
+     */
+    private static class Range extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        Range(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int count = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)), position);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package net.mikedesjardins.gopher.server;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands out the scratch buffers requests need (for reading selectors, copying streams to sockets and converting
+ * text), and takes them back afterwards, so a busy server isn't making and throwing away tens of kilobytes of
+ * buffers for every connection. Buffers come in power-of-two size classes from MIN_SIZE to MAX_SIZE, and from one of
+ * two arenas: direct buffers, for anything that's filled straight from a channel, and heap buffers, for anything
+ * that has to go through an InputStream (which wants a byte[], and the JDK copies heap buffers through its own
+ * per-thread direct buffers on the way to a socket anyway). Anything bigger than MAX_SIZE is just allocated.
+ *
+ * Threads that stick around (pool workers, event loops, the scheduler) keep a few buffers of each class to
+ * themselves, so most of the time getting one and giving it back doesn't touch anything shared. They sign up for
+ * that with keepBuffers(), and give everything back when they're done. Any other thread, like the thread-per-
+ * connection engine's or a virtual thread, takes from and gives back to the arena's shared pool directly, since
+ * whatever it kept would die with it. The shared pool holds up to --bufferpool bytes, and past that buffers are left
+ * for the garbage collector. With --bufferpool=0 nothing's pooled, and every lease is a fresh buffer.
+ *
+ * A buffer has to be given back exactly once, with Lease.close(), and not used after that. To catch ones that never
+ * are, one lease in --bufferleaks gets watched (with a stack trace of where it was taken, which is why it's only
+ * some of them), and if it's garbage collected without being closed we log where it came from and count it on the
+ * stats page.
+ */
+public class GopherBufferPool {
+    private static final Logger LOGGER = Logger.getLogger(GopherBufferPool.class.getName());
+    static final int MIN_SIZE = 1024;
+    static final int MAX_SIZE = 64 * 1024;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+    // Each thread keeps up to this many bytes of each class, and at least one buffer.
+    private static final int THREAD_CACHE_BYTES = 64 * 1024;
+    private static final int THREAD_CACHE_MAX = 8;
+    private static volatile GopherBufferPool instance;
+    private static volatile boolean initialized;
+
+    private final Arena direct;
+    private final Arena heap;
+    private final boolean pooling;
+    private final int leakSampling;
+    // Only set for threads that asked for one with keepBuffers().
+    private final ThreadLocal<ThreadCache> threadCaches = new ThreadLocal<>();
+    private final ReferenceQueue<Lease> collected = new ReferenceQueue<>();
+    // Keeps the watchers themselves from being collected along with what they're watching.
+    private final Set<Watcher> watchers = ConcurrentHashMap.newKeySet();
+    private final LongAdder leaks = new LongAdder();
+
+    GopherBufferPool(long poolBytes, int leakSampling) {
+        this.direct = new Arena(true, poolBytes);
+        this.heap = new Arena(false, poolBytes);
+        this.pooling = poolBytes > 0;
+        this.leakSampling = leakSampling;
+    }
+
+    /**
+     * This gets called for every request, so it doesn't take a lock once it's set up.
+     */
+    public static GopherBufferPool getInstance() {
+        if (!initialized) {
+            synchronized (GopherBufferPool.class) {
+                if (!initialized) {
+                    instance = new GopherBufferPool(Config.getBufferPool(), Config.getBufferLeaks());
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param size the least the buffer has to hold.
+     * @return a lease on a cleared direct buffer that holds at least size bytes.
+     */
+    public Lease direct(int size) {
+        return acquire(direct, size);
+    }
+
+    /**
+     * @param size the least the buffer has to hold.
+     * @return a lease on a cleared heap buffer that holds at least size bytes. Its array() starts at offset 0.
+     */
+    public Lease heap(int size) {
+        return acquire(heap, size);
+    }
+
+    /**
+     * Wraps the whole life of a long-lived thread, so it keeps a cache of buffers while it runs and gives them back
+     * when it ends. For thread factories.
+     * @param body what the thread does.
+     * @return body, keeping buffers.
+     */
+    public static Runnable keepingBuffers(Runnable body) {
+        return () -> {
+            GopherBufferPool pool = getInstance();
+            pool.keepBuffers();
+            try {
+                body.run();
+            } finally {
+                pool.dropBuffers();
+            }
+        };
+    }
+
+    /**
+     * Lets the calling thread keep buffers to itself from now on. Only worth it for a thread that's going to handle
+     * a lot of requests, and it has to call dropBuffers() before it ends.
+     */
+    public void keepBuffers() {
+        if (pooling && threadCaches.get() == null) {
+            threadCaches.set(new ThreadCache());
+        }
+    }
+
+    /**
+     * Gives everything the calling thread kept back to the arenas, and stops it keeping any more.
+     */
+    public void dropBuffers() {
+        ThreadCache cache = threadCaches.get();
+        if (cache != null) {
+            threadCaches.remove();
+            cache.drain();
+        }
+    }
+
+    public long getLeaks() { return leaks.sum(); }
+    public long getPooledBytes() { return direct.pooledBytes() + heap.pooledBytes(); }
+    public long getAllocated() { return direct.allocated.sum() + heap.allocated.sum(); }
+
+    private Lease acquire(Arena arena, int size) {
+        reportLeaks();
+        int sizeClass = pooling ? sizeClass(size) : -1;
+        Lease lease = null;
+        if (sizeClass >= 0) {
+            ThreadCache cache = threadCaches.get();
+            if (cache != null) {
+                lease = cache.take(arena, sizeClass);
+            }
+            if (lease == null) {
+                lease = arena.take(sizeClass);
+            }
+        }
+        if (lease == null) {
+            arena.allocated.increment();
+            lease = new Lease(this, arena, sizeClass, sizeClass >= 0 ? MIN_SIZE << sizeClass : Math.max(1, size));
+        }
+        lease.buffer.clear();
+        lease.leased = true;
+        if (leakSampling > 0 && ThreadLocalRandom.current().nextInt(leakSampling) == 0) {
+            lease.watcher = new Watcher(lease, collected);
+            watchers.add(lease.watcher);
+        }
+        return lease;
+    }
+
+    private void release(Lease lease) {
+        if (!lease.leased) {
+            return;
+        }
+        lease.leased = false;
+        if (lease.watcher != null) {
+            watchers.remove(lease.watcher);
+            lease.watcher.clear();
+            lease.watcher = null;
+        }
+        if (lease.sizeClass < 0) {
+            return;
+        }
+        ThreadCache cache = threadCaches.get();
+        if (cache == null || !cache.give(lease)) {
+            lease.arena.give(lease);
+        }
+    }
+
+    /**
+     * Logs any watched leases that got collected without being closed.
+     */
+    private void reportLeaks() {
+        Reference<? extends Lease> reference;
+        while ((reference = collected.poll()) != null) {
+            Watcher watcher = (Watcher) reference;
+            if (watchers.remove(watcher)) {
+                leaks.increment();
+                LOGGER.log(Level.WARNING, "A " + watcher.capacity + " byte buffer was never given back to the pool. It was taken here:", watcher.taken);
+            }
+        }
+    }
+
+    /**
+     * @return the size class that holds size bytes, or -1 if it's too big to pool.
+     */
+    static int sizeClass(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        int rounded = Math.max(MIN_SIZE, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+        return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * A buffer on loan from the pool. Closing it gives it back, after which neither it nor its buffer should be
+     * touched again. Closing it twice is harmless.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final GopherBufferPool pool;
+        private final Arena arena;
+        private final int sizeClass;
+        private final int capacity;
+        private final ByteBuffer buffer;
+        private boolean leased;
+        private Watcher watcher;
+
+        private Lease(GopherBufferPool pool, Arena arena, int sizeClass, int capacity) {
+            this.pool = pool;
+            this.arena = arena;
+            this.sizeClass = sizeClass;
+            this.capacity = capacity;
+            this.buffer = arena.isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * @return the heap buffer's backing array.
+         */
+        public byte[] array() {
+            return buffer.array();
+        }
+
+        @Override
+        public void close() {
+            pool.release(this);
+        }
+    }
+
+    /**
+     * One of the two kinds of buffer, with a shared stack of spare buffers for each size class.
+     */
+    private static class Arena {
+        private final boolean isDirect;
+        private final Lease[][] spares = new Lease[CLASSES][];
+        private final int[] counts = new int[CLASSES];
+        private final LongAdder allocated = new LongAdder();
+
+        Arena(boolean isDirect, long poolBytes) {
+            this.isDirect = isDirect;
+            for (int sizeClass = 0; sizeClass < CLASSES; sizeClass++) {
+                long perClass = poolBytes / CLASSES / (MIN_SIZE << sizeClass);
+                spares[sizeClass] = new Lease[(int) Math.min(perClass, 1 << 16)];
+            }
+        }
+
+        Lease take(int sizeClass) {
+            Lease[] stack = spares[sizeClass];
+            synchronized (stack) {
+                if (counts[sizeClass] == 0) {
+                    return null;
+                }
+                Lease lease = stack[--counts[sizeClass]];
+                stack[counts[sizeClass]] = null;
+                return lease;
+            }
+        }
+
+        void give(Lease lease) {
+            Lease[] stack = spares[lease.sizeClass];
+            synchronized (stack) {
+                if (counts[lease.sizeClass] < stack.length) {
+                    stack[counts[lease.sizeClass]++] = lease;
+                }
+            }
+        }
+
+        long pooledBytes() {
+            long total = 0;
+            for (int sizeClass = 0; sizeClass < CLASSES; sizeClass++) {
+                synchronized (spares[sizeClass]) {
+                    total += (long) counts[sizeClass] * (MIN_SIZE << sizeClass);
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * The buffers one thread keeps to itself, so nothing else ever touches them.
+     */
+    private static class ThreadCache {
+        private final Lease[][][] leases = new Lease[2][CLASSES][];
+        private final int[][] counts = new int[2][CLASSES];
+
+        Lease take(Arena arena, int sizeClass) {
+            int which = arena.isDirect ? 0 : 1;
+            if (counts[which][sizeClass] == 0) {
+                return null;
+            }
+            Lease[] cache = leases[which][sizeClass];
+            Lease lease = cache[--counts[which][sizeClass]];
+            cache[counts[which][sizeClass]] = null;
+            return lease;
+        }
+
+        /**
+         * @return false if the thread's already keeping as many of these as it's allowed.
+         */
+        boolean give(Lease lease) {
+            int which = lease.arena.isDirect ? 0 : 1;
+            Lease[] cache = leases[which][lease.sizeClass];
+            if (cache == null) {
+                cache = new Lease[Math.max(1, Math.min(THREAD_CACHE_MAX, THREAD_CACHE_BYTES / lease.capacity))];
+                leases[which][lease.sizeClass] = cache;
+            }
+            if (counts[which][lease.sizeClass] == cache.length) {
+                return false;
+            }
+            cache[counts[which][lease.sizeClass]++] = lease;
+            return true;
+        }
+
+        /**
+         * Hands every buffer back to the arena it came from.
+         */
+        void drain() {
+            for (int which = 0; which < 2; which++) {
+                for (int sizeClass = 0; sizeClass < CLASSES; sizeClass++) {
+                    while (counts[which][sizeClass] > 0) {
+                        Lease[] cache = leases[which][sizeClass];
+                        Lease lease = cache[--counts[which][sizeClass]];
+                        cache[counts[which][sizeClass]] = null;
+                        lease.arena.give(lease);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Watches a lease for being collected while it's still out.
+     */
+    private static class Watcher extends PhantomReference<Lease> {
+        private final Throwable taken = new Throwable("Buffer taken");
+        private final int capacity;
+
+        Watcher(Lease lease, ReferenceQueue<Lease> queue) {
+            super(lease, queue);
+            this.capacity = lease.capacity;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the wire bytes of small, popular files in memory so we don't have to open and read them (and, for text,
+ * convert their line endings) on every request. The cache has a total byte budget and a per-entry cap, evicts the
+ * least recently used entries when it's over budget, and throws an entry away when the file's modified time or size
+ * no longer match what we cached. Entries live in direct ByteBuffers by default so they can go to a socket without
+ * another copy, and so a big cache doesn't bloat the heap. Files are keyed by their absolute, normalized Path, and
+ * anything that isn't a file of its own (like an archive member) by something that can't equal a Path.
+ */
+public class GopherContentCache {
+    private static final GopherContentCache INSTANCE = new GopherContentCache();
+
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long totalBytes;
+
+    public static GopherContentCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reads the content that should be sent for a file.
+     */
+    public interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    /**
+     * Returns the cached content for a file, loading it if we don't have it or if the file has changed since we
+     * cached it.
+     * @param key the file's Path, or the key of whatever else it is.
+     * @param modified the file's current modified time in millis, used to tell whether our copy is stale.
+     * @param size the file's current size, also used to tell whether our copy is stale.
+     * @param loader reads the content if we need it.
+     * @return a read-only buffer positioned at the start of the content, or null if the file is too big to cache.
+     * @throws IOException if the loader has a problem.
+     */
+    public ByteBuffer get(Object key, long modified, long size, Loader loader) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.modified == modified && entry.size == size) {
+                hits.increment();
+                return entry.content.duplicate();
+            }
+        }
+        // Files too big to cache don't count as misses, or they'd drag the hit ratio down for nothing.
+        if (size > Config.getContentCacheEntrySize()) {
+            return null;
+        }
+
+        // Load outside the lock. If two requests race to load the same file, the last one in wins, which is fine.
+        byte[] bytes = loader.load();
+        if (bytes.length > Config.getContentCacheEntrySize()) {
+            return null;
+        }
+        misses.increment();
+        ByteBuffer content = Config.isContentCacheDirect() ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+        content.put(bytes).flip();
+        content = content.asReadOnlyBuffer();
+        put(key, new Entry(content, modified, size));
+        return content.duplicate();
+    }
+
+    /**
+     * @return true if we've got an up to date copy of the file, so get() wouldn't have to load it.
+     */
+    public synchronized boolean contains(Object key, long modified, long size) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.modified == modified && entry.size == size;
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public synchronized int size() { return entries.size(); }
+    public synchronized long getTotalBytes() { return totalBytes; }
+
+    private synchronized void put(Object key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            totalBytes -= previous.content.capacity();
+        }
+        totalBytes += entry.content.capacity();
+
+        // Evict from the least recently used end until we fit in the budget again.
+        Iterator<Map.Entry<Object, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > Config.getContentCacheSize() && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().content.capacity();
+            iterator.remove();
+        }
+    }
+
+    private static class Entry {
+        private final ByteBuffer content;
+        private final long modified;
+        private final long size;
+
+        Entry(ByteBuffer content, long modified, long size) {
+            this.content = content;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+}
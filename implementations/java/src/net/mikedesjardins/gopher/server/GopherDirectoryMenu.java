@@ -0,0 +1,370 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The entries of a directory without a gophermap, in the order they go in its menu, read a few at a time so a
+ * directory of a few hundred thousand files doesn't need a few hundred thousand of anything in memory at once.
+ *
+ * Normally that's just the order the filesystem hands them to us in. With --menusort they're sorted by name. Names
+ * are sorted in memory up to SORT_RUN of them, and past that each SORT_RUN is sorted and spilled to a temporary
+ * file, and the files are merged as the menu is read.
+ *
+ * This is also where big directories get streamed (see stream()) and paged (see page()).
+ */
+public class GopherDirectoryMenu implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(GopherDirectoryMenu.class.getName());
+    static final int SORT_RUN = 50_000;
+    private static final int BATCH = 256;
+
+    private final Path directory;
+    private final DirectoryStream<Path> entries;
+    private final Iterator<String> names;
+    private final List<Run> runs = new ArrayList<>();
+
+    private GopherDirectoryMenu(Path directory) throws IOException {
+        this.directory = directory;
+        this.entries = Files.newDirectoryStream(directory, Files::isReadable);
+        try {
+            Iterator<String> unsorted = new NameIterator(entries.iterator());
+            this.names = Config.current().isMenuSort() ? sort(unsorted) : unsorted;
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts reading a directory's entries.
+     * @param directory the directory.
+     * @return the entries, which have to be closed.
+     * @throws IOException if we can't read the directory (or spill it to disk, if it's a big one being sorted).
+     */
+    public static GopherDirectoryMenu open(Path directory) throws IOException {
+        return new GopherDirectoryMenu(directory);
+    }
+
+    /**
+     * Adds the next entries to a menu.
+     * @param menu where the entries go.
+     * @param max the most entries to add.
+     * @return true if there are still more entries after these.
+     */
+    public boolean fill(CompactMenu menu, int max) {
+        for (int i = 0; i < max && names.hasNext(); i++) {
+            String name = names.next();
+            Path entry = directory.resolve(name);
+            menu.addLocal(GopherMenuFactory.directoryEntryType(entry), name, entry.toString());
+        }
+        return names.hasNext();
+    }
+
+    /**
+     * Skips entries.
+     * @param count how many to skip.
+     */
+    public void skip(long count) {
+        for (long i = 0; i < count && names.hasNext(); i++) {
+            names.next();
+        }
+    }
+
+    /**
+     * Streams the rest of the menu, a batch of entries at a time, so the first bytes can go out long before we've
+     * got to the end of the directory. The stream owns the entries from here on, and closes them when it's closed.
+     * @param head entries that have already been read, which go first.
+     * @return the menu, end marker and all.
+     */
+    public InputStream stream(CompactMenu head) {
+        return new MenuStream(head);
+    }
+
+    /**
+     * Renders one page of a directory's menu: its share of the entries, then links to the pages either side. The
+     * first page is the directory's own selector, the rest are the selector with "?page=N" on the end.
+     * @param directory the directory.
+     * @param selector the directory's selector, without any page.
+     * @param page the page number, starting at 1.
+     * @return the rendered page, or null if the directory doesn't have that many pages (see noSuchPage()). That way
+     * the menu cache won't keep it, so it only ever holds as many pages as the directory really has, whatever page
+     * numbers clients make up.
+     */
+    public static byte[] page(Path directory, String selector, int page) {
+        int pageSize = Config.current().getMenuPageSize();
+        CompactMenu menu = new CompactMenu();
+        try (GopherDirectoryMenu entries = open(directory)) {
+            entries.skip((long) (page - 1) * pageSize);
+            boolean more = entries.fill(menu, pageSize);
+            if (page > 1 && menu.size() == 0) {
+                return null;
+            }
+            if (page > 1) {
+                menu.addLocal(FileType.DIRECTORY, "Previous page", page == 2 ? selector : selector + "?page=" + (page - 1));
+            }
+            if (more) {
+                menu.addLocal(FileType.DIRECTORY, "Next page", selector + "?page=" + (page + 1));
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to list " + directory + ": " + e.getMessage());
+        }
+        return menu.toBytes();
+    }
+
+    /**
+     * What a client gets for a page past the end: an error and a link back to the first page.
+     * @param selector the directory's selector, without any page.
+     * @param page the page that isn't there.
+     * @return the rendered error.
+     */
+    public static byte[] noSuchPage(String selector, int page) {
+        CompactMenu menu = new CompactMenu();
+        menu.addLocal(FileType.ERROR, "There's no page " + page + " of this directory.", "");
+        menu.addLocal(FileType.DIRECTORY, "First page", selector);
+        return menu.toBytes();
+    }
+
+    /**
+     * Throws away the temporary files, if there were any.
+     */
+    @Override
+    public void close() {
+        for (Run run : runs) {
+            run.close();
+        }
+        try {
+            entries.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to close " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sorts names, in memory if there aren't too many, otherwise as a merge of sorted runs on disk.
+     */
+    private Iterator<String> sort(Iterator<String> unsorted) throws IOException {
+        List<String> run = new ArrayList<>();
+        while (unsorted.hasNext()) {
+            run.add(unsorted.next());
+            if (run.size() == SORT_RUN) {
+                runs.add(Run.spill(run));
+                run.clear();
+            }
+        }
+        run.sort(null);
+        if (runs.isEmpty()) {
+            return run.iterator();
+        }
+        if (!run.isEmpty()) {
+            runs.add(Run.spill(run));
+        }
+        LOGGER.log(Level.FINE, "Merging " + runs.size() + " sorted runs for " + directory);
+        return new MergeIterator(runs);
+    }
+
+    /**
+     * Turns directory entries into their names. If the directory can't be read partway through, the menu just
+     * ends there.
+     */
+    private class NameIterator implements Iterator<String> {
+        private final Iterator<Path> paths;
+
+        NameIterator(Iterator<Path> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return paths.hasNext();
+            } catch (DirectoryIteratorException e) {
+                LOGGER.log(Level.WARNING, "Unable to finish listing " + directory + ": " + e.getCause().getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        public String next() {
+            return paths.next().getFileName().toString();
+        }
+    }
+
+    /**
+     * A sorted run of names in a temporary file.
+     */
+    private static class Run implements Closeable {
+        private final Path file;
+        private final DataInputStream in;
+        private int remaining;
+        private String current;
+
+        private Run(Path file, int count) throws IOException {
+            this.file = file;
+            this.remaining = count;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        }
+
+        static Run spill(List<String> names) throws IOException {
+            names.sort(null);
+            Path file = Files.createTempFile("gopher-menu", ".run");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                for (String name : names) {
+                    out.writeUTF(name);
+                }
+            }
+            return new Run(file, names.size());
+        }
+
+        /**
+         * Moves on to the next name in the run.
+         * @return false if there isn't one.
+         */
+        boolean advance() {
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            try {
+                current = in.readUTF();
+                remaining--;
+                return true;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to read back " + file + ": " + e.getMessage());
+                remaining = 0;
+                current = null;
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to delete " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Merges sorted runs. Names are unique within a directory, but ties go to the earlier run anyway, which keeps
+     * the sort stable.
+     */
+    private static class MergeIterator implements Iterator<String> {
+        private final PriorityQueue<Run> queue;
+
+        MergeIterator(List<Run> runs) {
+            Comparator<Run> byName = Comparator.comparing(run -> run.current);
+            queue = new PriorityQueue<>(runs.size(), byName.thenComparingInt(runs::indexOf));
+            for (Run run : runs) {
+                if (run.advance()) {
+                    queue.add(run);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            Run run = queue.poll();
+            if (run == null) {
+                throw new NoSuchElementException();
+            }
+            String name = run.current;
+            if (run.advance()) {
+                queue.add(run);
+            }
+            return name;
+        }
+    }
+
+    /**
+     * Renders the menu a batch of entries at a time, as it's read.
+     */
+    private class MenuStream extends InputStream {
+        private final CompactMenu batch;
+        private ByteBuffer pending = ByteBuffer.allocate(GopherServerThread.BUFFER_SIZE).limit(0);
+        private boolean started;
+        private boolean more = names.hasNext();
+        private boolean ended;
+
+        MenuStream(CompactMenu head) {
+            this.batch = head;
+            render();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            while (!pending.hasRemaining()) {
+                if (ended) {
+                    return -1;
+                }
+                if (more) {
+                    batch.clear();
+                    more = fill(batch, BATCH);
+                    render();
+                } else {
+                    pending.clear();
+                    CompactMenu.renderMenuEnd(pending);
+                    pending.flip();
+                    ended = true;
+                }
+            }
+            int count = Math.min(len, pending.remaining());
+            pending.get(b, off, count);
+            return count;
+        }
+
+        private void render() {
+            if (batch.size() == 0) {
+                pending.limit(0);
+                return;
+            }
+            int length = batch.itemsLength() + 2;
+            if (pending.capacity() < length) {
+                pending = ByteBuffer.allocate(length);
+            }
+            pending.clear();
+            if (started) {
+                CompactMenu.renderLineEnd(pending);
+            }
+            batch.renderItems(pending);
+            pending.flip();
+            started = true;
+        }
+
+        @Override
+        public void close() {
+            GopherDirectoryMenu.this.close();
+        }
+    }
+}
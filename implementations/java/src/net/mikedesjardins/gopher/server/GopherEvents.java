@@ -0,0 +1,230 @@
+package net.mikedesjardins.gopher.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java Flight Recorder events for the phases of a request, so when one request in a few thousand is slow we can see
+ * where its time went. Start the server with something like
+ *
+ *     java -XX:StartFlightRecording=filename=gopher.jfr,settings=default ... Main
+ *
+ * and open the recording in JDK Mission Control, or run "jfr print --categories Gopher gopher.jfr". When there's no
+ * recording (or these events are turned off in it) an event costs us a small object and a couple of checks.
+ *
+ * Resolve, Parse, Convert and Write have a default threshold of THRESHOLD, so normally only the slow ones are
+ * recorded, which keeps recordings small enough to leave on in production. Set their threshold to 0 ms in your
+ * .jfc if you want every request. SlowRequest is recorded for any request that takes longer than --slowrequest from
+ * reading its selector to sending its last byte, with the time spent resolving, getting the response ready and
+ * writing it, so you get the breakdown even when the phase events themselves didn't make their thresholds.
+ */
+public class GopherEvents {
+    private static final String THRESHOLD = "10 ms";
+
+    /**
+     * Working out what a selector is, which means poking at the filesystem unless it's in the image or the namespace
+     * index.
+     */
+    @Name("net.mikedesjardins.gopher.Resolve")
+    @Label("Resolve Selector")
+    @Category("Gopher")
+    @Description("Working out what a selector refers to")
+    @Threshold(THRESHOLD)
+    @StackTrace(false)
+    static class Resolve extends Event {
+        @Label("Selector")
+        String selector;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("File Type")
+        String fileType;
+
+        void commit(String selector, GopherOutput result) {
+            end();
+            if (shouldCommit()) {
+                this.selector = selector;
+                this.outcome = RequestOutcome.of(result).name();
+                this.fileType = fileType(result);
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Reading a gophermap, or listing a directory that hasn't got one, into a menu.
+     */
+    @Name("net.mikedesjardins.gopher.Parse")
+    @Label("Parse Menu")
+    @Category("Gopher")
+    @Description("Parsing a gophermap or listing a directory")
+    @Threshold(THRESHOLD)
+    @StackTrace(false)
+    static class Parse extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Gophermap")
+        boolean gopherMap;
+
+        @Label("Items")
+        int items;
+
+        @Label("Menu Size")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Fixing the line endings of a text file. The event lasts from opening the file to closing it, which for a
+     * streamed file includes waiting on the client, so the time actually spent converting is in its own field.
+     */
+    @Name("net.mikedesjardins.gopher.Convert")
+    @Label("Convert Line Endings")
+    @Category("Gopher")
+    @Description("Converting a text file to CRLF line endings")
+    @Threshold(THRESHOLD)
+    @StackTrace(false)
+    static class Convert extends Event {
+        @Label("Selector")
+        String selector;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytes;
+
+        @Label("Conversion Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long conversionTime;
+    }
+
+    /**
+     * Sending a response. Like Convert, the event covers the whole send, waits and all, and the time spent in the
+     * writes themselves is in its own field.
+     */
+    @Name("net.mikedesjardins.gopher.Write")
+    @Label("Write Response")
+    @Category("Gopher")
+    @Description("Sending a response to the client")
+    @Threshold(THRESHOLD)
+    @StackTrace(false)
+    static class Write extends Event {
+        @Label("Selector")
+        String selector;
+
+        @Label("File Type")
+        String fileType;
+
+        @Label("How")
+        @Description("buffer, transferTo or stream")
+        String method;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Write Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long writeTime;
+
+        void commit(GopherOutput result, String method, long bytes, long writeNanos) {
+            end();
+            if (shouldCommit()) {
+                this.selector = result.selector;
+                this.fileType = fileType(result);
+                this.method = method;
+                this.bytes = bytes;
+                this.writeTime = writeNanos;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A request that took longer than --slowrequest, with where the time went.
+     */
+    @Name("net.mikedesjardins.gopher.SlowRequest")
+    @Label("Slow Request")
+    @Category("Gopher")
+    @Description("A request that took longer than --slowrequest")
+    @StackTrace(false)
+    static class SlowRequest extends Event {
+        @Label("Selector")
+        String selector;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("File Type")
+        String fileType;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Resolve Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long resolveTime;
+
+        @Label("Render Time")
+        @Description("Getting the response ready to send, including any wait for the scheduler")
+        @Timespan(Timespan.NANOSECONDS)
+        long renderTime;
+
+        @Label("Write Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long writeTime;
+
+        /**
+         * Records the request if it was slow enough.
+         * @param result what we sent back.
+         * @param started when we had the selector.
+         * @param resolved when we'd worked out what it was.
+         * @param bytes how many bytes we sent.
+         * @param writeNanos how long we spent writing them.
+         */
+        void commit(GopherOutput result, long started, long resolved, long bytes, long writeNanos) {
+            long total = System.nanoTime() - started;
+            end();
+            if (total >= TimeUnit.MILLISECONDS.toNanos(Config.current().getSlowRequest()) && shouldCommit()) {
+                this.selector = result.selector;
+                this.outcome = RequestOutcome.of(result).name();
+                this.fileType = fileType(result);
+                this.bytes = bytes;
+                this.resolveTime = resolved - started;
+                this.writeTime = writeNanos;
+                this.renderTime = Math.max(0, total - resolveTime - writeNanos);
+                commit();
+            }
+        }
+    }
+
+    /**
+     * @return the Gopher item type of what we sent back, as best we can tell without asking the filesystem.
+     */
+    static String fileType(GopherOutput result) {
+        switch (RequestOutcome.of(result)) {
+            case MENU:
+            case SEARCH:
+                return FileType.DIRECTORY.name();
+            case FILE:
+                return FileType.getFromFileName(result.selector.substring(result.selector.lastIndexOf('/') + 1)).name();
+            case STATS:
+                return FileType.TEXT.name();
+            case NOT_FOUND:
+                return FileType.ERROR.name();
+            default:
+                return null;
+        }
+    }
+}
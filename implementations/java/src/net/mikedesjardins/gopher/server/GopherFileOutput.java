@@ -1,38 +1,135 @@
 package net.mikedesjardins.gopher.server;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
 
 /**
  * Emits a stream that corresponds to a file that the client requested.
  */
 public class GopherFileOutput extends GopherOutput {
     private static final Logger LOGGER = Logger.getLogger(GopherFileOutput.class.getName());
+    private static final Set<FileType> ZERO_COPY_TYPES = EnumSet.of(
+            FileType.BINARY, FileType.IMAGE, FileType.GIF, FileType.ARCHIVE, FileType.SOUND, FileType.VIDEO, FileType.DOC);
+
+    // The file we checked the selector against, which is the one we send.
+    private final Path path;
+    private final GopherNamespace.Node node;
+    private GopherMappedFiles.MappedFile mappedFile;
+    private long modified;
+    private long size;
 
     public GopherFileOutput(String selector) {
+        this(selector, Paths.get(Config.current().getRoot(), selector), null);
+    }
+
+    /**
+     * @param selector the selector from the client.
+     * @param path the file the selector was resolved to.
+     */
+    public GopherFileOutput(String selector, Path path) {
+        this(selector, path, null);
+    }
+
+    /**
+     * If we already know about the file from the GopherNamespace we can use what it knows instead of asking the
+     * filesystem again.
+     * @param selector the selector from the client.
+     * @param node the file's entry in the GopherNamespace.
+     */
+    public GopherFileOutput(String selector, GopherNamespace.Node node) {
+        this(selector, node.getPath(), node);
+    }
+
+    private GopherFileOutput(String selector, Path path, GopherNamespace.Node node) {
         super(selector);
+        this.path = path;
+        this.node = node;
+    }
+
+    /**
+     * Small files come out of the GopherContentCache, already converted to their wire format. With --mapthreshold,
+     * big binary-ish files come out of a mapping shared through GopherMappedFiles, which we hang on to until close().
+     * Otherwise they're left to channel().
+     */
+    @Override
+    public ByteBuffer buffer() throws IOException {
+        loadAttributes();
+        Config.Snapshot config = Config.current();
+        if (config.getContentCacheSize() > 0) {
+            ByteBuffer cached = GopherContentCache.getInstance().get(path.toAbsolutePath().normalize(), modified, size, () -> {
+                try (InputStream in = stream()) {
+                    return in == null ? new byte[0] : in.readAllBytes();
+                }
+            });
+            if (cached != null) {
+                return cached;
+            }
+        }
+        if (config.getMapThreshold() > 0 && size >= config.getMapThreshold() && ZERO_COPY_TYPES.contains(fileType())) {
+            mappedFile = GopherMappedFiles.getInstance().acquire(path.toAbsolutePath().normalize(), modified, size);
+            if (mappedFile != null) {
+                return mappedFile.slice();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the content cache already has an up to date copy of the file, so buffer() wouldn't have to
+     * read it.
+     * @throws IOException if we can't find out about the file.
+     */
+    boolean isCached() throws IOException {
+        if (Config.current().getContentCacheSize() <= 0) {
+            return false;
+        }
+        loadAttributes();
+        return GopherContentCache.getInstance().contains(path.toAbsolutePath().normalize(), modified, size);
+    }
+
+    @Override
+    public void close() {
+        if (mappedFile != null) {
+            mappedFile.release();
+            mappedFile = null;
+        }
+    }
+
+    /**
+     * Binary-ish files are sent exactly as they are on disk, so we hand those back as a FileChannel and let the
+     * caller transferTo() the socket (which is sendfile on Linux).
+     */
+    @Override
+    public FileChannel channel() throws IOException {
+        if (ZERO_COPY_TYPES.contains(fileType())) {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+        return null;
     }
 
     @Override
     public InputStream stream() {
-        Path path = selectorToPath();
-        if (isTextFile(path)) {
+        if (isTextFile()) {
             // We treat text files slightly differently. Because we want to ensure that the carriage-return follows
-            // the MS-DOS "line feed plus carriage return" pattern as dictated by the Gopher protocol, we instead read
-            // the file content and carefully convert all the line endings as needed before streaming. I'm not really
-            // certain how necessary this is tbh.
-            StringBuffer sb = new StringBuffer();
-            try (Stream<String> stream = Files.lines(path)) {
-                stream.forEach((line) -> sb.append(line.stripTrailing()).append("\r\n"));
+            // the MS-DOS "line feed plus carriage return" pattern as dictated by the Gopher protocol, we run the
+            // file through a CrlfInputStream, which carefully converts all the line endings as it streams. I'm not
+            // really certain how necessary this is tbh.
+            try {
+                return new CrlfInputStream(Files.newInputStream(path), selector);
             } catch (IOException e) {
                 LOGGER.log(Level.WARNING, "Unable to open: " + path.toString());
+                return InputStream.nullInputStream();
             }
-            return new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8));
         }
         try {
             return new FileInputStream(path.toFile());
@@ -43,12 +140,28 @@ public class GopherFileOutput extends GopherOutput {
         return null;
     }
 
-    private boolean isTextFile(Path path) {
-        int index = path.getFileName().toString().lastIndexOf('.');
-        if (index > 0) {
-            String extension = path.getFileName().toString().substring(index + 1);
-            return FileType.getFromExtension(extension) == FileType.TEXT;
+    /**
+     * Gets the file's modified time and size, from the GopherNamespace if we can and the filesystem if we can't.
+     */
+    private void loadAttributes() throws IOException {
+        if (node != null) {
+            modified = node.getModified();
+            size = node.getSize();
+        } else {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            modified = attributes.lastModifiedTime().toMillis();
+            size = attributes.size();
+        }
+    }
+
+    private boolean isTextFile() {
+        return fileType() == FileType.TEXT;
+    }
+
+    private FileType fileType() {
+        if (node != null) {
+            return node.getType();
         }
-        return false;
+        return FileType.getFromFileName(path.getFileName().toString());
     }
 }
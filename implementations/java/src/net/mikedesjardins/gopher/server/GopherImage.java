@@ -0,0 +1,267 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A whole gopher root compiled into one file: every menu already rendered, every text file already converted to
+ * CRLF, and every binary file as is, with a hash table of selectors up front. The server maps the image and answers
+ * every request out of it without touching the filesystem, so there's nothing to scan at startup and every response
+ * is just a slice of the mapping.
+ *
+ * The layout (all big endian) is a 32 byte header (magic, version, slot count, entry count, port, host length),
+ * the host, the slot table, then the entries. A slot is the offset of an entry, or 0 if it's empty. An entry is its
+ * key's hash, the key's length, its RequestOutcome code and its content length, then the key and the content. Keys
+ * are selectors relative to the root, the same way GopherNamespace does them ("whitman", not "/whitman/").
+ *
+ * Menus have the host and port baked in when the image is compiled, so compile with the --host and --port you're
+ * going to serve with. Images are mapped in one piece, so they top out at 2 GB.
+ */
+public class GopherImage {
+    private static final Logger LOGGER = Logger.getLogger(GopherImage.class.getName());
+    private static final byte[] MAGIC = "GOPHIMG\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_HEADER_SIZE = 16;
+    private static final Path BASE = Paths.get("/image");
+    private static GopherImage instance;
+
+    private final ByteBuffer image;
+    private final int slotsOffset;
+    private final int mask;
+
+    private GopherImage(ByteBuffer image) throws IOException {
+        this.image = image;
+        byte[] magic = new byte[MAGIC.length];
+        for (int i = 0; i < MAGIC.length; i++) {
+            magic[i] = image.get(i);
+        }
+        if (!Arrays.equals(magic, MAGIC) || image.getInt(8) != VERSION) {
+            throw new IOException("Not a gopher image (or not one this version understands).");
+        }
+        int slots = image.getInt(12);
+        int port = image.getInt(20);
+        byte[] host = new byte[image.getInt(24)];
+        for (int i = 0; i < host.length; i++) {
+            host[i] = image.get(HEADER_SIZE + i);
+        }
+        this.slotsOffset = align(HEADER_SIZE + host.length);
+        this.mask = slots - 1;
+        String compiledFor = new String(host, StandardCharsets.UTF_8) + ":" + port;
+        if (!compiledFor.equals(Config.getHost() + ":" + Config.getPort())) {
+            LOGGER.log(Level.WARNING, "The image was compiled for " + compiledFor + ", so that's what its menus point at.");
+        }
+        LOGGER.log(Level.INFO, "Serving " + image.getInt(16) + " entries from the image");
+    }
+
+    /**
+     * @return the image named by Config.getImage(), mapped the first time this is called.
+     */
+    public static synchronized GopherImage getInstance() {
+        if (instance == null) {
+            try (FileChannel channel = FileChannel.open(Paths.get(Config.getImage()), StandardOpenOption.READ)) {
+                instance = new GopherImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open the image " + Config.getImage(), e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Looks up a selector.
+     * @param selector the selector from the client.
+     * @return the output for it, or null if it isn't in the image.
+     */
+    public GopherOutput lookup(String selector) {
+        String key = toKey(selector);
+        if (key == null) {
+            return null;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = key.hashCode();
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = (int) image.getLong(slotsOffset + slot * 8);
+            if (entry == 0) {
+                return null;
+            }
+            if (image.getInt(entry) == hash && keyMatches(entry, keyBytes)) {
+                int contentOffset = entry + ENTRY_HEADER_SIZE + keyBytes.length;
+                ByteBuffer content = image.duplicate();
+                content.position(contentOffset).limit(contentOffset + image.getInt(entry + 12));
+                return new GopherImageOutput(selector, content.slice(), outcome((char) image.getInt(entry + 8)));
+            }
+        }
+    }
+
+    private boolean keyMatches(int entry, byte[] keyBytes) {
+        if (image.getInt(entry + 4) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (image.get(entry + ENTRY_HEADER_SIZE + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static RequestOutcome outcome(char code) {
+        return code == RequestOutcome.MENU.getCode() ? RequestOutcome.MENU : RequestOutcome.FILE;
+    }
+
+    /**
+     * Compiles everything under a root into an image.
+     * @param root the gopher root.
+     * @param target where to write the image. Anything already there is replaced.
+     * @throws IOException if we can't read the root or write the image, or the image would be too big.
+     */
+    public static void compile(Path root, Path target) throws IOException {
+        Path normalizedRoot = root.toAbsolutePath().normalize();
+        List<Path> paths = new ArrayList<>();
+        Files.walkFileTree(normalizedRoot, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                if (!Files.isReadable(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                paths.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && Files.isReadable(file)) {
+                    paths.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // Keep the table at most half full, so probes stay short.
+        int slots = Integer.highestOneBit(Math.max(2, paths.size()) * 2 - 1) << 1;
+        byte[] host = Config.getHostBytes();
+        int slotsOffset = align(HEADER_SIZE + host.length);
+        long[] table = new long[slots];
+
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = slotsOffset + (long) slots * 8;
+            for (Path path : paths) {
+                String key = normalizedRoot.relativize(path).toString();
+                boolean directory = Files.isDirectory(path);
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                long contentOffset = position + ENTRY_HEADER_SIZE + keyBytes.length;
+                long contentLength;
+                if (directory) {
+                    // Render the menu the same way GopherMenuOutput would for this selector.
+                    byte[] menu = GopherMenuFactory.createCompact(Paths.get(Config.getRoot(), key)).toBytes();
+                    contentLength = writeFully(out, ByteBuffer.wrap(menu), contentOffset);
+                } else if (FileType.getFromFileName(path.getFileName().toString()) == FileType.TEXT) {
+                    try (InputStream in = new CrlfInputStream(Files.newInputStream(path))) {
+                        contentLength = copy(in, out, contentOffset);
+                    }
+                } else {
+                    try (InputStream in = Files.newInputStream(path)) {
+                        contentLength = copy(in, out, contentOffset);
+                    }
+                }
+                if (contentOffset + contentLength > Integer.MAX_VALUE) {
+                    throw new IOException("The image would be bigger than 2 GB, which is as big as we can map.");
+                }
+
+                ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_SIZE + keyBytes.length).order(ByteOrder.BIG_ENDIAN);
+                entry.putInt(key.hashCode())
+                        .putInt(keyBytes.length)
+                        .putInt(directory ? RequestOutcome.MENU.getCode() : RequestOutcome.FILE.getCode())
+                        .putInt((int) contentLength)
+                        .put(keyBytes)
+                        .flip();
+                writeFully(out, entry, position);
+
+                int slot = key.hashCode() & (slots - 1);
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & (slots - 1);
+                }
+                table[slot] = position;
+                position = contentOffset + contentLength;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(slotsOffset);
+            header.put(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(slots)
+                    .putInt(paths.size())
+                    .putInt(Config.getPort())
+                    .putInt(host.length)
+                    .putInt(0)
+                    .put(host)
+                    .clear();
+            writeFully(out, header, 0);
+            ByteBuffer slotTable = ByteBuffer.allocate(slots * 8);
+            slotTable.asLongBuffer().put(table);
+            writeFully(out, slotTable, slotsOffset);
+            LOGGER.log(Level.INFO, "Compiled " + paths.size() + " entries from " + normalizedRoot + " into " + target
+                    + " (" + position + " bytes)");
+        }
+    }
+
+    /**
+     * Lexically turns a selector into a key, the same way GopherNamespace does.
+     * @return the key, or null if the selector doesn't stay inside the root.
+     */
+    private static String toKey(String selector) {
+        try {
+            Path path = BASE.resolve(selector.replaceFirst("^/+", "")).normalize();
+            return path.startsWith(BASE) ? BASE.relativize(path).toString() : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static long copy(InputStream in, FileChannel out, long position) throws IOException {
+        byte[] bytes = new byte[GopherServerThread.BUFFER_SIZE];
+        long total = 0;
+        int count;
+        while ((count = in.read(bytes)) > 0) {
+            total += writeFully(out, ByteBuffer.wrap(bytes, 0, count), position + total);
+        }
+        return total;
+    }
+
+    private static long writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        long total = 0;
+        while (buffer.hasRemaining()) {
+            total += out.write(buffer, position + total);
+        }
+        return total;
+    }
+
+    private static int align(int offset) {
+        return (offset + 7) & ~7;
+    }
+}
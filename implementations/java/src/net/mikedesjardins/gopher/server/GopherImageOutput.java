@@ -0,0 +1,36 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A response served out of a GopherImage. The content was rendered when the image was compiled, so all we do is
+ * hand over the slice of the mapping it lives in.
+ */
+public class GopherImageOutput extends GopherOutput {
+    private final ByteBuffer content;
+    private final RequestOutcome outcome;
+
+    public GopherImageOutput(String selector, ByteBuffer content, RequestOutcome outcome) {
+        super(selector);
+        this.content = content;
+        this.outcome = outcome;
+    }
+
+    public RequestOutcome getOutcome() {
+        return outcome;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return content.duplicate();
+    }
+
+    @Override
+    public InputStream stream() {
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+}
@@ -0,0 +1,62 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens the listening sockets for a ConnectionEngine. Normally that's just one, but in multi-acceptor mode it's one
+ * per acceptor, all bound to the same port with SO_REUSEPORT, and the kernel hands each new connection to one of
+ * them. That way several threads can be accepting at once without fighting over a single socket.
+ */
+public class GopherListener {
+    private static final Logger LOGGER = Logger.getLogger(GopherListener.class.getName());
+
+    /**
+     * @return how many listening sockets Config asks for.
+     */
+    public static int count() {
+        return Config.isMultiAccept() ? Math.max(1, Config.getAcceptors()) : 1;
+    }
+
+    /**
+     * Opens and binds the listening sockets. If the platform doesn't do SO_REUSEPORT (it's a Linux and BSD thing)
+     * we say so and open just one.
+     * @param port the port to listen on.
+     * @param count how many sockets we'd like.
+     * @return the bound sockets, in blocking mode.
+     * @throws IOException if we can't bind.
+     */
+    public static List<ServerSocketChannel> open(int port, int count) throws IOException {
+        List<ServerSocketChannel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channels.add(channel);
+                if (count > 1) {
+                    if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        LOGGER.log(Level.WARNING, "SO_REUSEPORT isn't supported here, so there's only going to be one acceptor.");
+                        channel.bind(new InetSocketAddress(port));
+                        return channels;
+                    }
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(port));
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel channel : channels) {
+                channel.close();
+            }
+            throw e;
+        }
+        if (count > 1) {
+            LOGGER.log(Level.INFO, "Accepting on " + count + " sockets");
+        }
+        return channels;
+    }
+}
@@ -0,0 +1,179 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The large file tier. Files at or above a size threshold are memory-mapped once and the mapping is shared by every
+ * client downloading them at the same time, so a hundred people grabbing the same big archive costs one mapping
+ * rather than a hundred file handles all fighting over reads. Mappings are reference counted. Once nobody is using a
+ * mapping it's unmapped when it has sat idle for a while, or right away if the file has changed underneath it.
+ */
+public class GopherMappedFiles {
+    private static final Logger LOGGER = Logger.getLogger(GopherMappedFiles.class.getName());
+    private static final GopherMappedFiles INSTANCE = new GopherMappedFiles();
+    private static final Unmapper UNMAPPER = new Unmapper();
+
+    private final Map<Path, MappedFile> mappings = new HashMap<>();
+
+    private GopherMappedFiles() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gopher-mapped-file-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, Config.getMapIdleSeconds() / 2);
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.SECONDS);
+    }
+
+    public static GopherMappedFiles getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets a reference to the mapping of a file, mapping it if we need to. Every successful call has to be paired
+     * with a call to MappedFile.release().
+     * @param path the file.
+     * @param modified the file's current modified time in millis.
+     * @param size the file's current size.
+     * @return the mapping, or null if the file is too big to map in one piece.
+     * @throws IOException if the file can't be mapped.
+     */
+    public synchronized MappedFile acquire(Path path, long modified, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            return null;
+        }
+        MappedFile mappedFile = mappings.get(path);
+        if (mappedFile != null && (mappedFile.modified != modified || mappedFile.size != size)) {
+            // The file changed, so this mapping is on its way out. It goes as soon as its last user is done.
+            mappings.remove(path);
+            mappedFile.stale = true;
+            mappedFile.unmapIfUnused();
+            mappedFile = null;
+        }
+        if (mappedFile == null) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                mappedFile = new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), modified, size);
+            }
+            mappings.put(path, mappedFile);
+        }
+        mappedFile.references++;
+        return mappedFile;
+    }
+
+    public synchronized int size() {
+        return mappings.size();
+    }
+
+    public synchronized long getMappedBytes() {
+        return mappings.values().stream().mapToLong(mappedFile -> mappedFile.size).sum();
+    }
+
+    /**
+     * Unmaps anything nobody has used for a while.
+     */
+    private synchronized void sweep() {
+        long cutoff = System.nanoTime() - TimeUnit.SECONDS.toNanos(Config.getMapIdleSeconds());
+        Iterator<MappedFile> iterator = mappings.values().iterator();
+        while (iterator.hasNext()) {
+            MappedFile mappedFile = iterator.next();
+            if (mappedFile.references == 0 && mappedFile.lastReleased < cutoff) {
+                iterator.remove();
+                mappedFile.stale = true;
+                mappedFile.unmapIfUnused();
+            }
+        }
+    }
+
+    /**
+     * One shared mapping of a file.
+     */
+    public class MappedFile {
+        private final MappedByteBuffer buffer;
+        private final long modified;
+        private final long size;
+        private int references;
+        private long lastReleased = System.nanoTime();
+        private boolean stale;
+        private boolean unmapped;
+
+        MappedFile(MappedByteBuffer buffer, long modified, long size) {
+            this.buffer = buffer;
+            this.modified = modified;
+            this.size = size;
+        }
+
+        /**
+         * @return a read-only view of the whole file with its own position and limit.
+         */
+        public ByteBuffer slice() {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * Hands back a reference we got from acquire(). Don't touch the slice after this.
+         */
+        public void release() {
+            synchronized (GopherMappedFiles.this) {
+                references--;
+                lastReleased = System.nanoTime();
+                unmapIfUnused();
+            }
+        }
+
+        private void unmapIfUnused() {
+            if (stale && references == 0 && !unmapped) {
+                unmapped = true;
+                UNMAPPER.unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * Java doesn't give us a supported way to unmap a file; normally the mapping sticks around until the buffer is
+     * garbage collected. sun.misc.Unsafe.invokeCleaner() will do it on the spot, and since we know nobody is using
+     * the mapping any more (that's what the reference count is for) it's safe to. If we can't get at it we just leave
+     * the mapping for the garbage collector.
+     */
+    private static class Unmapper {
+        private Object unsafe;
+        private Method invokeCleaner;
+
+        Unmapper() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.log(Level.INFO, "Can't unmap files explicitly, leaving that to the garbage collector.");
+            }
+        }
+
+        void unmap(MappedByteBuffer buffer) {
+            if (invokeCleaner == null) {
+                return;
+            }
+            try {
+                invokeCleaner.invoke(unsafe, buffer);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.WARNING, "Unable to unmap a file.", e);
+            }
+        }
+    }
+}
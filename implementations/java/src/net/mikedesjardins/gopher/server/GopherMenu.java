@@ -22,6 +22,14 @@ public class GopherMenu {
     }
 
     public InputStream stream() {
+        return new ByteArrayInputStream(toBytes());
+    }
+
+    /**
+     * Renders the menu into the exact bytes that go out on the wire.
+     * @return the encoded menu, including the terminating period line.
+     */
+    public byte[] toBytes() {
         List<String> lines =
                 gopherMenuItems
                         .stream()
@@ -29,6 +37,6 @@ public class GopherMenu {
                         .map(GopherMenuItem::toString)
                         .collect(Collectors.toList());
         String emit = String.join("\r\n", lines) + "\r\n.\r\n";
-        return new ByteArrayInputStream(emit.getBytes(StandardCharsets.UTF_8));
+        return emit.getBytes(StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,260 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the rendered bytes of menus, keyed by the directory they were rendered for (and the page, for paged
+ * directories). Every directory we cache is registered with a WatchService, and any change in it (the gophermap
+ * being edited, files coming or going) throws its menu and all its pages away so the next request renders them
+ * fresh. Directories are keyed by their normalized absolute path, so "poems", "./poems" and "/poems/" are all the
+ * same menu, and the least recently used directories are evicted when there are more than --menucachesize bytes of
+ * menus cached. A directory's only watched while we've got something cached for it, so browsing lots of directories
+ * doesn't leave a watch behind on every one of them.
+ */
+public class GopherMenuCache {
+    private static final Logger LOGGER = Logger.getLogger(GopherMenuCache.class.getName());
+    private static final GopherMenuCache INSTANCE = new GopherMenuCache();
+    // A directory's whole menu is kept as its page 0, since paged directories' pages start at 1.
+    private static final int WHOLE = 0;
+
+    private final LinkedHashMap<Path, Menus> directories = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<WatchKey, Set<Path>> watchedDirectories = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long totalBytes;
+    private WatchService watchService;
+
+    private GopherMenuCache() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(this::watch, "gopher-menu-cache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to watch the filesystem, menus won't be cached.", e);
+        }
+    }
+
+    public static GopherMenuCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cached menu for a directory, rendering (and caching) it if we don't have it.
+     * @param path the directory the menu is for.
+     * @param renderer renders the menu if it isn't cached. It can return null for a menu that's too big to render
+     * in one go, in which case nothing's cached.
+     * @return the encoded menu, or null if the renderer returned null.
+     */
+    public byte[] get(Path path, Supplier<byte[]> renderer) {
+        return get(path, WHOLE, renderer);
+    }
+
+    /**
+     * Same as get(), but for one page of a paged directory.
+     * @param path the directory the menu is for.
+     * @param page the page number.
+     * @param renderer renders the page if it isn't cached. It returns null for a page past the end, which isn't
+     * cached, so made-up page numbers can't fill the cache.
+     * @return the encoded page, or null if there's no such page.
+     */
+    public byte[] getPage(Path path, int page, Supplier<byte[]> renderer) {
+        return get(path, page, renderer);
+    }
+
+    /**
+     * @return true if we've got the directory's menu, so get() wouldn't have to render it.
+     */
+    public boolean contains(Path path) {
+        return contains(path, WHOLE);
+    }
+
+    /**
+     * @return true if we've got that page of the directory, so getPage() wouldn't have to render it.
+     */
+    public boolean containsPage(Path path, int page) {
+        return contains(path, page);
+    }
+
+    private synchronized boolean contains(Path path, int page) {
+        Menus menus = directories.get(path.toAbsolutePath().normalize());
+        return menus != null && menus.pages.containsKey(page);
+    }
+
+    private byte[] get(Path path, int page, Supplier<byte[]> renderer) {
+        Path directory = path.toAbsolutePath().normalize();
+        synchronized (this) {
+            Menus menus = directories.get(directory);
+            byte[] menu = menus != null ? menus.pages.get(page) : null;
+            if (menu != null) {
+                hits.increment();
+                return menu;
+            }
+        }
+        misses.increment();
+
+        // Start watching before we render, and only keep the result if nothing was invalidated while we were
+        // rendering. Otherwise we could end up caching a menu that's already out of date.
+        long invalidationsBefore = invalidations.get();
+        WatchKey key = watch(directory);
+        byte[] menu = renderer.get();
+        if (key != null) {
+            put(directory, key, page, menu, invalidationsBefore);
+        }
+        return menu;
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public synchronized int size() { return directories.values().stream().mapToInt(menus -> menus.pages.size()).sum(); }
+    public synchronized long getTotalBytes() { return totalBytes; }
+
+    /**
+     * @return how many directories we're watching, which should be how many we've got menus cached for.
+     */
+    synchronized int getWatched() {
+        return watchedDirectories.values().stream().mapToInt(Set::size).sum();
+    }
+
+    /**
+     * Caches a menu we just rendered, if it's still good, and lets go of the directory's watch if nothing's cached
+     * for it in the end.
+     * @param key the directory's watch, registered before the menu was rendered.
+     * @param menu the menu, or null if there's nothing to cache.
+     */
+    private synchronized void put(Path directory, WatchKey key, int page, byte[] menu, long invalidationsBefore) {
+        // The watcher counts an invalidation before it takes the lock to throw menus away, so checking in here
+        // means we either see it or it throws this one away too. Watches are only cancelled with the lock held, so
+        // a key that's still valid in here stays that way for as long as the menu's cached.
+        if (menu != null && key.isValid() && invalidations.get() == invalidationsBefore
+                && menu.length <= Config.current().getMenuCacheSize()) {
+            Menus menus = directories.computeIfAbsent(directory, d -> new Menus(key));
+            if (menus.pages.putIfAbsent(page, menu) == null) {
+                menus.bytes += menu.length;
+                totalBytes += menu.length;
+
+                // Evict from the least recently used end until we fit in the budget again.
+                Iterator<Map.Entry<Path, Menus>> iterator = directories.entrySet().iterator();
+                while (totalBytes > Config.current().getMenuCacheSize() && iterator.hasNext()) {
+                    Map.Entry<Path, Menus> evicted = iterator.next();
+                    totalBytes -= evicted.getValue().bytes;
+                    iterator.remove();
+                    unwatch(evicted.getKey(), evicted.getValue().key);
+                }
+            }
+        }
+        if (!directories.containsKey(directory)) {
+            unwatch(directory, key);
+        }
+    }
+
+    private synchronized void remove(Path directory, WatchKey key) {
+        Menus menus = directories.remove(directory);
+        if (menus != null) {
+            totalBytes -= menus.bytes;
+        }
+        unwatch(directory, key);
+    }
+
+    private synchronized void clear() {
+        directories.forEach((directory, menus) -> unwatch(directory, menus.key));
+        directories.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * Registers a directory with the WatchService. Registering a directory that's already watched gets the same key
+     * back.
+     * @return the directory's key, or null if it can't be watched, in which case it isn't safe to cache its menu.
+     */
+    private WatchKey watch(Path path) {
+        if (watchService == null) {
+            return null;
+        }
+        try {
+            WatchKey key = path.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(path);
+            return key;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to watch " + path + ", its menu won't be cached.");
+            return null;
+        }
+    }
+
+    /**
+     * Stops watching a directory for us, and cancels its key if nobody else was using it (two paths to the same
+     * directory share a key). Only called with the lock held.
+     */
+    private void unwatch(Path path, WatchKey key) {
+        Set<Path> paths = watchedDirectories.get(key);
+        if (paths != null) {
+            paths.remove(path);
+        }
+        if (paths == null || paths.isEmpty()) {
+            watchedDirectories.remove(key);
+            key.cancel();
+        }
+    }
+
+    /**
+     * Runs on the watcher thread forever, throwing away menus (and with them, the watch) for directories that
+     * change.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean overflow = key.pollEvents().stream()
+                    .map(WatchEvent::kind)
+                    .anyMatch(StandardWatchEventKinds.OVERFLOW::equals);
+            invalidations.incrementAndGet();
+            if (overflow) {
+                // We lost track of what changed, so all bets are off.
+                clear();
+            }
+            Set<Path> paths = watchedDirectories.get(key);
+            if (paths != null) {
+                List.copyOf(paths).forEach(path -> remove(path, key));
+            }
+        }
+    }
+
+    /**
+     * Everything cached for one directory: its whole menu, or its pages.
+     */
+    private static class Menus {
+        private final WatchKey key;
+        private final Map<Integer, byte[]> pages = new HashMap<>();
+        private long bytes;
+
+        Menus(WatchKey key) {
+            this.key = key;
+        }
+    }
+}
@@ -36,12 +36,54 @@ public class GopherMenuFactory {
         }
     }
 
+    /**
+     * Same as create(), but builds a CompactMenu, which is what the server actually renders. Gophermaps are parsed
+     * straight from their bytes, and directories are listed in GopherDirectoryMenu's order.
+     * @param path Path to the directory for which a menu is to be generated
+     * @return A CompactMenu.
+     */
+    public static CompactMenu createCompact(Path path) {
+        GopherEvents.Parse event = new GopherEvents.Parse();
+        event.begin();
+        boolean gopherMap = hasGopherMap(path);
+        CompactMenu menu = gopherMap ? parseGopherMap(path) : listDirectory(path);
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = path.toString();
+            event.gopherMap = gopherMap;
+            event.items = menu.size();
+            event.bytes = menu.renderedLength();
+            event.commit();
+        }
+        return menu;
+    }
+
+    private static CompactMenu parseGopherMap(Path path) {
+        Path gopherMapPath = Paths.get(path.toString(), Config.getMapFilename());
+        try {
+            return CompactMenu.parse(Files.readAllBytes(gopherMapPath));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to open: " + path.toString());
+            return new CompactMenu();
+        }
+    }
+
+    private static CompactMenu listDirectory(Path path) {
+        CompactMenu menu = new CompactMenu();
+        try (GopherDirectoryMenu entries = GopherDirectoryMenu.open(path)) {
+            entries.fill(menu, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return menu;
+    }
+
     /**
      * Reads the contents of the directory at the supplied path and generates a GopherMenu based on those contents.
      * @param path Directory from which a GopherMenu is to be created.
      * @return A GopherMenu.
      */
-    private static GopherMenu createFromDirectory(Path path) {
+    static GopherMenu createFromDirectory(Path path) {
         List<GopherMenuItem> gopherMenuItems = new ArrayList<>();
         try {
             gopherMenuItems.addAll(
@@ -82,7 +124,7 @@ public class GopherMenuFactory {
      * @param line a string representing a line in a GopherMap.
      * @return A GopherMenuItem.
      */
-    private static GopherMenuItem processGopherMapLine(String line) {
+    static GopherMenuItem processGopherMapLine(String line) {
         // If there are no tabs in the line, call it informational.
         if (line.startsWith("#")) {
             return null;
@@ -118,6 +160,15 @@ public class GopherMenuFactory {
      * @return a new GopherMenuItem.
      */
     private static GopherMenuItem processDirectoryEntry(Path path) {
+        return new GopherMenuItem(Config.getHost(), Config.getPort(), directoryEntryType(path), path.toString(), path.getFileName().toString());
+    }
+
+    /**
+     * Works out what type a directory entry should be listed as.
+     * @param path Path to the directory entry.
+     * @return the FileType for the menu.
+     */
+    static FileType directoryEntryType(Path path) {
         FileType fileType = FileType.BINARY;
         if (Files.isDirectory(path) && Files.isExecutable(path)) {
             fileType = FileType.DIRECTORY;
@@ -129,7 +180,7 @@ public class GopherMenuFactory {
                 fileType = FileType.getFromExtension(extension);
             }
         }
-        return new GopherMenuItem(Config.getHost(), Config.getPort(), fileType, path.toString(), path.getFileName().toString());
+        return fileType;
     }
 
     /**
@@ -137,7 +188,7 @@ public class GopherMenuFactory {
      * @param path Path to the directory to be checked.
      * @return true if a Gophermap exists and is readable.
      */
-    private static boolean hasGopherMap(Path path) {
+    static boolean hasGopherMap(Path path) {
         Path pathToPossibleGophermap = Paths.get(path.toString(), Config.getMapFilename());
         return Files.exists(pathToPossibleGophermap) && Files.isReadable(pathToPossibleGophermap);
     }
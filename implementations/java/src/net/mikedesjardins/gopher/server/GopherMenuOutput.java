@@ -1,7 +1,13 @@
 package net.mikedesjardins.gopher.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -10,16 +16,141 @@ import java.util.logging.Logger;
  */
 public class GopherMenuOutput extends GopherOutput {
     private static final Logger LOGGER = Logger.getLogger(GopherMenuOutput.class.getName());
+    private final int page;
+
+    // A directory too big to render in one go, partway read, waiting for stream() to send the rest.
+    private GopherDirectoryMenu listing;
+    private CompactMenu head;
+    // What we sent, if it was rendered in one go, for the prefetcher.
+    private byte[] rendered;
 
     public GopherMenuOutput(String selector) {
+        this(selector, 1);
+    }
+
+    /**
+     * @param selector the directory's selector, without any page.
+     * @param page which page of the directory, if it's paged (see Config.getMenuPageSize()).
+     */
+    public GopherMenuOutput(String selector, int page) {
         super(selector);
+        this.page = page;
+    }
+
+    /**
+     * Menus are usually rendered into memory in one go (from the cache if it's on), so they can be written straight
+     * from a buffer. Directories too big for that return null here, and get streamed instead.
+     */
+    @Override
+    public ByteBuffer buffer() {
+        byte[] menu = render();
+        return menu != null ? ByteBuffer.wrap(menu) : null;
     }
 
     @Override
     public InputStream stream() {
-        Paths.get(Config.getRoot(), selector);
+        if (listing == null) {
+            byte[] menu = render();
+            if (menu != null) {
+                return new ByteArrayInputStream(menu);
+            }
+        }
+        InputStream in = listing.stream(head);
+        listing = null;
+        head = null;
+        return in;
+    }
+
+    @Override
+    public void close() {
+        if (listing != null) {
+            listing.close();
+            listing = null;
+        }
+    }
+
+    /**
+     * @return the menu as it was sent, or null if it hasn't been sent yet or was too big to render in one go.
+     */
+    byte[] getRendered() {
+        return rendered;
+    }
+
+    private byte[] render() {
+        rendered = renderMenu();
+        return rendered;
+    }
+
+    /**
+     * @return true if the menu cache already has this menu, so rendering it wouldn't cost anything.
+     */
+    boolean isCached() {
+        Config.Snapshot config = Config.current();
+        if (!config.isMenuCache()) {
+            return false;
+        }
+        Path path = directory();
+        GopherMenuCache cache = GopherMenuCache.getInstance();
+        return isPaged(config, path) ? cache.containsPage(path, page) : cache.contains(path);
+    }
+
+    /**
+     * The menu cache keys a directory by its normalized path, so whichever of "poems", "./poems" or "/poems/" gets
+     * there first renders the menu for all of them. So we render it from the normalized path, and nothing in it
+     * depends on how this particular client spelled the selector.
+     */
+    private Path directory() {
+        return selectorToPath().normalize();
+    }
+
+    /**
+     * @return the selector the Previous and Next links on a page go back to, which is the directory's path relative
+     * to the root (e.g. "poems"), for the same reason as directory().
+     */
+    private String pageSelector(Config.Snapshot config) {
+        String key = GopherNamespace.toKey(Paths.get(config.getRoot()).toAbsolutePath().normalize(), selector);
+        return key != null ? key : selector;
+    }
+
+    private static boolean isPaged(Config.Snapshot config, Path path) {
+        return config.getMenuPageSize() > 0 && !GopherMenuFactory.hasGopherMap(path);
+    }
+
+    private byte[] renderMenu() {
+        Config.Snapshot config = Config.current();
+        Path path = directory();
+        if (isPaged(config, path)) {
+            String pageSelector = pageSelector(config);
+            Supplier<byte[]> renderer = () -> GopherDirectoryMenu.page(path, pageSelector, page);
+            byte[] menu = config.isMenuCache() ? GopherMenuCache.getInstance().getPage(path, page, renderer) : renderer.get();
+            return menu != null ? menu : GopherDirectoryMenu.noSuchPage(selector, page);
+        }
+        Supplier<byte[]> renderer = () -> renderWhole(path, config.getMenuStreamThreshold());
+        return config.isMenuCache() ? GopherMenuCache.getInstance().get(path, renderer) : renderer.get();
+    }
 
-        GopherMenu gopherMenu = GopherMenuFactory.create(selectorToPath());
-        return gopherMenu.stream();
+    /**
+     * Renders the whole menu, unless it's a directory with more entries than the stream threshold, in which case
+     * we hang on to what we've read so far for stream() and return null.
+     */
+    private byte[] renderWhole(Path path, int threshold) {
+        if (threshold <= 0 || GopherMenuFactory.hasGopherMap(path)) {
+            return GopherMenuFactory.createCompact(path).toBytes();
+        }
+        CompactMenu menu = new CompactMenu();
+        GopherDirectoryMenu entries;
+        try {
+            entries = GopherDirectoryMenu.open(path);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to list " + path + ": " + e.getMessage());
+            return menu.toBytes();
+        }
+        if (entries.fill(menu, threshold)) {
+            listing = entries;
+            head = menu;
+            return null;
+        }
+        entries.close();
+        return menu.toBytes();
     }
 }
@@ -0,0 +1,196 @@
+package net.mikedesjardins.gopher.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers for everything interesting the server does. Everything is a LongAdder (or a LatencyHistogram,
+ * which is made of them), so recording is lock-free and cheap enough for the hot path. The numbers are exposed over
+ * JMX and on a reserved selector (see GopherStatsOutput).
+ *
+ * The request phases we time are resolve (working out what a selector refers to), render (getting the response
+ * ready to send, e.g. building a menu or opening a file) and write (pushing it to the socket). Streamed responses do
+ * some of their rendering while they're being written, so that time shows up under write.
+ */
+public class GopherMetrics implements GopherMetricsMXBean {
+    private static final Logger LOGGER = Logger.getLogger(GopherMetrics.class.getName());
+    private static final GopherMetrics INSTANCE = new GopherMetrics();
+
+    private final long started = System.nanoTime();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder menuRequests = new LongAdder();
+    private final LongAdder fileRequests = new LongAdder();
+    private final LongAdder notFoundRequests = new LongAdder();
+    private final LongAdder statsRequests = new LongAdder();
+    private final LongAdder searchRequests = new LongAdder();
+    private final LongAdder mirrorRequests = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LatencyHistogram resolveTime = new LatencyHistogram();
+    private final LatencyHistogram renderTime = new LatencyHistogram();
+    private final LatencyHistogram writeTime = new LatencyHistogram();
+
+    public static GopherMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under net.mikedesjardins.gopher:type=Metrics.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("net.mikedesjardins.gopher:type=Metrics"));
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to register metrics with JMX.", e);
+        }
+    }
+
+    public void connectionAccepted() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Counts a request by what we decided to send back.
+     */
+    public void requestResolved(GopherOutput output, long nanos) {
+        resolveTime.record(nanos);
+        switch (RequestOutcome.of(output)) {
+            case MENU:
+                menuRequests.increment();
+                break;
+            case FILE:
+                fileRequests.increment();
+                break;
+            case STATS:
+                statsRequests.increment();
+                break;
+            case SEARCH:
+                searchRequests.increment();
+                break;
+            case MIRROR:
+                mirrorRequests.increment();
+                break;
+            default:
+                notFoundRequests.increment();
+        }
+    }
+
+    public void rendered(long nanos) {
+        renderTime.record(nanos);
+    }
+
+    public void written(long bytes, long nanos) {
+        bytesWritten.add(bytes);
+        writeTime.record(nanos);
+    }
+
+    public LatencyHistogram getResolveTime() { return resolveTime; }
+    public LatencyHistogram getRenderTime() { return renderTime; }
+    public LatencyHistogram getWriteTime() { return writeTime; }
+
+    @Override public long getUptimeSeconds() { return (System.nanoTime() - started) / 1_000_000_000L; }
+    @Override public long getAcceptedConnections() { return acceptedConnections.sum(); }
+    @Override public long getActiveConnections() { return activeConnections.sum(); }
+    @Override public long getMenuRequests() { return menuRequests.sum(); }
+    @Override public long getFileRequests() { return fileRequests.sum(); }
+    @Override public long getNotFoundRequests() { return notFoundRequests.sum(); }
+    @Override public long getStatsRequests() { return statsRequests.sum(); }
+    @Override public long getSearchRequests() { return searchRequests.sum(); }
+    @Override public long getMirrorRequests() { return mirrorRequests.sum(); }
+    @Override public long getBytesWritten() { return bytesWritten.sum(); }
+    @Override public double getResolveMeanMicros() { return resolveTime.getMeanMicros(); }
+    @Override public long getResolveP99Micros() { return resolveTime.getPercentileMicros(99); }
+    @Override public double getRenderMeanMicros() { return renderTime.getMeanMicros(); }
+    @Override public long getRenderP99Micros() { return renderTime.getPercentileMicros(99); }
+    @Override public double getWriteMeanMicros() { return writeTime.getMeanMicros(); }
+    @Override public long getWriteP99Micros() { return writeTime.getPercentileMicros(99); }
+    @Override public long getMenuCacheHits() { return GopherMenuCache.getInstance().getHits(); }
+    @Override public long getMenuCacheMisses() { return GopherMenuCache.getInstance().getMisses(); }
+    @Override public double getMenuCacheHitRatio() { return ratio(getMenuCacheHits(), getMenuCacheMisses()); }
+    @Override public long getMenuCacheBytes() { return GopherMenuCache.getInstance().getTotalBytes(); }
+    @Override public long getContentCacheHits() { return GopherContentCache.getInstance().getHits(); }
+    @Override public long getContentCacheMisses() { return GopherContentCache.getInstance().getMisses(); }
+    @Override public double getContentCacheHitRatio() { return ratio(getContentCacheHits(), getContentCacheMisses()); }
+    @Override public long getContentCacheBytes() { return GopherContentCache.getInstance().getTotalBytes(); }
+    @Override public int getMappedFiles() { return GopherMappedFiles.getInstance().size(); }
+
+    @Override
+    public long getMirrorHits() {
+        GopherMirror mirror = GopherMirror.getInstance();
+        return mirror == null ? 0 : mirror.getHits();
+    }
+
+    @Override
+    public long getMirrorStaleHits() {
+        GopherMirror mirror = GopherMirror.getInstance();
+        return mirror == null ? 0 : mirror.getStaleHits();
+    }
+
+    @Override
+    public long getMirrorMisses() {
+        GopherMirror mirror = GopherMirror.getInstance();
+        return mirror == null ? 0 : mirror.getMisses();
+    }
+
+    @Override
+    public long getMirrorUpstreamFetches() {
+        GopherMirror mirror = GopherMirror.getInstance();
+        return mirror == null ? 0 : mirror.getUpstreamFetches();
+    }
+
+    @Override
+    public long getPrefetchHits() {
+        GopherPrefetcher prefetcher = GopherPrefetcher.getInstance();
+        return prefetcher == null ? 0 : prefetcher.getHits();
+    }
+
+    @Override
+    public long getPrefetchWasted() {
+        GopherPrefetcher prefetcher = GopherPrefetcher.getInstance();
+        return prefetcher == null ? 0 : prefetcher.getWasted();
+    }
+
+    @Override
+    public long getBufferLeaks() {
+        return GopherBufferPool.getInstance().getLeaks();
+    }
+
+    @Override
+    public long getArchiveCacheHits() {
+        return GopherArchiveCache.getInstance().getHits();
+    }
+
+    @Override
+    public long getArchiveCacheMisses() {
+        return GopherArchiveCache.getInstance().getMisses();
+    }
+
+    @Override
+    public long getAccessLogDropped() {
+        GopherAccessLog accessLog = GopherAccessLog.getInstance();
+        return accessLog == null ? 0 : accessLog.getDropped();
+    }
+
+    @Override public long getRejectedBusy() { return rejections(GopherAdmission.Rejection.BUSY); }
+    @Override public long getRejectedSelectorTooLong() { return rejections(GopherAdmission.Rejection.SELECTOR_TOO_LONG); }
+    @Override public long getReadTimeouts() { return rejections(GopherAdmission.Rejection.READ_TIMEOUT); }
+    @Override public long getWriteTimeouts() { return rejections(GopherAdmission.Rejection.WRITE_TIMEOUT); }
+    @Override public long getRateLimited() { return rejections(GopherAdmission.Rejection.RATE_LIMITED); }
+
+    private static long rejections(GopherAdmission.Rejection reason) {
+        return GopherAdmission.getInstance().getRejections(reason);
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
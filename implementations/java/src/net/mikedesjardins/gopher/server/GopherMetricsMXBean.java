@@ -0,0 +1,52 @@
+package net.mikedesjardins.gopher.server;
+
+/**
+ * What GopherMetrics exposes over JMX. Times are in microseconds.
+ */
+public interface GopherMetricsMXBean {
+    long getUptimeSeconds();
+
+    long getAcceptedConnections();
+    long getActiveConnections();
+
+    long getMenuRequests();
+    long getFileRequests();
+    long getNotFoundRequests();
+    long getStatsRequests();
+    long getSearchRequests();
+    long getMirrorRequests();
+    long getBytesWritten();
+
+    double getResolveMeanMicros();
+    long getResolveP99Micros();
+    double getRenderMeanMicros();
+    long getRenderP99Micros();
+    double getWriteMeanMicros();
+    long getWriteP99Micros();
+
+    long getMenuCacheHits();
+    long getMenuCacheMisses();
+    double getMenuCacheHitRatio();
+    long getMenuCacheBytes();
+    long getContentCacheHits();
+    long getContentCacheMisses();
+    double getContentCacheHitRatio();
+    long getContentCacheBytes();
+    int getMappedFiles();
+    long getMirrorHits();
+    long getMirrorStaleHits();
+    long getMirrorMisses();
+    long getMirrorUpstreamFetches();
+    long getPrefetchHits();
+    long getPrefetchWasted();
+    long getBufferLeaks();
+    long getArchiveCacheHits();
+    long getArchiveCacheMisses();
+    long getAccessLogDropped();
+
+    long getRejectedBusy();
+    long getRejectedSelectorTooLong();
+    long getReadTimeouts();
+    long getWriteTimeouts();
+    long getRateLimited();
+}
@@ -0,0 +1,485 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A caching mirror of another gopher server, so a slow upstream box only has to answer for each selector once in a
+ * while instead of for every client. Selectors under the mirror selector are fetched from the upstream server, e.g.
+ * "/mirror/1/phlog" is the upstream's "/phlog" menu. The character after the mirror selector is the item type, which
+ * is how we know the response is a menu, and menus get their upstream items rewritten to point back at us, so
+ * clients stay on the mirror as they browse. The bare mirror selector is the upstream's root menu.
+ *
+ * Everything we fetch is kept in memory, and on disk too if there's a cache directory, each with a budget of its own
+ * that the least recently used go first to stay under. Something younger than the time to live is served as is.
+ * Something older, but not by more than the stale limit, is still served, while a fresh copy is fetched in the
+ * background. Anything else waits for the upstream. When several requests need the same selector at once, only one
+ * of them goes upstream and the rest wait for its answer. If the upstream can't be reached we serve whatever we've
+ * got, however old. If it answers with an error ("3" item) that gets passed on, but it isn't cached, so it doesn't
+ * take the place of whatever we had.
+ *
+ * get() blocks while the upstream's asked, so it mustn't be called on an event loop. The NIO engine resolves and
+ * renders on its workers, so it never is.
+ */
+public class GopherMirror {
+    private static final Logger LOGGER = Logger.getLogger(GopherMirror.class.getName());
+    private static final int REFRESHERS = 2;
+    private static final int REFRESH_QUEUE = 256;
+    private static GopherMirror instance;
+
+    private final String host;
+    private final int port;
+    private final Path cacheDir;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    // What's in the cache directory and how big each file is, least recently fetched or read first.
+    private final LinkedHashMap<Path, Long> diskFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+    private final Map<String, CompletableFuture<Entry>> fetches = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor refresher;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder upstreamFetches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    GopherMirror(String upstream, String cacheDir) {
+        int colon = upstream.lastIndexOf(':');
+        this.host = colon < 0 ? upstream : upstream.substring(0, colon);
+        this.port = colon < 0 ? 70 : Integer.parseInt(upstream.substring(colon + 1));
+        Path dir = null;
+        if (!cacheDir.isEmpty()) {
+            try {
+                dir = Files.createDirectories(Paths.get(cacheDir));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to use " + cacheDir + " for the mirror cache, so it's memory only.", e);
+            }
+        }
+        this.cacheDir = dir;
+        if (dir != null) {
+            scanDisk();
+        }
+        refresher = new ThreadPoolExecutor(REFRESHERS, REFRESHERS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(REFRESH_QUEUE), runnable -> {
+            Thread thread = new Thread(runnable, "gopher-mirror-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the mirror, or null if there's no upstream configured.
+     */
+    public static synchronized GopherMirror getInstance() {
+        if (instance == null && !Config.getUpstream().isEmpty()) {
+            instance = new GopherMirror(Config.getUpstream(), Config.getMirrorCacheDir());
+            LOGGER.log(Level.INFO, "Mirroring " + instance.host + ":" + instance.port + " under " + Config.getMirrorSelector());
+        }
+        return instance;
+    }
+
+    /**
+     * Works out what a selector under the mirror selector asks the upstream for.
+     * @param selector the selector from the client, e.g. "/mirror/0/about.txt".
+     * @param mirrorSelector the mirror selector, e.g. "mirror".
+     * @return the key we cache it under, which is the item type followed by the upstream selector, e.g.
+     * "0/about.txt". The bare mirror selector is "1", the upstream's root menu.
+     */
+    static String toKey(String selector, String mirrorSelector) {
+        String rest = selector.replaceFirst("^/+", "").substring(mirrorSelector.length());
+        if (rest.startsWith("/")) {
+            rest = rest.substring(1);
+        }
+        return rest.isEmpty() || rest.charAt(0) == '\t' ? "1" + rest : rest;
+    }
+
+    /**
+     * Gets what the upstream has for a key, from the cache if we can.
+     * @param key from toKey().
+     * @return the response, ready to send.
+     */
+    public byte[] get(String key) {
+        Config.Snapshot config = Config.current();
+        Entry entry = lookup(key);
+        long age = entry == null ? Long.MAX_VALUE : System.currentTimeMillis() - entry.fetched;
+        long ttl = TimeUnit.SECONDS.toMillis(config.getMirrorTtl());
+        if (age <= ttl) {
+            hits.increment();
+            return entry.content;
+        }
+        if (age <= ttl + TimeUnit.SECONDS.toMillis(config.getMirrorStale())) {
+            staleHits.increment();
+            refreshLater(key);
+            return entry.content;
+        }
+        misses.increment();
+        try {
+            return fetch(key).content;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to fetch " + key + " from " + host + ":" + port + ": " + e.getMessage());
+            if (entry != null) {
+                return entry.content;
+            }
+            String error = "3 Unable to fetch that from upstream right now, try again later!\t\t"
+                    + config.getHost() + "\t" + config.getPort() + "\r\n";
+            return error.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getStaleHits() { return staleHits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getCoalesced() { return coalesced.sum(); }
+    public long getUpstreamFetches() { return upstreamFetches.sum(); }
+    public long getFailures() { return failures.sum(); }
+    public synchronized int size() { return entries.size(); }
+    public synchronized long getTotalBytes() { return totalBytes; }
+    public synchronized long getDiskBytes() { return diskBytes; }
+
+    /**
+     * Finds what we've got for a key in memory, or failing that on disk.
+     */
+    private Entry lookup(String key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        if (cacheDir == null) {
+            return null;
+        }
+        Path file = cacheFile(key);
+        try {
+            long fetched = Files.getLastModifiedTime(file).toMillis();
+            Entry entry = new Entry(rewrite(key, Files.readAllBytes(file)), fetched);
+            put(key, entry);
+            synchronized (this) {
+                // Just to move it to the recently used end.
+                diskFiles.get(file);
+            }
+            return entry;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read " + file + " from the mirror cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Fetches a key from upstream, or if somebody else is already doing that, waits for them.
+     */
+    private Entry fetch(String key) throws IOException {
+        CompletableFuture<Entry> fetch = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = fetches.putIfAbsent(key, fetch);
+        if (existing != null) {
+            coalesced.increment();
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + key);
+            }
+        }
+        byte[] raw;
+        Entry entry;
+        boolean keep;
+        try {
+            raw = download(key);
+            entry = new Entry(rewrite(key, raw), System.currentTimeMillis());
+            keep = !isError(raw);
+            if (keep) {
+                put(key, entry);
+            } else {
+                failures.increment();
+            }
+            fetch.complete(entry);
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            fetch.completeExceptionally(e);
+            throw e;
+        } finally {
+            fetches.remove(key, fetch);
+        }
+        if (keep && cacheDir != null) {
+            store(key, raw, entry.fetched);
+        }
+        return entry;
+    }
+
+    /**
+     * Fetches a fresh copy of a key on one of the refresh threads, unless that's already happening. If the refresh
+     * queue is full we don't bother, somebody will ask again soon enough.
+     */
+    private void refreshLater(String key) {
+        if (fetches.containsKey(key) || !refreshing.add(key)) {
+            return;
+        }
+        try {
+            refresher.execute(() -> {
+                try {
+                    fetch(key);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Unable to refresh " + key + ": " + e.getMessage());
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Asks the upstream server for a selector and reads everything it sends back.
+     */
+    private byte[] download(String key) throws IOException {
+        upstreamFetches.increment();
+        Config.Snapshot config = Config.current();
+        int timeout = (int) Math.min(Integer.MAX_VALUE, config.getReadTimeout());
+        long maxBytes = config.getMirrorMaxBytes();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+            OutputStream out = socket.getOutputStream();
+            out.write((key.substring(1) + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[GopherServerThread.BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, count);
+                if (body.size() > maxBytes) {
+                    throw new IOException("the response is over " + maxBytes + " bytes");
+                }
+            }
+            return body.toByteArray();
+        }
+    }
+
+    /**
+     * Is this the upstream telling us it couldn't give us what we asked for? Gopher servers answer with an error
+     * item whatever type was asked for, so that's a line starting with "3" with all its fields.
+     */
+    static boolean isError(byte[] raw) {
+        if (raw.length == 0 || raw[0] != FileType.ERROR.gopherType) {
+            return false;
+        }
+        int tabs = 0;
+        for (int i = 1; i < raw.length && raw[i] != '\n' && tabs < 3; i++) {
+            if (raw[i] == '\t') {
+                tabs++;
+            }
+        }
+        return tabs == 3;
+    }
+
+    /**
+     * Points the upstream's own items in a menu back at us. Everything else, including responses that aren't
+     * menus, goes through untouched. Lines are handled as ISO-8859-1 so whatever bytes the upstream sent survive
+     * the trip.
+     */
+    private byte[] rewrite(String key, byte[] raw) {
+        char type = key.charAt(0);
+        if (type != FileType.DIRECTORY.gopherType && type != FileType.SEARCH.gopherType) {
+            return raw;
+        }
+        Config.Snapshot config = Config.current();
+        String prefix = latin1("/" + config.getMirrorSelector() + "/");
+        String ourHost = latin1(config.getHost());
+        String ourPort = Integer.toString(config.getPort());
+        String portString = Integer.toString(port);
+
+        StringBuilder sb = new StringBuilder(raw.length + raw.length / 4);
+        for (String line : new String(raw, StandardCharsets.ISO_8859_1).split("\r?\n", -1)) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length >= 4 && !fields[0].isEmpty() && isUpstreamItem(fields)) {
+                fields[1] = prefix + fields[0].charAt(0) + fields[1];
+                fields[2] = ourHost;
+                fields[3] = ourPort;
+                line = String.join("\t", fields);
+            }
+            sb.append(line).append("\r\n");
+        }
+        // split() gave us an empty last line for the line end the response finished with, don't double it up.
+        sb.setLength(sb.length() - 2);
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean isUpstreamItem(String[] fields) {
+        char type = fields[0].charAt(0);
+        return type != FileType.INFO.gopherType && type != FileType.ERROR.gopherType && type != '8' && type != 'T'
+                && !fields[1].startsWith("URL:")
+                && fields[2].equalsIgnoreCase(host) && fields[3].trim().equals(Integer.toString(port));
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            totalBytes -= previous.content.length;
+        }
+        totalBytes += entry.content.length;
+
+        // Evict from the least recently used end until we fit in the budget again.
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > Config.getMirrorCacheSize() && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().content.length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Writes what the upstream sent to the disk cache, via a temporary file so a reader never sees half of it. The
+     * file's modified time is when we fetched it.
+     */
+    private void store(String key, byte[] raw, long fetched) {
+        Path file = cacheFile(key);
+        try {
+            Path temp = Files.createTempFile(cacheDir, "fetch", ".tmp");
+            try {
+                Files.write(temp, raw);
+                Files.setLastModifiedTime(temp, FileTime.fromMillis(fetched));
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to write " + file + " to the mirror cache: " + e.getMessage());
+            return;
+        }
+        stored(file, raw.length);
+    }
+
+    /**
+     * Counts a file that's just been written to the cache directory, and deletes the least recently used ones until
+     * we're back under the budget.
+     */
+    private void stored(Path file, long size) {
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long previous = diskFiles.put(file, size);
+            diskBytes += size - (previous != null ? previous : 0);
+            Iterator<Map.Entry<Path, Long>> iterator = diskFiles.entrySet().iterator();
+            while (diskBytes > Config.current().getMirrorCacheDirSize() && iterator.hasNext()) {
+                Map.Entry<Path, Long> eldest = iterator.next();
+                diskBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                iterator.remove();
+            }
+        }
+        for (Path victim : evicted) {
+            try {
+                Files.deleteIfExists(victim);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to delete " + victim + " from the mirror cache: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Finds out what's already in the cache directory, from a previous run, oldest first. Temporary files left
+     * behind by a crash part way through store() are deleted, and so is anything over the budget.
+     */
+    private void scanDisk() {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(cacheDir)) {
+            list.forEach(files::add);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to list the mirror cache in " + cacheDir + ": " + e.getMessage());
+            return;
+        }
+        List<Path> cached = new ArrayList<>();
+        Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        for (Path file : files) {
+            try {
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attrs.isRegularFile()) {
+                    attributes.put(file, attrs);
+                    cached.add(file);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to look at " + file + " in the mirror cache: " + e.getMessage());
+            }
+        }
+        cached.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+        for (Path file : cached) {
+            stored(file, attributes.get(file).size());
+        }
+    }
+
+    /**
+     * Keys can be anything the upstream understands, so files are named after a hash of them instead.
+     */
+    private Path cacheFile(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return cacheDir.resolve(name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+    }
+
+    private static String latin1(String value) {
+        return new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+    }
+
+    private static class Entry {
+        private final byte[] content;
+        private final long fetched;
+
+        Entry(byte[] content, long fetched) {
+            this.content = content;
+            this.fetched = fetched;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends whatever the upstream server has for a selector under the mirror selector, by way of the GopherMirror.
+ * buffer() and stream() can have to wait on the upstream, so like every GopherOutput they get called on a thread
+ * that's allowed to block (a connection's own thread, or one of the NIO engine's workers), never an event loop. The
+ * answer's fetched once, whichever gets called.
+ */
+public class GopherMirrorOutput extends GopherOutput {
+    private byte[] content;
+
+    public GopherMirrorOutput(String selector) {
+        super(selector);
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(fetch());
+    }
+
+    @Override
+    public InputStream stream() {
+        return new ByteArrayInputStream(fetch());
+    }
+
+    private byte[] fetch() {
+        if (content == null) {
+            content = GopherMirror.getInstance().get(GopherMirror.toKey(selector, Config.current().getMirrorSelector()));
+        }
+        return content;
+    }
+}
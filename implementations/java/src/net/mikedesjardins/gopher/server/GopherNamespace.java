@@ -0,0 +1,269 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory index of everything under the gopher root, so that working out what a selector refers to is a single
+ * hash lookup instead of a handful of stat calls. The index is an immutable snapshot that gets swapped out whole
+ * whenever something changes. It's built by walking the root in the background at startup (so a big root doesn't hold
+ * up the first request, which just goes to the filesystem until isReady()) and kept current by a WatchService on every
+ * directory in it. Selectors that try to climb out of the root are rejected without going anywhere near the
+ * filesystem.
+ */
+public class GopherNamespace {
+    private static final Logger LOGGER = Logger.getLogger(GopherNamespace.class.getName());
+    private static GopherNamespace instance;
+
+    private final Path root;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private volatile Map<String, Node> nodes = Collections.emptyMap();
+    private volatile boolean ready;
+    private WatchService watchService;
+
+    private GopherNamespace(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the index of the configured root, starting to build it (and watch it) the first time through.
+     * @return the GopherNamespace.
+     */
+    public static synchronized GopherNamespace getInstance() {
+        if (instance == null) {
+            instance = new GopherNamespace(Paths.get(Config.getRoot()).toAbsolutePath().normalize());
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Looks up a selector.
+     * @param selector the selector from the client.
+     * @return the Node it refers to, or null if there's no such thing (or the selector escapes the root).
+     */
+    public Node lookup(String selector) {
+        String key = toKey(selector);
+        return key == null ? null : nodes.get(key);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return true once the first walk of the root is done. Until then lookup() comes up empty for everything.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Lexically turns a selector into the key we index it under, which is its path relative to the root, e.g.
+     * "/whitman/", "whitman" and "./whitman" are all "whitman".
+     * @return the key, or null if the selector doesn't stay inside the root.
+     */
+    private String toKey(String selector) {
+        return toKey(root, selector);
+    }
+
+    /**
+     * The same as lookup() does, for any root. GopherServerThread runs every selector through this before looking
+     * for it anywhere, whether or not the index is ready (or on at all).
+     * @param root the root, absolute and normalized.
+     * @param selector the selector from the client.
+     * @return the key, or null if the selector doesn't stay inside the root.
+     */
+    static String toKey(Path root, String selector) {
+        try {
+            Path path = root.resolve(selector.replaceFirst("^/+", "")).normalize();
+            return path.startsWith(root) ? root.relativize(path).toString() : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private String toKey(Path path) {
+        return root.relativize(path).toString();
+    }
+
+    private void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to watch the filesystem, the namespace index won't be kept up to date.", e);
+        }
+        Thread indexer = new Thread(this::build, "gopher-namespace-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Runs on the indexer thread: walks the root, publishes the index, then goes on to watch for changes. Anything
+     * that changes during the walk is waiting in the WatchService by the time we get there.
+     */
+    private void build() {
+        Map<String, Node> snapshot = new HashMap<>();
+        scan(root, snapshot);
+        nodes = Collections.unmodifiableMap(snapshot);
+        ready = true;
+        LOGGER.log(Level.INFO, "Indexed " + snapshot.size() + " entries under " + root);
+
+        if (watchService != null) {
+            watch();
+        }
+    }
+
+    /**
+     * Walks everything at and under the supplied path into the snapshot, watching every directory along the way.
+     */
+    private void scan(Path start, Map<String, Node> snapshot) {
+        try {
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    if (!Files.isReadable(dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    snapshot.put(toKey(dir), new Node(dir, FileType.DIRECTORY, attributes));
+                    register(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    index(file, attributes, snapshot);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to index " + start, e);
+        }
+    }
+
+    private void index(Path file, BasicFileAttributes attributes, Map<String, Node> snapshot) {
+        if (attributes.isRegularFile() && Files.isReadable(file)) {
+            snapshot.put(toKey(file), new Node(file, FileType.getFromFileName(file.getFileName().toString()), attributes));
+        } else {
+            snapshot.remove(toKey(file));
+        }
+    }
+
+    private void register(Path dir) {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, dir);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to watch " + dir + ", the index may go stale there.");
+        }
+    }
+
+    /**
+     * Runs on the watcher thread forever. Changes are applied to a copy of the current snapshot, and we soak up every
+     * event that's already waiting before publishing it, so a burst of changes costs one copy rather than one each.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Map<String, Node> snapshot = new HashMap<>(nodes);
+            while (key != null) {
+                apply(key, snapshot);
+                key = watchService.poll();
+            }
+            nodes = Collections.unmodifiableMap(snapshot);
+        }
+    }
+
+    private void apply(WatchKey key, Map<String, Node> snapshot) {
+        Path dir = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                // We lost track of what changed, so start over.
+                snapshot.clear();
+                scan(root, snapshot);
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                remove(path, snapshot);
+            } else if (Files.isDirectory(path)) {
+                scan(path, snapshot);
+            } else {
+                try {
+                    index(path, Files.readAttributes(path, BasicFileAttributes.class), snapshot);
+                } catch (IOException e) {
+                    // It was gone again before we got a look at it.
+                    remove(path, snapshot);
+                }
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    private void remove(Path path, Map<String, Node> snapshot) {
+        String key = toKey(path);
+        String prefix = key + "/";
+        snapshot.remove(key);
+        snapshot.keySet().removeIf(k -> k.startsWith(prefix));
+    }
+
+    /**
+     * One thing in the namespace: a directory or a regular file, along with the bits of its attributes we care about.
+     */
+    public static class Node {
+        private final Path path;
+        private final FileType type;
+        private final long size;
+        private final long modified;
+
+        Node(Path path, FileType type, BasicFileAttributes attributes) {
+            this.path = path;
+            this.type = type;
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+        }
+
+        public Path getPath() { return path; }
+        public FileType getType() { return type; }
+        public long getSize() { return size; }
+        public long getModified() { return modified; }
+        public boolean isDirectory() { return type == FileType.DIRECTORY; }
+    }
+}
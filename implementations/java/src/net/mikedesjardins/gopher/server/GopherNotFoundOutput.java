@@ -12,7 +12,8 @@ public class GopherNotFoundOutput extends GopherOutput {
 
     @Override
     public InputStream stream() throws IOException {
-        String result = "3 '" + this.selector + "' doesn't exist!\t\t" + Config.getHost() + "\t" + Config.getPort() + "\r\n";
+        Config.Snapshot config = Config.current();
+        String result = "3 '" + this.selector + "' doesn't exist!\t\t" + config.getHost() + "\t" + config.getPort() + "\r\n";
         return new ByteArrayInputStream(result.getBytes(StandardCharsets.UTF_8), 0, result.length());
     }
 }
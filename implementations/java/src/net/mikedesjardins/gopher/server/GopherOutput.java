@@ -1,26 +1,69 @@
 package net.mikedesjardins.gopher.server;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 /**
  * This Abstract Base Class represents a thing that can be streamed out to a Gopher Client from the server. There's
  * a convenience method in here that converts a selector to a path, but it assumes that you are in the root directory.
+ * Whoever sends the output should close() it afterwards.
  */
-public abstract class GopherOutput {
+public abstract class GopherOutput implements Closeable {
     protected String selector;
     public GopherOutput(String selector) {
         this.selector = selector;
     }
     public abstract InputStream stream() throws IOException;
 
+    /**
+     * Some outputs already have their bytes sitting in memory (see GopherContentCache). Those can override this to
+     * hand back a buffer of them, which the caller writes straight to the socket. Everything else returns null, which
+     * means "try channel(), and then stream()".
+     * @return a buffer positioned at the start of the body, or null.
+     * @throws IOException if the content can't be read.
+     */
+    public ByteBuffer buffer() throws IOException {
+        return null;
+    }
+
+    /**
+     * Some outputs are just a file sent as-is. Those can override this to hand back an open FileChannel, which the
+     * caller will transferTo() the socket so the bytes never have to pass through our heap. Everything else returns
+     * null, which means "use stream() instead".
+     * @return an open FileChannel positioned at the start of the body, or null.
+     * @throws IOException if the file can't be opened.
+     */
+    public FileChannel channel() throws IOException {
+        return null;
+    }
+
+    /**
+     * Outputs whose channel() is only part of a file (a member stored in a ZIP archive, say) override this to say how
+     * much of it to send. The default, -1, means everything from the channel's position to the end of the file.
+     * @return the number of bytes to send from channel(), or -1 for the rest of the file.
+     */
+    public long channelLength() {
+        return -1;
+    }
+
+    /**
+     * Called once the output has been sent (or we've given up sending it), so outputs that are holding on to
+     * something shared can let go of it. Most outputs don't, so the default does nothing.
+     */
+    @Override
+    public void close() {
+    }
+
     /**
      * Utility method that resolves a selector to a path in our gopher root.
      * @return A full filesystem path to our desired selector.
      */
     protected Path selectorToPath() {
-        return Paths.get(Config.getRoot(), selector);
+        return Paths.get(Config.current().getRoot(), selector);
     }
 }
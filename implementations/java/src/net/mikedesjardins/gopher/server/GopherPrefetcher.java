@@ -0,0 +1,358 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gopher browsing is pretty predictable: somebody who's just been sent a menu is probably about to ask for
+ * something on it. So once a menu's been sent, we warm up what it links to on this server, in the background: text
+ * files and small binaries go into the GopherContentCache (already converted to their wire format), menus into the
+ * GopherMenuCache, and anything too big for those gets read, so at least it's in the page cache.
+ *
+ * We learn as we go. For each menu we count how often it's been served, and how often the same client asked for
+ * each of its items next. Until a menu's been seen LEARNING times we warm its first --prefetchlinks items, and after
+ * that only the ones people actually follow, most popular first. Prefetching runs on a single low-priority thread
+ * with a short queue (when it's full, menus just don't get prefetched) and it can only read --prefetchbudget bytes a
+ * second.
+ *
+ * Everything warmed is remembered for WINDOW. A request for it in that time is a hit, and if nobody asks for it, it
+ * was a waste. The counters are on the stats page.
+ */
+public class GopherPrefetcher {
+    private static final Logger LOGGER = Logger.getLogger(GopherPrefetcher.class.getName());
+    static final int LEARNING = 10;
+    // Once we've learned, an item has to be followed at least this often (1 in N visits) to be worth warming.
+    private static final int POPULAR = 20;
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(60);
+    private static final int QUEUE = 64;
+    private static final int MAX_CLIENTS = 10_000;
+    private static final int MAX_MENUS = 4096;
+    private static final int SCRATCH_SIZE = 64 * 1024;
+    private static volatile GopherPrefetcher instance;
+    private static volatile boolean initialized;
+
+    private final Path root;
+    private final ThreadPoolExecutor executor;
+    // The last menu each client was sent, and when, so we can tell what they followed.
+    private final LinkedHashMap<InetAddress, Visit> visits = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Visit> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+    private final LinkedHashMap<String, MenuStats> menus = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MenuStats> eldest) {
+            return size() > MAX_MENUS;
+        }
+    };
+    // What we've warmed and nobody's asked for yet, and when we warmed it.
+    private final Map<String, Long> warmed = new ConcurrentHashMap<>();
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder prefetchedBytes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder wasted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // Only touched on the prefetch thread.
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(SCRATCH_SIZE);
+    private double budget;
+    private long refilled = System.nanoTime();
+
+    private GopherPrefetcher() {
+        root = Paths.get(Config.getRoot()).toAbsolutePath().normalize();
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE), runnable -> {
+            Thread thread = new Thread(runnable, "gopher-prefetcher");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        budget = Config.getPrefetchBudget();
+    }
+
+    /**
+     * This gets called for every request, so it doesn't take a lock once it's set up.
+     * @return the prefetcher, or null if prefetching is off.
+     */
+    public static GopherPrefetcher getInstance() {
+        if (!initialized) {
+            synchronized (GopherPrefetcher.class) {
+                if (!initialized) {
+                    if (Config.isPrefetch()) {
+                        instance = new GopherPrefetcher();
+                    }
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Tells the prefetcher about a request we've just finished with. If it was for something we warmed, that's a
+     * hit, and if it was for something on the last menu this client was sent, we count it. If it was a menu, we
+     * start warming what's on it.
+     * @param client the client's address.
+     * @param selector the selector the client sent.
+     * @param result what we sent back.
+     */
+    public void served(InetAddress client, String selector, GopherOutput result) {
+        String key = toKey(selector);
+        if (key == null) {
+            return;
+        }
+        if (warmed.remove(key) != null) {
+            hits.increment();
+        }
+        long now = System.nanoTime();
+        Visit previous;
+        synchronized (visits) {
+            previous = visits.get(client);
+        }
+        if (previous != null && now - previous.time < WINDOW) {
+            MenuStats stats;
+            synchronized (menus) {
+                stats = menus.get(previous.menu);
+            }
+            if (stats != null) {
+                AtomicInteger count = stats.followed.get(key);
+                if (count != null) {
+                    count.incrementAndGet();
+                }
+            }
+        }
+
+        if (!(result instanceof GopherMenuOutput)) {
+            return;
+        }
+        byte[] menu = ((GopherMenuOutput) result).getRendered();
+        if (menu == null) {
+            // Too big to have been rendered in one go, so it's too big to bother with.
+            return;
+        }
+        synchronized (visits) {
+            visits.put(client, new Visit(key, now));
+        }
+        try {
+            executor.execute(() -> prefetch(key, menu));
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+        }
+    }
+
+    public long getPrefetched() { return prefetched.sum(); }
+    public long getPrefetchedBytes() { return prefetchedBytes.sum(); }
+    public long getHits() { return hits.sum(); }
+    public long getWasted() { return wasted.sum(); }
+    public long getDropped() { return dropped.sum(); }
+
+    /**
+     * Runs on the prefetch thread: works out what's worth warming from a menu, and warms it.
+     */
+    private void prefetch(String menuKey, byte[] menu) {
+        expire();
+        Config.Snapshot config = Config.current();
+        List<Link> links = links(menu, config);
+        MenuStats stats;
+        synchronized (menus) {
+            stats = menus.computeIfAbsent(menuKey, k -> new MenuStats());
+        }
+        int visits = stats.visits.incrementAndGet();
+        for (Link link : links) {
+            stats.followed.putIfAbsent(link.key, new AtomicInteger());
+        }
+        if (visits > LEARNING) {
+            links.removeIf(link -> stats.followed.get(link.key).get() * POPULAR < visits);
+            links.sort((a, b) -> Integer.compare(stats.followed.get(b.key).get(), stats.followed.get(a.key).get()));
+        }
+
+        int count = 0;
+        for (Link link : links) {
+            if (count == config.getPrefetchLinks()) {
+                break;
+            }
+            if (warmed.containsKey(link.key)) {
+                continue;
+            }
+            try {
+                if (warm(link, config)) {
+                    warmed.put(link.key, System.nanoTime());
+                    prefetched.increment();
+                    count++;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to prefetch " + link.selector + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Warms one link, if it's there, isn't cached already, and we can afford it.
+     * @return true if it got warmed, i.e. we actually loaded something that wasn't cached.
+     */
+    private boolean warm(Link link, Config.Snapshot config) throws IOException {
+        if (link.type == FileType.DIRECTORY) {
+            if (!config.isMenuCache() || !Files.isDirectory(link.path)) {
+                return false;
+            }
+            GopherMenuOutput output = new GopherMenuOutput(link.selector);
+            try (output) {
+                if (output.isCached()) {
+                    return false;
+                }
+                ByteBuffer rendered = output.buffer();
+                return rendered != null && spend(rendered.remaining());
+            }
+        }
+        if (!Files.isRegularFile(link.path)) {
+            return false;
+        }
+        GopherFileOutput output = new GopherFileOutput(link.selector, link.path);
+        try (output) {
+            if (output.isCached() || !spend(Files.size(link.path))) {
+                return false;
+            }
+            if (output.buffer() != null && output.isCached()) {
+                return true;
+            }
+            // Too big for the content cache, so just read it, and it'll be in the page cache.
+            FileChannel channel = output.channel();
+            if (channel != null) {
+                try (channel) {
+                    while (channel.read(scratch.clear()) > 0) {
+                        // Nothing to do with it.
+                    }
+                }
+                return true;
+            }
+            try (InputStream in = output.stream()) {
+                if (in != null) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Takes bytes out of the budget, which refills at --prefetchbudget bytes a second, up to a second's worth.
+     * @return false if there isn't enough left.
+     */
+    private boolean spend(long bytes) {
+        long now = System.nanoTime();
+        double perSecond = Config.current().getPrefetchBudget();
+        budget = Math.min(perSecond, budget + (now - refilled) * perSecond / TimeUnit.SECONDS.toNanos(1));
+        refilled = now;
+        if (bytes > budget) {
+            return false;
+        }
+        budget -= bytes;
+        prefetchedBytes.add(bytes);
+        return true;
+    }
+
+    /**
+     * Forgets whatever nobody asked for in time, and counts it as wasted.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Long>> iterator = warmed.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() > WINDOW) {
+                iterator.remove();
+                wasted.increment();
+            }
+        }
+    }
+
+    /**
+     * Pulls the items on this server out of a rendered menu, in the order they're on it. Info lines, errors,
+     * searches and so on aren't things we can warm.
+     */
+    private List<Link> links(byte[] menu, Config.Snapshot config) {
+        List<Link> links = new ArrayList<>();
+        String port = Integer.toString(config.getPort());
+        for (String line : new String(menu, StandardCharsets.UTF_8).split("\r\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length < 4 || fields[0].isEmpty() || !fields[2].equalsIgnoreCase(config.getHost()) || !fields[3].equals(port)) {
+                continue;
+            }
+            char type = fields[0].charAt(0);
+            if (type == FileType.INFO.gopherType || type == FileType.ERROR.gopherType || type == FileType.SEARCH.gopherType
+                    || type == FileType.HTML.gopherType || type == '8' || type == 'T') {
+                continue;
+            }
+            String key = toKey(fields[1]);
+            if (key != null) {
+                FileType linkType = type == FileType.DIRECTORY.gopherType ? FileType.DIRECTORY : FileType.BINARY;
+                links.add(new Link(fields[1], key, Paths.get(key), linkType));
+            }
+        }
+        return links;
+    }
+
+    /**
+     * @return the selector as the normalized path it's served from (see GopherOutput.selectorToPath()), which is how
+     * we tell that two selectors are the same thing, or null if it isn't under the root.
+     */
+    private String toKey(String selector) {
+        try {
+            Path path = Paths.get(Config.current().getRoot(), selector).toAbsolutePath().normalize();
+            return path.startsWith(root) ? path.toString() : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static class Visit {
+        private final String menu;
+        private final long time;
+
+        Visit(String menu, long time) {
+            this.menu = menu;
+            this.time = time;
+        }
+    }
+
+    private static class MenuStats {
+        private final AtomicInteger visits = new AtomicInteger();
+        private final Map<String, AtomicInteger> followed = new ConcurrentHashMap<>();
+    }
+
+    private static class Link {
+        private final String selector;
+        private final String key;
+        private final Path path;
+        private final FileType type;
+
+        Link(String selector, String key, Path path, FileType type) {
+            this.selector = selector;
+            this.key = key;
+            this.path = path;
+            this.type = type;
+        }
+    }
+}
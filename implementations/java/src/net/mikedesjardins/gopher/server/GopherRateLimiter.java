@@ -0,0 +1,239 @@
+package net.mikedesjardins.gopher.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-client rate limits, so one crawler in a tight loop can't eat the whole server. Every client address gets two
+ * token buckets: one for requests (--ratelimit a second, up to --rateburst at once) and one for bytes sent
+ * (--clientbandwidth a second). The engines check the request bucket right after accept(), before we've read a
+ * selector or touched the filesystem, and a client whose bucket is empty, or who's run its byte bucket into the red,
+ * gets turned away. Bytes are charged after the response has gone, so one big file can put a client in debt for a
+ * while.
+ *
+ * The buckets live in a fixed-size table, so memory use doesn't depend on how many addresses we see. An address
+ * hashes to a set of WAYS slots, and when they're all taken, the one that's been quiet longest gets reused (by then
+ * its bucket has usually refilled, so nothing's lost). IPv6 clients are keyed by their /64, since anybody with one
+ * address usually has the whole /64. The hash is seeded randomly, so nobody can pick addresses that all land in one
+ * set.
+ *
+ * There are no locks. Each slot is three longs in an AtomicLongArray: the address's fingerprint, and each bucket
+ * packed into a single long (the time it was last topped up in the upper 32 bits and its tokens in the lower 32),
+ * so a bucket is updated with one compareAndSet. Two addresses racing for the same free slot can briefly see each
+ * other's buckets, which is harmless for rate limiting.
+ */
+public class GopherRateLimiter {
+    static final int SLOTS = 1 << 16;
+    private static final int WAYS = 4;
+    private static final int STRIDE = 3;
+    private static final int FINGERPRINT = 0;
+    private static final int REQUESTS = 1;
+    private static final int BYTES = 2;
+    // Request tokens are kept in thousandths, so refilling by the millisecond doesn't lose anything.
+    private static final int REQUEST = 1000;
+    // How far behind the last update to a bucket a thread's reading of the clock can be, in millis.
+    private static final int CLOCK_SKEW = 60_000;
+    private static volatile GopherRateLimiter instance;
+    private static volatile boolean initialized;
+
+    private final AtomicLongArray table = new AtomicLongArray(SLOTS * STRIDE);
+    private final long seed = ThreadLocalRandom.current().nextLong() | 1;
+    private final long epoch = System.currentTimeMillis();
+    private final long requestRate;
+    private final long requestBurst;
+    private final long byteRate;
+    private final long byteBurst;
+
+    GopherRateLimiter(long requestsPerSecond, long burst, long bytesPerSecond) {
+        this.requestRate = requestsPerSecond;
+        this.requestBurst = Math.min(Integer.MAX_VALUE, Math.max(1, burst > 0 ? burst : requestsPerSecond) * REQUEST);
+        this.byteRate = bytesPerSecond;
+        this.byteBurst = Math.min(Integer.MAX_VALUE / 2, bytesPerSecond);
+    }
+
+    /**
+     * This gets called for every connection, so unlike most of our singletons it doesn't take a lock once it's set
+     * up.
+     * @return the rate limiter, or null if there are no per-client limits.
+     */
+    public static GopherRateLimiter getInstance() {
+        if (!initialized) {
+            synchronized (GopherRateLimiter.class) {
+                if (!initialized) {
+                    if (Config.getRateLimit() > 0 || Config.getClientBandwidth() > 0) {
+                        instance = new GopherRateLimiter(Config.getRateLimit(), Config.getRateBurst(), Config.getClientBandwidth());
+                    }
+                    initialized = true;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Takes a request token for a client that's just connected.
+     * @param client the client's address.
+     * @return false if the client's over its limit, in which case it should be turned away.
+     */
+    public boolean tryAcquire(InetAddress client) {
+        long fingerprint = fingerprint(client);
+        int now = now();
+        int slot = claim(fingerprint, now);
+        if (requestRate > 0) {
+            int index = slot + REQUESTS;
+            while (true) {
+                long state = table.get(index);
+                long tokens = refill(state, now, requestRate * REQUEST, requestBurst);
+                if (tokens < REQUEST) {
+                    return false;
+                }
+                if (table.compareAndSet(index, state, pack(now, tokens - REQUEST))) {
+                    break;
+                }
+            }
+        }
+        return byteRate <= 0 || refill(table.get(slot + BYTES), now, byteRate, byteBurst) > 0;
+    }
+
+    /**
+     * Charges a client for the bytes we sent it. If the client's slot has been given to somebody else in the
+     * meantime, it gets away with it.
+     * @param client the client's address.
+     * @param bytes how many bytes we sent.
+     */
+    public void charge(InetAddress client, long bytes) {
+        if (byteRate <= 0 || bytes <= 0) {
+            return;
+        }
+        long fingerprint = fingerprint(client);
+        int now = now();
+        int slot = find(fingerprint);
+        if (slot < 0) {
+            return;
+        }
+        int index = slot + BYTES;
+        while (true) {
+            long state = table.get(index);
+            long tokens = Math.max(Integer.MIN_VALUE / 2, refill(state, now, byteRate, byteBurst) - bytes);
+            if (table.compareAndSet(index, state, pack(now, tokens))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the client's slot, taking one over if it hasn't got one.
+     */
+    private int claim(long fingerprint, int now) {
+        int set = (int) (fingerprint >>> 32) & (SLOTS / WAYS - 1);
+        int first = set * WAYS * STRIDE;
+        int victim = first;
+        for (int attempt = 0; attempt < WAYS; attempt++) {
+            long oldest = -1;
+            for (int way = 0; way < WAYS; way++) {
+                int slot = first + way * STRIDE;
+                long owner = table.get(slot + FINGERPRINT);
+                if (owner == fingerprint) {
+                    return slot;
+                }
+                // Empty slots look like they've been quiet forever.
+                long quiet = owner == 0 ? Long.MAX_VALUE : Math.min(
+                        elapsed(table.get(slot + REQUESTS), now),
+                        elapsed(table.get(slot + BYTES), now));
+                if (quiet > oldest) {
+                    oldest = quiet;
+                    victim = slot;
+                }
+            }
+            long owner = table.get(victim + FINGERPRINT);
+            if (owner == fingerprint) {
+                // Another thread took it for the same client while we were looking, and it's already spending it.
+                return victim;
+            }
+            long requests = table.get(victim + REQUESTS);
+            long bytes = table.get(victim + BYTES);
+            if (table.compareAndSet(victim + FINGERPRINT, owner, fingerprint)) {
+                // Only if nobody's started spending them in the meantime.
+                table.compareAndSet(victim + REQUESTS, requests, pack(now, requestBurst));
+                table.compareAndSet(victim + BYTES, bytes, pack(now, byteBurst));
+                return victim;
+            }
+            // Somebody else got there first, so look again.
+        }
+        return victim;
+    }
+
+    private int find(long fingerprint) {
+        int set = (int) (fingerprint >>> 32) & (SLOTS / WAYS - 1);
+        int first = set * WAYS * STRIDE;
+        for (int way = 0; way < WAYS; way++) {
+            int slot = first + way * STRIDE;
+            if (table.get(slot + FINGERPRINT) == fingerprint) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the bucket's tokens, topped up for the time since it was last touched, but no higher than burst.
+     */
+    private static long refill(long state, int now, long perSecond, long burst) {
+        long elapsed = elapsed(state, now);
+        long tokens = tokens(state);
+        if (tokens >= burst) {
+            return burst;
+        }
+        // Anything over a few hours is as good as forever, and this way the multiply can't overflow.
+        return Math.min(burst, tokens + Math.min(elapsed, 1L << 24) * perSecond / 1000);
+    }
+
+    /**
+     * @return milliseconds since the bucket was last touched. The clock's an int that wraps every 49 days, so this is
+     * unsigned, except that a thread that read the clock just before another one touched the bucket can be a little
+     * behind it, and that counts as no time at all rather than most of 49 days.
+     */
+    private static long elapsed(long state, int now) {
+        int elapsed = now - time(state);
+        return elapsed < 0 && elapsed > -CLOCK_SKEW ? 0 : Integer.toUnsignedLong(elapsed);
+    }
+
+    private long fingerprint(InetAddress client) {
+        long key;
+        if (client instanceof Inet4Address) {
+            key = client.hashCode() & 0xffffffffL;
+        } else {
+            byte[] address = client.getAddress();
+            key = 1L << 63;
+            for (int i = 0; i < 8 && i < address.length; i++) {
+                key ^= (address[i] & 0xffL) << (8 * i);
+            }
+        }
+        // MurmurHash3's finalizer, which spreads every bit of the key over the whole hash.
+        long h = key * seed;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private int now() {
+        return (int) (System.currentTimeMillis() - epoch);
+    }
+
+    private static long pack(int time, long tokens) {
+        return ((long) time << 32) | (tokens & 0xffffffffL);
+    }
+
+    private static int time(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int tokens(long state) {
+        return (int) state;
+    }
+}
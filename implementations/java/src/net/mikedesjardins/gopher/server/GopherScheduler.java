@@ -0,0 +1,515 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends every response body, for every engine, so that a handful of big downloads can't hog the server. Once a
+ * request is resolved, its engine hands the connection over and goes back to work (which, for the blocking engines,
+ * means the worker thread is free for the next client instead of being stuck pushing a big file). One scheduler
+ * thread then writes all the responses a chunk at a time, interleaving them:
+ *
+ * Menus, searches, errors and small files are interactive, and get the first chunk of every round (when there aren't
+ * any caps, the engine's thread tries writing them itself first, since they usually fit in the socket buffer). Files bigger
+ * than the bulk threshold (or text files that turn out to be, once they've sent that much) are bulk, and share what's
+ * left with deficit round-robin, so each of them gets the same number of bytes per round no matter how fast its
+ * client reads. Bulk connections also get a smallish socket send buffer, so the kernel isn't sitting on megabytes of
+ * them queued up in front of a menu.
+ *
+ * There can also be a cap on the total bytes per second and on each connection's bytes per second. Both are token
+ * buckets, and interactive responses spend from the total first.
+ */
+public class GopherScheduler {
+    private static final Logger LOGGER = Logger.getLogger(GopherScheduler.class.getName());
+    private static final int QUANTUM = GopherServerThread.BUFFER_SIZE;
+    private static final int BULK_SEND_BUFFER = 4 * QUANTUM;
+    // Once a bucket is empty, wait until there's this much in it, rather than dribbling out a few bytes at a time.
+    private static final long MIN_GRANT = 4096;
+    private static final long SWEEP_INTERVAL_MILLIS = 250;
+    private static GopherScheduler instance;
+
+    /**
+     * Told when a transfer is over, one way or the other. Whoever handed the connection over closes it from here.
+     */
+    public interface Listener {
+        /**
+         * @param bytes how many bytes were sent.
+         * @param writeNanos how long was spent writing them.
+         */
+        void finished(long bytes, long writeNanos);
+    }
+
+    private final Queue<Transfer> incoming = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Transfer> interactive = new ArrayDeque<>();
+    private final ArrayDeque<Transfer> bulk = new ArrayDeque<>();
+    private final PriorityQueue<Transfer> sleeping = new PriorityQueue<>(Comparator.comparingLong(t -> t.wakeAt));
+    private final Set<Transfer> transfers = new HashSet<>();
+    private final Selector selector;
+    private final Bucket bandwidth;
+    private final long bulkThreshold = Config.getBulkThreshold();
+    private volatile int activeTransfers;
+    private volatile int bulkTransfers;
+
+    private GopherScheduler() throws IOException {
+        selector = Selector.open();
+        bandwidth = Config.getBandwidth() > 0 ? new Bucket(Config.getBandwidth()) : null;
+    }
+
+    /**
+     * @return the scheduler, or null if responses are just written straight out (no --schedule, and no caps).
+     */
+    public static synchronized GopherScheduler getInstance() {
+        if (instance == null && isEnabled()) {
+            try {
+                GopherScheduler scheduler = new GopherScheduler();
+                Thread thread = new Thread(GopherBufferPool.keepingBuffers(scheduler::run), "gopher-scheduler");
+                thread.setDaemon(true);
+                thread.start();
+                instance = scheduler;
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to start the transfer scheduler", e);
+            }
+        }
+        return instance;
+    }
+
+    private static boolean isEnabled() {
+        return Config.isSchedule() || Config.getBandwidth() > 0 || Config.getConnectionBandwidth() > 0;
+    }
+
+    /**
+     * Takes over sending a response. From here on the scheduler owns the connection until it tells the listener
+     * it's done, so the caller mustn't touch it (or the output) again.
+     * @param channel the client's connection. It gets switched to non-blocking.
+     * @param result what to send.
+     * @param resolved when we finished resolving the selector, for the render timer.
+     * @param listener told when the transfer is over.
+     */
+    public void submit(SocketChannel channel, GopherOutput result, long resolved, Listener listener) {
+        Transfer transfer = new Transfer(channel, result, listener);
+        try {
+            // Same order of preference as GopherServerThread.send().
+            transfer.buffer = result.buffer();
+            if (transfer.buffer == null) {
+                transfer.file = result.channel();
+            }
+            if (transfer.buffer == null && transfer.file == null) {
+                transfer.stream = result.stream();
+            }
+            if (transfer.buffer == null && transfer.file == null && transfer.stream == null) {
+                LOGGER.log(Level.WARNING, "Well, that's weird. The input stream from GopherOutput was null.");
+                listener.finished(0, 0);
+                return;
+            }
+            GopherMetrics.getInstance().rendered(System.nanoTime() - resolved);
+            channel.configureBlocking(false);
+            transfer.start();
+
+            // With no caps to respect, a menu or small file usually fits in the socket's buffer in one go, so have a
+            // go at that right here instead of waiting for the scheduler thread to get around to it.
+            if (!transfer.bulk && bandwidth == null && transfer.bucket == null) {
+                long started = System.nanoTime();
+                transfer.write(QUANTUM);
+                transfer.writeNanos += System.nanoTime() - started;
+                if (transfer.complete) {
+                    transfer.closeSource();
+                    listener.finished(transfer.bytes, transfer.writeNanos);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to start sending " + result.selector + ": " + e.getMessage());
+            transfer.closeSource();
+            listener.finished(0, 0);
+            return;
+        }
+        incoming.add(transfer);
+        selector.wakeup();
+    }
+
+    public int getActiveTransfers() { return activeTransfers; }
+    public int getBulkTransfers() { return bulkTransfers; }
+
+    private void run() {
+        boolean deadlines = Config.getWriteTimeout() > 0;
+        long nextSweep = System.nanoTime();
+        while (true) {
+            try {
+                long wait = schedule(System.nanoTime());
+                if (wait == 0) {
+                    selector.selectNow();
+                } else if (wait > 0) {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                } else {
+                    selector.select(deadlines ? SWEEP_INTERVAL_MILLIS : 0);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Transfer transfer = (Transfer) key.attachment();
+                    if (key.isValid() && !transfer.done) {
+                        key.interestOps(0);
+                        ready(transfer);
+                    }
+                }
+                Transfer transfer;
+                while ((transfer = incoming.poll()) != null) {
+                    transfers.add(transfer);
+                    if (transfer.bulk) {
+                        transfer.makeBulk();
+                    }
+                    ready(transfer);
+                }
+                long now = System.nanoTime();
+                if (deadlines && now - nextSweep >= 0) {
+                    sweep(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+                }
+                activeTransfers = transfers.size();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "The transfer scheduler hit a snag.", e);
+            }
+        }
+    }
+
+    /**
+     * One round: a chunk for each interactive transfer, then a quantum for each bulk one.
+     * @return 0 if there's more to do straight away, how many nanoseconds until there is if we're waiting on a rate
+     * cap, or -1 if we're just waiting on sockets.
+     */
+    private long schedule(long now) {
+        while (!sleeping.isEmpty() && sleeping.peek().wakeAt - now <= 0) {
+            ready(sleeping.poll());
+        }
+
+        for (int n = interactive.size(); n > 0; n--) {
+            Transfer transfer = interactive.poll();
+            if (transfer.done) {
+                continue;
+            }
+            if (bandwidth != null && bandwidth.available(now) < 1) {
+                interactive.addFirst(transfer);
+                break;
+            }
+            serve(transfer, QUANTUM, now);
+        }
+
+        for (int n = bulk.size(); n > 0; n--) {
+            Transfer transfer = bulk.poll();
+            if (transfer.done) {
+                continue;
+            }
+            if (bandwidth != null && bandwidth.available(now) < 1) {
+                bulk.addFirst(transfer);
+                break;
+            }
+            transfer.deficit += QUANTUM;
+            serve(transfer, transfer.deficit, now);
+        }
+
+        long wait = -1;
+        if (!interactive.isEmpty() || !bulk.isEmpty()) {
+            wait = bandwidth != null && bandwidth.available(now) < 1 ? Math.max(1, bandwidth.nanosUntil(MIN_GRANT)) : 0;
+        }
+        if (!sleeping.isEmpty()) {
+            long untilWake = Math.max(1, sleeping.peek().wakeAt - now);
+            wait = wait < 0 ? untilWake : Math.min(wait, untilWake);
+        }
+        return wait;
+    }
+
+    /**
+     * Gives a transfer its turn, and puts it wherever it belongs afterwards: done, waiting on its socket, waiting on
+     * its own rate cap, or back in line.
+     * @return the number of bytes written.
+     */
+    private long serve(Transfer transfer, long allowance, long now) {
+        long limit = allowance;
+        if (transfer.bucket != null) {
+            long available = transfer.bucket.available(now);
+            if (available < 1) {
+                transfer.deficit = 0;
+                transfer.wakeAt = now + transfer.bucket.nanosUntil(MIN_GRANT);
+                sleeping.add(transfer);
+                return 0;
+            }
+            limit = Math.min(limit, available);
+        }
+        if (bandwidth != null) {
+            limit = Math.min(limit, bandwidth.available(now));
+        }
+
+        long written;
+        try {
+            long started = System.nanoTime();
+            written = transfer.write(limit);
+            transfer.writeNanos += System.nanoTime() - started;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Socket Exception: " + e.getMessage());
+            finish(transfer);
+            return 0;
+        }
+        if (transfer.bucket != null) {
+            transfer.bucket.take(written);
+        }
+        if (bandwidth != null) {
+            bandwidth.take(written);
+        }
+        transfer.deficit = Math.max(0, transfer.deficit - written);
+
+        if (transfer.complete) {
+            finish(transfer);
+        } else if (transfer.blocked) {
+            transfer.deficit = 0;
+            // The write timeout only runs while we're waiting on the client, so it starts now, with whatever got
+            // written since the last time. Time spent in the queues or asleep on a rate cap is ours, not theirs.
+            transfer.deadline = System.nanoTime() + transfer.timeout;
+            try {
+                if (transfer.key == null) {
+                    transfer.key = transfer.channel.register(selector, SelectionKey.OP_WRITE, transfer);
+                } else {
+                    transfer.key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Socket Exception: " + e.getMessage());
+                finish(transfer);
+            }
+        } else {
+            if (!transfer.bulk && transfer.demotable && transfer.bytes > bulkThreshold) {
+                transfer.makeBulk();
+            }
+            (transfer.bulk ? bulk : interactive).add(transfer);
+        }
+        return written;
+    }
+
+    private void ready(Transfer transfer) {
+        transfer.blocked = false;
+        (transfer.bulk ? bulk : interactive).add(transfer);
+    }
+
+    /**
+     * Gives up on every transfer that's been waiting on its socket for longer than the write timeout.
+     */
+    private void sweep(long now) {
+        for (Transfer transfer : new ArrayList<>(transfers)) {
+            if (transfer.blocked && now - transfer.deadline > 0) {
+                GopherAdmission.getInstance().rejected(GopherAdmission.Rejection.WRITE_TIMEOUT);
+                finish(transfer);
+            }
+        }
+    }
+
+    /**
+     * Done with a transfer, for better or worse. It may still be sitting in one of the queues, but it'll be skipped
+     * when its turn comes around.
+     */
+    private void finish(Transfer transfer) {
+        if (transfer.done) {
+            return;
+        }
+        transfer.done = true;
+        transfers.remove(transfer);
+        if (transfer.bulk) {
+            bulkTransfers--;
+        }
+        if (transfer.key != null) {
+            transfer.key.cancel();
+        }
+        transfer.closeSource();
+        try {
+            transfer.listener.finished(transfer.bytes, transfer.writeNanos);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Unable to clean up after a transfer.", e);
+        }
+    }
+
+    /**
+     * One response on its way out.
+     */
+    private class Transfer {
+        private final SocketChannel channel;
+        private final GopherOutput result;
+        private final Listener listener;
+        private final Bucket bucket;
+        private final long timeout;
+        private long deadline;
+        private ByteBuffer buffer;
+        private FileChannel file;
+        private long filePosition;
+        private long fileEnd;
+        private InputStream stream;
+        private GopherBufferPool.Lease chunkLease;
+        private ByteBuffer chunk;
+        private SelectionKey key;
+        private long bytes;
+        private long writeNanos;
+        private long deficit;
+        private long wakeAt;
+        private boolean bulk;
+        private boolean demotable;
+        private boolean blocked;
+        private boolean complete;
+        private boolean done;
+
+        Transfer(SocketChannel channel, GopherOutput result, Listener listener) {
+            this.channel = channel;
+            this.result = result;
+            this.listener = listener;
+            Config.Snapshot config = Config.current();
+            this.bucket = config.getConnectionBandwidth() > 0 ? new Bucket(config.getConnectionBandwidth()) : null;
+            this.timeout = config.getWriteTimeout() > 0 ? TimeUnit.MILLISECONDS.toNanos(config.getWriteTimeout()) : Long.MAX_VALUE / 2;
+        }
+
+        /**
+         * Works out which class the transfer starts in. Only files can be bulk. If we know how big one is up front,
+         * that decides it, and if we don't (a text file being converted as it goes) it starts out interactive and
+         * gets demoted if it turns out to be big.
+         */
+        void start() throws IOException {
+            if (file != null) {
+                filePosition = file.position();
+                fileEnd = result.channelLength() < 0 ? file.size() : filePosition + result.channelLength();
+            }
+            if (stream != null) {
+                chunkLease = GopherBufferPool.getInstance().heap(QUANTUM);
+                chunk = chunkLease.buffer().limit(0);
+            }
+            if (RequestOutcome.of(result) == RequestOutcome.FILE) {
+                long size = buffer != null ? buffer.remaining() : file != null ? fileEnd - filePosition : -1;
+                bulk = size > bulkThreshold;
+                demotable = size < 0;
+            }
+        }
+
+        /**
+         * Moves the transfer into the bulk class. Only the scheduler thread calls this.
+         */
+        void makeBulk() {
+            bulk = true;
+            bulkTransfers++;
+            try {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, BULK_SEND_BUFFER);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to shrink a send buffer: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Writes up to limit bytes, stopping early if the socket fills up (blocked) or we run out of response
+         * (complete).
+         * @return the number of bytes written.
+         */
+        long write(long limit) throws IOException {
+            long written = 0;
+            while (written < limit && !complete) {
+                long count;
+                if (buffer != null) {
+                    count = writeBuffer(buffer, limit - written);
+                    complete = !buffer.hasRemaining();
+                } else if (file != null) {
+                    count = file.transferTo(filePosition, Math.min(limit - written, fileEnd - filePosition), channel);
+                    filePosition += count;
+                    // Zero could also mean the file got truncated under us, in which case there's no more to send.
+                    complete = filePosition >= fileEnd || count == 0 && filePosition >= file.size();
+                } else {
+                    if (!chunk.hasRemaining()) {
+                        int read = stream.read(chunk.array(), 0, QUANTUM);
+                        if (read <= 0) {
+                            complete = true;
+                            break;
+                        }
+                        chunk.position(0).limit(read);
+                    }
+                    count = writeBuffer(chunk, limit - written);
+                }
+                if (count == 0 && !complete) {
+                    blocked = true;
+                    break;
+                }
+                written += count;
+            }
+            bytes += written;
+            return written;
+        }
+
+        private int writeBuffer(ByteBuffer source, long max) throws IOException {
+            int limit = source.limit();
+            source.limit((int) Math.min(limit, source.position() + max));
+            try {
+                return channel.write(source);
+            } finally {
+                source.limit(limit);
+            }
+        }
+
+        void closeSource() {
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to close " + result.selector + ": " + e.getMessage());
+            } finally {
+                if (chunkLease != null) {
+                    chunkLease.close();
+                    chunkLease = null;
+                    chunk = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * A token bucket holding up to a twentieth of a second's worth of bytes (or a quantum, if that's more). Only
+     * the scheduler thread touches these, so there's no locking.
+     */
+    private static class Bucket {
+        private final long rate;
+        private final double capacity;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        Bucket(long rate) {
+            this.rate = rate;
+            this.capacity = Math.max(QUANTUM, rate / 20.0);
+            this.tokens = capacity;
+        }
+
+        long available(long now) {
+            tokens = Math.min(capacity, tokens + (now - last) * rate / 1e9);
+            last = now;
+            return (long) tokens;
+        }
+
+        void take(long bytes) {
+            tokens -= bytes;
+        }
+
+        long nanosUntil(long bytes) {
+            return (long) Math.ceil((Math.min(bytes, capacity) - tokens) * 1e9 / rate);
+        }
+    }
+}
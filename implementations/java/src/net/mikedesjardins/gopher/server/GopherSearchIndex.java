@@ -0,0 +1,625 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An inverted index of every text file under the root, plus the info lines of every gophermap, for the search
+ * selector (see GopherSearchOutput). Each term maps to a postings list of document ids and how often the term shows
+ * up in each, kept in plain int arrays sorted by document id. Queries walk the postings lists of their terms side by
+ * side, scoring each matching document with BM25 as they go and keeping the best few in a small heap, so a query
+ * costs about as much as the postings it touches.
+ *
+ * The index is built in the background when the server starts, reading and tokenizing files in parallel on a
+ * ForkJoinPool, and after that a WatchService keeps it up to date. A changed file gets a brand new document id (so
+ * postings lists stay sorted just by appending) and its old one is marked as removed. Removed documents are skipped
+ * by queries and dropped from the postings lists once there are enough of them to be worth the trouble.
+ */
+public class GopherSearchIndex {
+    private static final Logger LOGGER = Logger.getLogger(GopherSearchIndex.class.getName());
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int LEAF_SIZE = 32;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static GopherSearchIndex instance;
+
+    private final Path root;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final List<Document> documents = new ArrayList<>();
+    private final Map<Path, Integer> documentsByPath = new HashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private long totalLength;
+    private int liveDocuments;
+    private int removedDocuments;
+    private volatile boolean ready;
+    private WatchService watchService;
+
+    private GopherSearchIndex(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the search index, which starts building in the background the first time this is called.
+     */
+    public static synchronized GopherSearchIndex getInstance() {
+        if (instance == null) {
+            instance = new GopherSearchIndex(Paths.get(Config.getRoot()).toAbsolutePath().normalize());
+            Thread builder = new Thread(instance::start, "gopher-search-indexer");
+            builder.setDaemon(true);
+            builder.start();
+        }
+        return instance;
+    }
+
+    /**
+     * @return false while the index is still being built, in which case searches only see part of the root.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveDocuments;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the documents that best match a query. Any document containing any of the query's terms matches, and
+     * they're ranked by BM25.
+     * @param query whatever the user typed.
+     * @param limit how many results to return at most.
+     * @return the best matches, best first.
+     */
+    public List<Result> search(String query, int limit) {
+        Set<String> queryTerms = tokenize(query).keySet();
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (String term : queryTerms) {
+                Postings postings = terms.get(term);
+                if (postings != null) {
+                    lists.add(postings);
+                }
+            }
+            if (lists.isEmpty() || liveDocuments == 0) {
+                return Collections.emptyList();
+            }
+
+            float averageLength = (float) totalLength / liveDocuments;
+            float[] idf = new float[lists.size()];
+            int[] cursors = new int[lists.size()];
+            for (int i = 0; i < idf.length; i++) {
+                int df = lists.get(i).size;
+                idf[i] = (float) Math.log(1 + (liveDocuments - df + 0.5) / (df + 0.5));
+            }
+
+            PriorityQueue<Result> best = new PriorityQueue<>(limit + 1);
+            while (true) {
+                // The next document is the smallest id any of the lists is sitting on.
+                int next = Integer.MAX_VALUE;
+                for (int i = 0; i < cursors.length; i++) {
+                    Postings postings = lists.get(i);
+                    if (cursors[i] < postings.size && postings.documents[cursors[i]] < next) {
+                        next = postings.documents[cursors[i]];
+                    }
+                }
+                if (next == Integer.MAX_VALUE) {
+                    break;
+                }
+                Document document = documents.get(next);
+                float score = 0;
+                for (int i = 0; i < cursors.length; i++) {
+                    Postings postings = lists.get(i);
+                    if (cursors[i] < postings.size && postings.documents[cursors[i]] == next) {
+                        if (document != null) {
+                            int tf = postings.frequencies[cursors[i]];
+                            score += idf[i] * tf * (K1 + 1) / (tf + K1 * (1 - B + B * document.length / averageLength));
+                        }
+                        cursors[i]++;
+                    }
+                }
+                if (document != null && (best.size() < limit || score > best.peek().score)) {
+                    best.add(new Result(document, score));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+
+            Result[] results = best.toArray(new Result[0]);
+            Arrays.sort(results, Collections.reverseOrder());
+            return Arrays.asList(results);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void start() {
+        long started = System.nanoTime();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to watch the filesystem, the search index won't be kept up to date.", e);
+        }
+        List<Path> paths = new ArrayList<>();
+        collect(root, paths);
+        Partial partial = ForkJoinPool.commonPool().invoke(new BuildTask(paths, 0, paths.size()));
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < partial.documents.length; i++) {
+                Document document = partial.documents[i];
+                documents.add(document);
+                if (document != null) {
+                    documentsByPath.put(document.path, i);
+                    totalLength += document.length;
+                    liveDocuments++;
+                }
+            }
+            terms.putAll(partial.terms);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        ready = true;
+        LOGGER.log(Level.INFO, "Search index built: " + liveDocuments + " documents, " + terms.size() + " terms in "
+                + (System.nanoTime() - started) / 1_000_000 + "ms");
+
+        if (watchService != null) {
+            watch();
+        }
+    }
+
+    /**
+     * Walks everything at and under the supplied path, collecting the files we can search and watching every
+     * directory along the way.
+     */
+    private void collect(Path start, List<Path> paths) {
+        try {
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    if (!Files.isReadable(dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    register(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && isSearchable(file)) {
+                        paths.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to index " + start, e);
+        }
+    }
+
+    private boolean isSearchable(Path file) {
+        String name = file.getFileName().toString();
+        return name.equals(Config.getMapFilename()) || FileType.getFromFileName(name) == FileType.TEXT;
+    }
+
+    /**
+     * Reads and tokenizes one file. Gophermaps are indexed by their info lines and found as the menu they're in.
+     * @return the document and its term frequencies, or null if we couldn't read it.
+     */
+    private Tokenized read(Path file) {
+        boolean gopherMap = file.getFileName().toString().equals(Config.getMapFilename());
+        Path target = gopherMap ? file.getParent() : file;
+        String key = root.relativize(target).toString();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            Map<String, Integer> frequencies = new HashMap<>();
+            int length;
+            if (gopherMap) {
+                StringBuilder info = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("#")) {
+                        continue;
+                    }
+                    int tab = line.indexOf('\t');
+                    if (tab < 0) {
+                        // The server shows these exactly as they are, but plenty of people write them with an "i"
+                        // in front anyway, so make them findable either way.
+                        info.append(line).append('\n');
+                        if (line.startsWith("i")) {
+                            info.append(line, 1, line.length()).append('\n');
+                        }
+                    } else if (line.startsWith("i")) {
+                        info.append(line, 1, tab).append('\n');
+                    }
+                }
+                length = tokenize(new StringReader(info.toString()), frequencies);
+            } else {
+                length = tokenize(reader, frequencies);
+            }
+            String title = gopherMap ? "/" + key : key;
+            Document document = new Document(file, key, gopherMap ? FileType.DIRECTORY : FileType.TEXT, title, length);
+            return new Tokenized(document, frequencies);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to index " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Map<String, Integer> tokenize(String text) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        try {
+            tokenize(new StringReader(text), frequencies);
+        } catch (IOException e) {
+            // Not from a StringReader.
+        }
+        return frequencies;
+    }
+
+    /**
+     * Splits text into lower case runs of letters and digits, counting how often each one shows up.
+     * @return how many terms there were in total.
+     */
+    private static int tokenize(Reader reader, Map<String, Integer> frequencies) throws IOException {
+        char[] chars = new char[8192];
+        StringBuilder term = new StringBuilder();
+        int length = 0;
+        int count;
+        while ((count = reader.read(chars)) >= 0) {
+            for (int i = 0; i < count; i++) {
+                if (Character.isLetterOrDigit(chars[i])) {
+                    if (term.length() < MAX_TERM_LENGTH) {
+                        term.append(Character.toLowerCase(chars[i]));
+                    }
+                } else if (term.length() > 0) {
+                    frequencies.merge(term.toString(), 1, Integer::sum);
+                    term.setLength(0);
+                    length++;
+                }
+            }
+        }
+        if (term.length() > 0) {
+            frequencies.merge(term.toString(), 1, Integer::sum);
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Tokenizes a slice of the files, splitting it in half until the slices are small enough to just do.
+     */
+    @SuppressWarnings("serial") // Never serialized, it's only ever handed to our own pool.
+    private class BuildTask extends RecursiveTask<Partial> {
+        private final List<Path> paths;
+        private final int from;
+        private final int to;
+
+        BuildTask(List<Path> paths, int from, int to) {
+            this.paths = paths;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (to - from <= LEAF_SIZE) {
+                Partial partial = new Partial(to - from);
+                for (int i = from; i < to; i++) {
+                    Tokenized tokenized = read(paths.get(i));
+                    if (tokenized != null) {
+                        partial.documents[i - from] = tokenized.document;
+                        for (Map.Entry<String, Integer> entry : tokenized.frequencies.entrySet()) {
+                            partial.terms.computeIfAbsent(entry.getKey(), k -> new Postings()).add(i, entry.getValue());
+                        }
+                    }
+                }
+                return partial;
+            }
+            int middle = (from + to) >>> 1;
+            BuildTask left = new BuildTask(paths, from, middle);
+            BuildTask right = new BuildTask(paths, middle, to);
+            right.fork();
+            return left.compute().merge(right.join());
+        }
+    }
+
+    /**
+     * Runs on the watcher thread forever, reindexing whatever changes.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Path dir = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    // We lost track of what changed, so go over everything again.
+                    update(root);
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    removeUnder(path);
+                } else {
+                    update(path);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Reindexes a file, or every file under a directory.
+     */
+    private void update(Path path) {
+        if (Files.isDirectory(path)) {
+            removeUnder(path);
+            List<Path> paths = new ArrayList<>();
+            collect(path, paths);
+            paths.forEach(this::reindex);
+        } else if (isSearchable(path)) {
+            reindex(path);
+        }
+    }
+
+    private void reindex(Path file) {
+        Tokenized tokenized = Files.isReadable(file) ? read(file) : null;
+        lock.writeLock().lock();
+        try {
+            remove(file);
+            if (tokenized != null) {
+                int id = documents.size();
+                documents.add(tokenized.document);
+                documentsByPath.put(file, id);
+                totalLength += tokenized.document.length;
+                liveDocuments++;
+                for (Map.Entry<String, Integer> entry : tokenized.frequencies.entrySet()) {
+                    terms.computeIfAbsent(entry.getKey(), k -> new Postings()).add(id, entry.getValue());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeUnder(Path path) {
+        lock.writeLock().lock();
+        try {
+            for (Path indexed : new ArrayList<>(documentsByPath.keySet())) {
+                if (indexed.startsWith(path)) {
+                    remove(indexed);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks a file's document as removed. Call with the write lock held.
+     */
+    private void remove(Path file) {
+        Integer id = documentsByPath.remove(file);
+        if (id != null) {
+            totalLength -= documents.get(id).length;
+            documents.set(id, null);
+            liveDocuments--;
+            removedDocuments++;
+        }
+    }
+
+    /**
+     * Once removed documents outnumber live ones, squeeze them out of the postings lists.
+     */
+    private void compactIfNeeded() {
+        lock.writeLock().lock();
+        try {
+            if (removedDocuments <= Math.max(liveDocuments, 1024)) {
+                return;
+            }
+            terms.values().removeIf(postings -> postings.compact(documents) == 0);
+            removedDocuments = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void register(Path dir) {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, dir);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to watch " + dir + ", searches may go stale there.");
+        }
+    }
+
+    /**
+     * The documents containing one term, and how many times it's in each, in order of document id.
+     */
+    private static class Postings {
+        private int[] documents = new int[4];
+        private int[] frequencies = new int[4];
+        private int size;
+
+        void add(int document, int frequency) {
+            if (size == documents.length) {
+                documents = Arrays.copyOf(documents, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            documents[size] = document;
+            frequencies[size] = frequency;
+            size++;
+        }
+
+        /**
+         * Tacks another list on the end. Every id in it has to be bigger than every id in this one.
+         */
+        void append(Postings other) {
+            if (size + other.size > documents.length) {
+                documents = Arrays.copyOf(documents, size + other.size);
+                frequencies = Arrays.copyOf(frequencies, size + other.size);
+            }
+            System.arraycopy(other.documents, 0, documents, size, other.size);
+            System.arraycopy(other.frequencies, 0, frequencies, size, other.size);
+            size += other.size;
+        }
+
+        /**
+         * Drops removed documents.
+         * @return how many are left.
+         */
+        int compact(List<Document> live) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (live.get(documents[i]) != null) {
+                    documents[kept] = documents[i];
+                    frequencies[kept] = frequencies[i];
+                    kept++;
+                }
+            }
+            size = kept;
+            documents = Arrays.copyOf(documents, Math.max(kept, 1));
+            frequencies = Arrays.copyOf(frequencies, Math.max(kept, 1));
+            return kept;
+        }
+    }
+
+    /**
+     * The index of one slice of the files during the build. Document ids are positions in the full list of files.
+     */
+    private static class Partial {
+        private final Document[] documents;
+        private final Map<String, Postings> terms = new HashMap<>();
+
+        Partial(int size) {
+            this.documents = new Document[size];
+        }
+
+        /**
+         * Folds in the partial index of the slice that comes right after this one.
+         */
+        Partial merge(Partial next) {
+            Partial merged = new Partial(documents.length + next.documents.length);
+            System.arraycopy(documents, 0, merged.documents, 0, documents.length);
+            System.arraycopy(next.documents, 0, merged.documents, documents.length, next.documents.length);
+            merged.terms.putAll(terms);
+            for (Map.Entry<String, Postings> entry : next.terms.entrySet()) {
+                Postings postings = merged.terms.get(entry.getKey());
+                if (postings == null) {
+                    merged.terms.put(entry.getKey(), entry.getValue());
+                } else {
+                    postings.append(entry.getValue());
+                }
+            }
+            return merged;
+        }
+    }
+
+    private static class Tokenized {
+        private final Document document;
+        private final Map<String, Integer> frequencies;
+
+        Tokenized(Document document, Map<String, Integer> frequencies) {
+            this.document = document;
+            this.frequencies = frequencies;
+        }
+    }
+
+    /**
+     * Something a search can find: a text file, or the menu for a directory with a gophermap.
+     */
+    public static class Document {
+        private final Path path;
+        private final String selector;
+        private final FileType type;
+        private final String title;
+        private final int length;
+
+        Document(Path path, String selector, FileType type, String title, int length) {
+            this.path = path;
+            this.selector = selector;
+            this.type = type;
+            this.title = title;
+            this.length = length;
+        }
+
+        public String getSelector() { return selector; }
+        public FileType getType() { return type; }
+        public String getTitle() { return title; }
+    }
+
+    /**
+     * A document and how well it matched. Results compare by score, so the natural order is worst first.
+     */
+    public static class Result implements Comparable<Result> {
+        private final Document document;
+        private final float score;
+
+        Result(Document document, float score) {
+            this.document = document;
+            this.score = score;
+        }
+
+        public Document getDocument() { return document; }
+        public float getScore() { return score; }
+
+        @Override
+        public int compareTo(Result other) {
+            return Float.compare(score, other.score);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Answers a type 7 search with a menu of the best matches from the GopherSearchIndex. Without a query (somebody
+ * browsed to the search selector as if it was a menu) we send back a menu with just the search item on it.
+ */
+public class GopherSearchOutput extends GopherOutput {
+    static final int MAX_RESULTS = 50;
+
+    public GopherSearchOutput(String selector) {
+        super(selector);
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(render());
+    }
+
+    @Override
+    public InputStream stream() {
+        return new ByteArrayInputStream(render());
+    }
+
+    private byte[] render() {
+        int tab = selector.indexOf('\t');
+        String query = tab < 0 ? "" : selector.substring(tab + 1).trim();
+        CompactMenu menu = new CompactMenu();
+        if (query.isEmpty()) {
+            menu.addLocal(FileType.SEARCH, "Search this server", Config.getSearchSelector());
+            return menu.toBytes();
+        }
+
+        GopherSearchIndex index = GopherSearchIndex.getInstance();
+        List<GopherSearchIndex.Result> results = index.search(query, MAX_RESULTS);
+        if (!index.isReady()) {
+            menu.addInfo("The search index is still being built, so these results may be missing a few things.");
+        }
+        String shown = printable(query);
+        menu.addInfo(results.isEmpty() ? "Nothing matched '" + shown + "'." : "Best matches for '" + shown + "':");
+        for (GopherSearchIndex.Result result : results) {
+            GopherSearchIndex.Document document = result.getDocument();
+            menu.addLocal(document.getType(), document.getTitle(), document.getSelector());
+        }
+        return menu.toBytes();
+    }
+
+    /**
+     * Makes a query safe to echo back in an info line: a tab would start a new column and a line break a new item,
+     * so those and any other control characters become spaces.
+     */
+    static String printable(String query) {
+        StringBuilder text = new StringBuilder(query.length());
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            text.append(Character.isISOControl(c) ? ' ' : c);
+        }
+        return text.toString();
+    }
+}
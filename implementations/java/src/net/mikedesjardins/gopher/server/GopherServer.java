@@ -1,21 +1,29 @@
 package net.mikedesjardins.gopher.server;
 
-import java.net.ServerSocket;
-import java.net.Socket;
-
 /**
- * The main Server class. This class really just sits in an infinite loop and hands the real work off to a
- * thread to do the real work.
+ * The main Server class. This class really just picks a ConnectionEngine based on the config and lets it do the
+ * real work.
  */
 public class GopherServer {
     public void serve() {
-        try (ServerSocket serverSocket = new ServerSocket(Config.getPort())) {
-            while (true) {
-                Socket socket = serverSocket.accept();
-                new GopherServerThread(socket).start();
-            }
+        try {
+            createEngine(Config.getEngine()).serve(Config.getPort());
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    private ConnectionEngine createEngine(EngineType engineType) {
+        switch (engineType) {
+            case VIRTUAL:
+                return BlockingConnectionEngine.virtual(Config.getThreads());
+            case POOL:
+                return BlockingConnectionEngine.pool(Config.getThreads());
+            case NIO:
+                return new NioConnectionEngine();
+            case THREAD:
+            default:
+                return BlockingConnectionEngine.threadPerConnection();
+        }
+    }
 }
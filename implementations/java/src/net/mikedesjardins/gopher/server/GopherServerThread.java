@@ -3,19 +3,41 @@ package net.mikedesjardins.gopher.server;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
- * This class processes every client we accept a connection from.
+ * This class processes every client we accept a connection from. The work is split into three phases (read the
+ * selector, resolve it to a GopherOutput, write the output) so that engines that don't dedicate a thread to each
+ * client (see NioConnectionEngine) can drive the same phases themselves.
  */
-public class GopherServerThread extends Thread {
+public class GopherServerThread implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(GopherServerThread.class.getName());
-    private final int BUFFER_SIZE = 16384;
+    static final int BUFFER_SIZE = 16384;
+    // How much writeResult() and transferResult() hand the socket at once, so the write deadline sees them move. The
+    // same as streamResult() reads at a time, so a client only has to take that much per write timeout.
+    private static final int WRITE_CHUNK = BUFFER_SIZE;
+    // A page of a paged directory (see GopherDirectoryMenu.page()). Page 1 is just the directory's own selector.
+    private static final Pattern PAGE = Pattern.compile("(.*)\\?page=([1-9][0-9]{0,8})");
     private final Socket socket;
+    private final GopherAdmission admission = GopherAdmission.getInstance();
+    // How long send() spent writing, for the slow request event.
+    private long writeNanos;
+    // Restarted after every chunk we get out, or null if there's no write timeout.
+    private GopherAdmission.WriteDeadline writeDeadline;
 
     public GopherServerThread(Socket socket) {
         this.socket = socket;
@@ -26,75 +48,449 @@ public class GopherServerThread extends Thread {
      * it, and stream some output back.
      */
     public void run() {
+        boolean handedOff = false;
         try {
             // Get the selector
-            InputStream inputStream = socket.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            String selector = reader.readLine();
-
-            LOGGER.log(Level.INFO, "Requested: " + Paths.get(Config.getRoot(), selector).toString());
-
-            // Figure out what to do (is it a file? directory? neither?). Default to not found.
-            GopherOutput result = new GopherNotFoundOutput(selector);
-            if (isDirectory(selector)) {
-                result = new GopherMenuOutput(selector);
-            } else if (isFile(selector)) {
-                result = new GopherFileOutput(selector);
+            String selector = readSelector(socket.getInputStream());
+            if (selector == null) {
+                return;
             }
 
-            // Pick up the stream from the GopherOutput and stream it out.
-            InputStream in = result.stream();
-            if (in != null) {
-                OutputStream out = socket.getOutputStream();
-                streamResult(in, out);
-            } else {
-                LOGGER.log(Level.WARNING, "Well, that's weird. The input stream from GopherOutput was null.");
+            // Figure out what to do (is it a file? directory? neither?).
+            GopherEvents.SlowRequest slowRequest = new GopherEvents.SlowRequest();
+            slowRequest.begin();
+            long started = System.nanoTime();
+            GopherOutput result = resolve(selector);
+            long resolved = System.nanoTime();
+            GopherMetrics.getInstance().requestResolved(result, resolved - started);
+
+            // If there's a scheduler, it sends the response and closes up afterwards, and this thread is done.
+            GopherScheduler scheduler = GopherScheduler.getInstance();
+            if (scheduler != null && socket.getChannel() != null) {
+                handedOff = true;
+                GopherEvents.Write write = new GopherEvents.Write();
+                write.begin();
+                scheduler.submit(socket.getChannel(), result, resolved, (bytes, writeNanos) -> {
+                    write.commit(result, "scheduled", bytes, writeNanos);
+                    slowRequest.commit(result, started, resolved, bytes, writeNanos);
+                    GopherMetrics.getInstance().written(bytes, writeNanos);
+                    admission.sent(socket.getInetAddress(), bytes);
+                    GopherAccessLog accessLog = GopherAccessLog.getInstance();
+                    if (accessLog != null) {
+                        accessLog.log(socket.getInetAddress(), selector, RequestOutcome.of(result), bytes, System.nanoTime() - started);
+                    }
+                    GopherPrefetcher prefetcher = GopherPrefetcher.getInstance();
+                    if (prefetcher != null) {
+                        prefetcher.served(socket.getInetAddress(), selector, result);
+                    }
+                    result.close();
+                    close();
+                });
+                return;
+            }
+
+            try (result) {
+                writeDeadline = admission.writeDeadline(socket);
+                long bytes;
+                try {
+                    bytes = send(result, resolved);
+                } finally {
+                    if (writeDeadline != null) {
+                        writeDeadline.cancel();
+                    }
+                }
+                slowRequest.commit(result, started, resolved, bytes, writeNanos);
+                admission.sent(socket.getInetAddress(), bytes);
+                GopherAccessLog accessLog = GopherAccessLog.getInstance();
+                if (accessLog != null) {
+                    accessLog.log(socket.getInetAddress(), selector, RequestOutcome.of(result), bytes, System.nanoTime() - started);
+                }
+                GopherPrefetcher prefetcher = GopherPrefetcher.getInstance();
+                if (prefetcher != null) {
+                    prefetcher.served(socket.getInetAddress(), selector, result);
+                }
             }
+        } catch (SocketTimeoutException e) {
+            admission.rejected(GopherAdmission.Rejection.READ_TIMEOUT);
+            LOGGER.log(Level.FINE, "Gave up waiting for a selector from " + socket.getInetAddress());
         } catch (SocketException e) {
             // One cause of this can be if the server disconnects prematurely, resulting in a broken pipe.
             LOGGER.log(Level.WARNING, "Socket Exception: " + e.getMessage());
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "There's a wocket in my socket!", e);
         } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                LOGGER.log(Level.SEVERE, "Unable to close socket.", e);
+            if (!handedOff) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Lets go of the connection once we're done with it.
+     */
+    private void close() {
+        admission.release();
+        GopherMetrics.getInstance().connectionClosed();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to close socket.", e);
+        }
+    }
+
+    /**
+     * Reads the selector line. Like BufferedReader.readLine(), a line ends at a line feed, a carriage return, or the
+     * end of the input, but the client only gets so long to send it (the read timeout is a deadline for the whole
+     * line, not for each packet) and it can only be so long. It's read into a pooled buffer and decoded straight
+     * from there.
+     * @param in the socket's input stream.
+     * @return the selector, or null if there isn't one to answer (the client hung up, or sent too much).
+     * @throws SocketTimeoutException if the read deadline passes.
+     * @throws IOException if we have an I/O problem.
+     */
+    private String readSelector(InputStream in) throws IOException {
+        Config.Snapshot config = Config.current();
+        int maxLength = config.getMaxSelectorLength();
+        long timeout = config.getReadTimeout();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        GopherBufferPool pool = GopherBufferPool.getInstance();
+        int size = maxLength > 0 ? maxLength + 1 : 1024;
+        GopherBufferPool.Lease lease = pool.heap(size);
+        try {
+            byte[] bytes = lease.array();
+            int length = 0;
+            while (true) {
+                if (timeout > 0) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Read deadline passed");
+                    }
+                    socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+                }
+                if (length == size) {
+                    // Only when there's no limit on the selector's length.
+                    size *= 2;
+                    GopherBufferPool.Lease bigger = pool.heap(size);
+                    System.arraycopy(bytes, 0, bigger.array(), 0, length);
+                    lease.close();
+                    lease = bigger;
+                    bytes = lease.array();
+                }
+                int count = in.read(bytes, length, size - length);
+                if (count < 0) {
+                    return length == 0 ? null : new String(bytes, 0, length, Charset.defaultCharset());
+                }
+                for (int i = length; i < length + count; i++) {
+                    if (bytes[i] == '\n' || bytes[i] == '\r') {
+                        return new String(bytes, 0, i, Charset.defaultCharset());
+                    }
+                }
+                length += count;
+                if (maxLength > 0 && length > maxLength) {
+                    admission.rejected(GopherAdmission.Rejection.SELECTOR_TOO_LONG);
+                    writeResult(admission.selectorTooLong());
+                    return null;
+                }
+            }
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * Figures out what the client asked for. Defaults to not found. When we're serving from an image, or the
+     * namespace index is on, this is just a lookup, otherwise we go and poke at the filesystem. With paged
+     * directories, a "?page=N" on the end of a directory's selector asks for that page of it.
+     * @param selector the selector from the client.
+     * @return the GopherOutput that should be streamed back to the client.
+     */
+    static GopherOutput resolve(String selector) {
+        GopherEvents.Resolve event = new GopherEvents.Resolve();
+        event.begin();
+        GopherOutput result = resolve(selector, Config.current());
+        event.commit(selector, result);
+        return result;
+    }
+
+    private static GopherOutput resolve(String selector, Config.Snapshot config) {
+
+        // With an access log configured, requests get logged there instead, off the request path.
+        if (config.getAccessLog().isEmpty()) {
+            LOGGER.log(Level.INFO, "Requested: " + Paths.get(config.getRoot(), selector).toString());
+        }
+
+        if (isStats(selector, config)) {
+            return new GopherStatsOutput(selector);
+        }
+        if (isSearch(selector, config)) {
+            return new GopherSearchOutput(selector);
+        }
+        if (isMirror(selector, config)) {
+            return new GopherMirrorOutput(selector);
+        }
+        if (config.getMenuPageSize() > 0) {
+            Matcher page = PAGE.matcher(selector);
+            if (page.matches()) {
+                GopherOutput output = locate(page.group(1), config);
+                output.close();
+                if (output instanceof GopherMenuOutput) {
+                    return new GopherMenuOutput(page.group(1), Integer.parseInt(page.group(2)));
+                }
+                return new GopherNotFoundOutput(selector);
+            }
+        }
+        return locate(selector, config);
+    }
+
+    /**
+     * The part of resolve() that looks for the selector in the image, a ZIP archive, the namespace index or the
+     * filesystem. The namespace index is built in the background at startup, and until it's ready we use the
+     * filesystem. Selectors that climb out of the root are turned away first, whichever of those would answer.
+     */
+    private static GopherOutput locate(String selector, Config.Snapshot config) {
+        Path root = Paths.get(config.getRoot()).toAbsolutePath().normalize();
+        String key = GopherNamespace.toKey(root, selector);
+        if (key == null) {
+            return new GopherNotFoundOutput(selector);
+        }
+        if (!config.getImage().isEmpty()) {
+            GopherOutput output = GopherImage.getInstance().lookup(selector);
+            return output != null ? output : new GopherNotFoundOutput(selector);
+        }
+        if (config.isArchives()) {
+            GopherOutput output = GopherArchiveCache.getInstance().lookup(selector);
+            if (output != null) {
+                return output;
+            }
+        }
+        if (config.isIndex()) {
+            GopherNamespace namespace = GopherNamespace.getInstance();
+            if (namespace.isReady()) {
+                GopherNamespace.Node node = namespace.lookup(selector);
+                if (node == null) {
+                    return new GopherNotFoundOutput(selector);
+                }
+                return node.isDirectory() ? new GopherMenuOutput(selector) : new GopherFileOutput(selector, node);
+            }
+        }
+        Path path = root.resolve(key);
+        if (isDirectory(path)) {
+            return new GopherMenuOutput(selector);
+        } else if (isFile(path)) {
+            return new GopherFileOutput(selector, path);
+        }
+        return new GopherNotFoundOutput(selector);
+    }
+
+    /**
+     * Sends a GopherOutput to the client in the cheapest way it supports: straight from memory if it has its bytes
+     * ready, straight from a file if it's just a file, and streamed otherwise.
+     * @param result the GopherOutput to send.
+     * @param resolved when we finished resolving the selector, for the render timer.
+     * @return the number of bytes written.
+     * @throws IOException if we have an I/O problem.
+     */
+    private long send(GopherOutput result, long resolved) throws IOException {
+        GopherMetrics metrics = GopherMetrics.getInstance();
+        GopherEvents.Write event = new GopherEvents.Write();
+
+        // If the GopherOutput already has its bytes in memory, just write them.
+        ByteBuffer buffer = result.buffer();
+        if (buffer != null) {
+            long rendered = System.nanoTime();
+            metrics.rendered(rendered - resolved);
+            event.begin();
+            long bytes = writeResult(buffer);
+            writeNanos = System.nanoTime() - rendered;
+            event.commit(result, "buffer", bytes, writeNanos);
+            metrics.written(bytes, writeNanos);
+            return bytes;
+        }
+
+        // If the GopherOutput is just a file, send it straight from the file to the socket.
+        FileChannel channel = result.channel();
+        if (channel != null) {
+            try (channel) {
+                long rendered = System.nanoTime();
+                metrics.rendered(rendered - resolved);
+                event.begin();
+                long bytes = transferResult(channel, result.channelLength());
+                writeNanos = System.nanoTime() - rendered;
+                event.commit(result, "transferTo", bytes, writeNanos);
+                metrics.written(bytes, writeNanos);
+                return bytes;
+            }
+        }
+
+        // Otherwise pick up the stream from the GopherOutput and stream it out.
+        InputStream in = result.stream();
+        if (in != null) {
+            try (in) {
+                long rendered = System.nanoTime();
+                metrics.rendered(rendered - resolved);
+                event.begin();
+                long bytes = streamResult(in, socket.getOutputStream());
+                writeNanos = System.nanoTime() - rendered;
+                event.commit(result, "stream", bytes, writeNanos);
+                metrics.written(bytes, writeNanos);
+                return bytes;
             }
         }
+        LOGGER.log(Level.WARNING, "Well, that's weird. The input stream from GopherOutput was null.");
+        return 0;
     }
 
     /**
      * Does the loop where we read the buffer and write it out.
      * @param in an input stream from a GopherOutput
      * @param out an output stream tied to the socket.
+     * @return the number of bytes written.
      * @throws IOException if we have an I/O problem (duh).
      */
-    private void streamResult(InputStream in, OutputStream out) throws IOException {
-        byte[] bytes = new byte[BUFFER_SIZE];
-        int count;
-        while ((count = in.read(bytes)) > 0) {
-            out.write(bytes, 0, count);
+    private long streamResult(InputStream in, OutputStream out) throws IOException {
+        return streamResult(in, out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as streamResult(in, out), but stops after limit bytes.
+     */
+    private long streamResult(InputStream in, OutputStream out, long limit) throws IOException {
+        try (GopherBufferPool.Lease lease = GopherBufferPool.getInstance().heap(BUFFER_SIZE)) {
+            byte[] bytes = lease.array();
+            long total = 0;
+            int count;
+            while (total < limit && (count = in.read(bytes, 0, (int) Math.min(BUFFER_SIZE, limit - total))) > 0) {
+                out.write(bytes, 0, count);
+                total += count;
+                progress();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Writes a buffer that a GopherOutput already had in memory.
+     * @param buffer the bytes to send.
+     * @return the number of bytes written.
+     * @throws IOException if we have an I/O problem.
+     */
+    private long writeResult(ByteBuffer buffer) throws IOException {
+        WritableByteChannel out = socket.getChannel();
+        if (out == null) {
+            out = Channels.newChannel(socket.getOutputStream());
+        }
+        // A blocking write doesn't come back until it's all gone, so we hand it over a chunk at a time to see it move.
+        int limit = buffer.limit();
+        long total = 0;
+        while (buffer.hasRemaining()) {
+            buffer.limit(Math.min(limit, buffer.position() + WRITE_CHUNK));
+            total += out.write(buffer);
+            buffer.limit(limit);
+            progress();
+        }
+        return total;
+    }
+
+    /**
+     * Sends a file to the client with FileChannel.transferTo, which lets the kernel copy the file to the socket
+     * without dragging it through user space. If the socket doesn't have a channel (it should, since our engines
+     * accept through a ServerSocketChannel) we fall back to the plain old copy loop. If the file gets truncated while
+     * we're sending it we stop at its new end, since transferTo just keeps returning zero past it.
+     * @param channel an open FileChannel from a GopherOutput, positioned where we should start.
+     * @param length how many bytes to send, or -1 for the rest of the file (see GopherOutput.channelLength()).
+     * @return the number of bytes written.
+     * @throws IOException if we have an I/O problem.
+     */
+    private long transferResult(FileChannel channel, long length) throws IOException {
+        long start = channel.position();
+        long end = length < 0 ? channel.size() : start + length;
+        SocketChannel socketChannel = socket.getChannel();
+        if (socketChannel == null) {
+            return streamResult(Channels.newInputStream(channel), socket.getOutputStream(), end - start);
+        }
+        long position = start;
+        while (position < end) {
+            long count = channel.transferTo(position, Math.min(end - position, WRITE_CHUNK), socketChannel);
+            if (count == 0 && position >= channel.size()) {
+                break;
+            }
+            position += count;
+            progress();
         }
+        return position - start;
     }
 
     /**
-     * Does this selector correspond to a directory in our gopher root?
+     * Tells the write deadline the client took some more of its response, so it gets another full timeout.
+     */
+    private void progress() {
+        if (writeDeadline != null) {
+            writeDeadline.progress();
+        }
+    }
+
+    /**
+     * Is this the reserved selector for the stats page? Leading slashes don't matter.
      * @param selector the selector from the client.
-     * @return true if selector is a directory we can read and serve.
+     * @return true if the client wants GopherStatsOutput.
      */
-    private boolean isDirectory(String selector) {
-        Path path = Paths.get(Config.getRoot(), selector);
-        return Files.exists(path) && Files.isReadable(path) && Files.isDirectory(path);
+    private static boolean isStats(String selector, Config.Snapshot config) {
+        String statsSelector = config.getStatsSelector();
+        return !statsSelector.isEmpty() && selector.replaceFirst("^/+", "").equals(statsSelector);
+    }
+
+    /**
+     * Is this for the upstream server we mirror? That's the mirror selector itself, or anything under it. Leading
+     * slashes don't matter.
+     * @param selector the selector from the client.
+     * @return true if the client wants GopherMirrorOutput.
+     */
+    private static boolean isMirror(String selector, Config.Snapshot config) {
+        String mirrorSelector = config.getMirrorSelector();
+        if (config.getUpstream().isEmpty() || mirrorSelector.isEmpty()) {
+            return false;
+        }
+        String path = selector.replaceFirst("^/+", "");
+        if (!path.startsWith(mirrorSelector)) {
+            return false;
+        }
+        if (path.length() == mirrorSelector.length()) {
+            return true;
+        }
+        char next = path.charAt(mirrorSelector.length());
+        return next == '/' || next == '\t';
     }
 
     /**
-     * Does this selector correspond to a file in our gopher root?
+     * Is this a search? Type 7 clients send the search selector, a tab and then the query, so only the part before
+     * the tab has to match. Leading slashes don't matter.
      * @param selector the selector from the client.
-     * @return true if selector is a file we can read and serve.
+     * @return true if the client wants GopherSearchOutput.
+     */
+    private static boolean isSearch(String selector, Config.Snapshot config) {
+        String searchSelector = config.getSearchSelector();
+        if (searchSelector.isEmpty()) {
+            return false;
+        }
+        int tab = selector.indexOf('\t');
+        return (tab < 0 ? selector : selector.substring(0, tab)).replaceFirst("^/+", "").equals(searchSelector);
+    }
+
+    /**
+     * Is this a directory in our gopher root?
+     * @param path where the selector points in the root.
+     * @return true if it's a directory we can read and serve.
+     */
+    private static boolean isDirectory(Path path) {
+        return Files.exists(path) && Files.isReadable(path) && Files.isDirectory(path);
+    }
+
+    /**
+     * Is this a file in our gopher root?
+     * @param path where the selector points in the root.
+     * @return true if it's a file we can read and serve.
      */
-    private boolean isFile(String selector) {
-        Path path = Paths.get(Config.getRoot(), selector);
+    private static boolean isFile(Path path) {
         return Files.exists(path) && Files.isReadable(path) && Files.isRegularFile(path);
     }
 }
@@ -0,0 +1,89 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A plain text page of the server's current GopherMetrics, served on the reserved stats selector.
+ */
+public class GopherStatsOutput extends GopherOutput {
+    public GopherStatsOutput(String selector) {
+        super(selector);
+    }
+
+    @Override
+    public InputStream stream() {
+        GopherMetrics metrics = GopherMetrics.getInstance();
+        StringBuilder sb = new StringBuilder();
+        line(sb, "Gopher server stats for " + Config.getHost() + ":" + Config.getPort());
+        line(sb, "");
+        line(sb, "Uptime:         " + metrics.getUptimeSeconds() + "s");
+        line(sb, "Connections:    " + metrics.getActiveConnections() + " active, " + metrics.getAcceptedConnections() + " accepted");
+        line(sb, "Requests:       " + metrics.getMenuRequests() + " menu, " + metrics.getFileRequests() + " file, "
+                + metrics.getNotFoundRequests() + " not found, " + metrics.getStatsRequests() + " stats, "
+                + metrics.getSearchRequests() + " search, " + metrics.getMirrorRequests() + " mirror");
+        line(sb, "Bytes written:  " + metrics.getBytesWritten());
+        line(sb, "Rejected:       " + metrics.getRejectedBusy() + " busy, " + metrics.getRejectedSelectorTooLong()
+                + " selector too long, " + metrics.getReadTimeouts() + " read timeouts, " + metrics.getWriteTimeouts() + " write timeouts, "
+                + metrics.getRateLimited() + " rate limited");
+        line(sb, "");
+        line(sb, "Resolve:        " + metrics.getResolveTime().summary());
+        line(sb, "Render:         " + metrics.getRenderTime().summary());
+        line(sb, "Write:          " + metrics.getWriteTime().summary());
+        line(sb, "");
+        if (Config.isMenuCache()) {
+            line(sb, String.format("Menu cache:     %d hits, %d misses (%.1f%%), %d bytes",
+                    metrics.getMenuCacheHits(), metrics.getMenuCacheMisses(), metrics.getMenuCacheHitRatio() * 100,
+                    metrics.getMenuCacheBytes()));
+        }
+        if (Config.getContentCacheSize() > 0) {
+            line(sb, String.format("Content cache:  %d hits, %d misses (%.1f%%), %d bytes",
+                    metrics.getContentCacheHits(), metrics.getContentCacheMisses(), metrics.getContentCacheHitRatio() * 100,
+                    metrics.getContentCacheBytes()));
+        }
+        if (Config.getMapThreshold() > 0) {
+            line(sb, "Mapped files:   " + metrics.getMappedFiles());
+        }
+        if (!Config.getAccessLog().isEmpty()) {
+            line(sb, "Access log:     " + metrics.getAccessLogDropped() + " records dropped");
+        }
+        if (Config.isIndex()) {
+            GopherNamespace namespace = GopherNamespace.getInstance();
+            line(sb, "Indexed:        " + namespace.size() + " entries" + (namespace.isReady() ? "" : " (still indexing)"));
+        }
+        GopherMirror mirror = GopherMirror.getInstance();
+        if (mirror != null) {
+            line(sb, "Mirror:         " + mirror.getHits() + " hits, " + mirror.getStaleHits() + " stale, " + mirror.getMisses()
+                    + " misses (" + mirror.getCoalesced() + " coalesced), " + mirror.getUpstreamFetches() + " upstream fetches ("
+                    + mirror.getFailures() + " failed), " + mirror.getTotalBytes() + " bytes, " + mirror.getDiskBytes()
+                    + " bytes on disk");
+        }
+        GopherPrefetcher prefetcher = GopherPrefetcher.getInstance();
+        if (prefetcher != null) {
+            line(sb, "Prefetch:       " + prefetcher.getPrefetched() + " warmed (" + prefetcher.getPrefetchedBytes() + " bytes), "
+                    + prefetcher.getHits() + " hits, " + prefetcher.getWasted() + " wasted, " + prefetcher.getDropped() + " dropped");
+        }
+        if (Config.isArchives()) {
+            GopherArchiveCache archives = GopherArchiveCache.getInstance();
+            line(sb, "Archives:       " + archives.size() + " cached (" + archives.getTotalMembers() + " members), "
+                    + archives.getHits() + " hits, " + archives.getMisses() + " misses");
+        }
+        GopherBufferPool buffers = GopherBufferPool.getInstance();
+        line(sb, "Buffers:        " + buffers.getPooledBytes() + " bytes pooled, " + buffers.getAllocated() + " allocated, "
+                + buffers.getLeaks() + " leaked");
+        GopherScheduler scheduler = GopherScheduler.getInstance();
+        if (scheduler != null) {
+            line(sb, "Transfers:      " + scheduler.getActiveTransfers() + " in progress, " + scheduler.getBulkTransfers() + " bulk");
+        }
+        if (!Config.getSearchSelector().isEmpty()) {
+            GopherSearchIndex search = GopherSearchIndex.getInstance();
+            line(sb, "Searchable:     " + search.size() + " documents" + (search.isReady() ? "" : " (still indexing)"));
+        }
+        return new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void line(StringBuilder sb, String line) {
+        sb.append(line).append("\r\n");
+    }
+}
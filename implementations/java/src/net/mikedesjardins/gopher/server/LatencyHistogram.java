@@ -0,0 +1,75 @@
+package net.mikedesjardins.gopher.server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cheap, lock-free histogram of durations. Samples land in power-of-two microsecond buckets made of LongAdders,
+ * so lots of threads can record at once without fighting over anything. Percentiles are only as precise as the
+ * buckets: they come back as the upper bound of the bucket the percentile falls in.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one sample.
+     * @param nanos how long the thing took.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() { return count.sum(); }
+    public long getTotalNanos() { return totalNanos.sum(); }
+    public long getMaxMicros() { return maxNanos.get() / 1000; }
+
+    public double getMeanMicros() {
+        long samples = getCount();
+        return samples == 0 ? 0 : getTotalNanos() / 1000.0 / samples;
+    }
+
+    /**
+     * @param percentile e.g. 99.0 for the 99th percentile.
+     * @return an upper bound on the percentile, in microseconds. Zero if there aren't any samples.
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long samples = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            samples += counts[i];
+        }
+        long target = (long) Math.ceil(samples * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target && seen > 0) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return a one-line summary, e.g. for the stats page.
+     */
+    public String summary() {
+        return String.format("%d samples, mean %.1f us, p50 <= %d us, p99 <= %d us, max %d us",
+                getCount(), getMeanMicros(), getPercentileMicros(50), getPercentileMicros(99), getMaxMicros());
+    }
+}
@@ -1,5 +1,7 @@
 package net.mikedesjardins.gopher.server;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -7,18 +9,142 @@ public class Main {
     private static final Logger LOGGER = Logger.getLogger(Main.class.getName());
 
     public static void main(String[] args) {
+        String compileTo = null;
         for (String arg : args) {
             if (arg.startsWith("--port=")) {
                 Config.setPort(arg.split("=")[1]);
             } else if (arg.startsWith("--host=")) {
                 Config.setHost(arg.split("=")[1]);
+            } else if (arg.startsWith("--hostlookuptimeout=")) {
+                Config.setHostLookupTimeout(arg.split("=")[1]);
             } else if (arg.startsWith("--root=")) {
                 Config.setRoot(arg.split("=")[1]);
             } else if (arg.startsWith("--mapfilename=")) {
                 Config.setMapFilename(arg.split("=")[1]);
+            } else if (arg.startsWith("--engine=")) {
+                Config.setEngine(arg.split("=")[1]);
+            } else if (arg.startsWith("--threads=")) {
+                Config.setThreads(arg.split("=")[1]);
+            } else if (arg.startsWith("--menucache=")) {
+                Config.setMenuCache(arg.split("=")[1]);
+            } else if (arg.startsWith("--menucachesize=")) {
+                Config.setMenuCacheSize(arg.split("=")[1]);
+            } else if (arg.startsWith("--index=")) {
+                Config.setIndex(arg.split("=")[1]);
+            } else if (arg.startsWith("--contentcache=")) {
+                Config.setContentCacheSize(arg.split("=")[1]);
+            } else if (arg.startsWith("--contentcacheentry=")) {
+                Config.setContentCacheEntrySize(arg.split("=")[1]);
+            } else if (arg.startsWith("--contentcachedirect=")) {
+                Config.setContentCacheDirect(arg.split("=")[1]);
+            } else if (arg.startsWith("--statsselector=")) {
+                Config.setStatsSelector(arg.substring("--statsselector=".length()));
+            } else if (arg.startsWith("--accesslog=")) {
+                Config.setAccessLog(arg.split("=")[1]);
+            } else if (arg.startsWith("--accesslogmaxbytes=")) {
+                Config.setAccessLogMaxBytes(arg.split("=")[1]);
+            } else if (arg.startsWith("--accesslogfiles=")) {
+                Config.setAccessLogFiles(arg.split("=")[1]);
+            } else if (arg.startsWith("--mapthreshold=")) {
+                Config.setMapThreshold(arg.split("=")[1]);
+            } else if (arg.startsWith("--mapidle=")) {
+                Config.setMapIdleSeconds(arg.split("=")[1]);
+            } else if (arg.startsWith("--multiaccept=")) {
+                Config.setMultiAccept(arg.split("=")[1]);
+            } else if (arg.startsWith("--acceptors=")) {
+                Config.setAcceptors(arg.split("=")[1]);
+            } else if (arg.startsWith("--maxconnections=")) {
+                Config.setMaxConnections(arg.split("=")[1]);
+            } else if (arg.startsWith("--readtimeout=")) {
+                Config.setReadTimeout(arg.split("=")[1]);
+            } else if (arg.startsWith("--writetimeout=")) {
+                Config.setWriteTimeout(arg.split("=")[1]);
+            } else if (arg.startsWith("--maxselector=")) {
+                Config.setMaxSelectorLength(arg.split("=")[1]);
+            } else if (arg.startsWith("--image=")) {
+                Config.setImage(arg.split("=")[1]);
+            } else if (arg.startsWith("--searchselector=")) {
+                Config.setSearchSelector(arg.substring("--searchselector=".length()));
+            } else if (arg.startsWith("--schedule=")) {
+                Config.setSchedule(arg.split("=")[1]);
+            } else if (arg.startsWith("--bandwidth=")) {
+                Config.setBandwidth(arg.split("=")[1]);
+            } else if (arg.startsWith("--connectionbandwidth=")) {
+                Config.setConnectionBandwidth(arg.split("=")[1]);
+            } else if (arg.startsWith("--bulkthreshold=")) {
+                Config.setBulkThreshold(arg.split("=")[1]);
+            } else if (arg.startsWith("--menustream=")) {
+                Config.setMenuStreamThreshold(arg.split("=")[1]);
+            } else if (arg.startsWith("--menusort=")) {
+                Config.setMenuSort(arg.split("=")[1]);
+            } else if (arg.startsWith("--menupagesize=")) {
+                Config.setMenuPageSize(arg.split("=")[1]);
+            } else if (arg.startsWith("--upstream=")) {
+                Config.setUpstream(arg.split("=")[1]);
+            } else if (arg.startsWith("--mirrorselector=")) {
+                Config.setMirrorSelector(arg.substring("--mirrorselector=".length()));
+            } else if (arg.startsWith("--mirrorttl=")) {
+                Config.setMirrorTtl(arg.split("=")[1]);
+            } else if (arg.startsWith("--mirrorstale=")) {
+                Config.setMirrorStale(arg.split("=")[1]);
+            } else if (arg.startsWith("--mirrorcache=")) {
+                Config.setMirrorCacheSize(arg.split("=")[1]);
+            } else if (arg.startsWith("--mirrorcachedir=")) {
+                Config.setMirrorCacheDir(arg.split("=")[1]);
+            } else if (arg.startsWith("--mirrorcachedirsize=")) {
+                Config.setMirrorCacheDirSize(arg.split("=")[1]);
+            } else if (arg.startsWith("--mirrormaxbytes=")) {
+                Config.setMirrorMaxBytes(arg.split("=")[1]);
+            } else if (arg.startsWith("--ratelimit=")) {
+                Config.setRateLimit(arg.split("=")[1]);
+            } else if (arg.startsWith("--rateburst=")) {
+                Config.setRateBurst(arg.split("=")[1]);
+            } else if (arg.startsWith("--clientbandwidth=")) {
+                Config.setClientBandwidth(arg.split("=")[1]);
+            } else if (arg.startsWith("--prefetch=")) {
+                Config.setPrefetch(arg.split("=")[1]);
+            } else if (arg.startsWith("--prefetchbudget=")) {
+                Config.setPrefetchBudget(arg.split("=")[1]);
+            } else if (arg.startsWith("--prefetchlinks=")) {
+                Config.setPrefetchLinks(arg.split("=")[1]);
+            } else if (arg.startsWith("--slowrequest=")) {
+                Config.setSlowRequest(arg.split("=")[1]);
+            } else if (arg.startsWith("--bufferpool=")) {
+                Config.setBufferPool(arg.split("=")[1]);
+            } else if (arg.startsWith("--bufferleaks=")) {
+                Config.setBufferLeaks(arg.split("=")[1]);
+            } else if (arg.startsWith("--archives=")) {
+                Config.setArchives(arg.split("=")[1]);
+            } else if (arg.startsWith("--archivecache=")) {
+                Config.setArchiveCache(arg.split("=")[1]);
+            } else if (arg.startsWith("--compile=")) {
+                compileTo = arg.split("=")[1];
             }
         }
-        LOGGER.log(Level.INFO, "Starting Starting Gopher Server at " + Config.getHost() + " on port " + Config.getPort() + ", serving from " + Config.getRoot());
+        // If we weren't told our host name, start finding it out now, while everything else gets going.
+        Config.lookUpHost();
+        if (compileTo != null) {
+            // Compile an image of the root and stop, rather than serving anything.
+            try {
+                GopherImage.compile(Paths.get(Config.getRoot()), Paths.get(compileTo));
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Unable to compile " + Config.getRoot() + " into " + compileTo, e);
+                System.exit(1);
+            }
+            return;
+        }
+        String host = Config.isHostKnown() ? Config.getHost() : "(host name still being looked up)";
+        LOGGER.log(Level.INFO, "Starting Starting Gopher Server at " + host + " on port " + Config.getPort() + ", serving from " + Config.getRoot() + " using the " + Config.getEngine().getName() + " engine");
+        if (!Config.getImage().isEmpty()) {
+            GopherImage.getInstance();
+        } else if (Config.isIndex()) {
+            GopherNamespace.getInstance();
+        }
+        if (!Config.getSearchSelector().isEmpty()) {
+            GopherSearchIndex.getInstance();
+        }
+        GopherMirror.getInstance();
+        GopherMetrics.getInstance().register();
         GopherServer gopherServer = new GopherServer();
         gopherServer.serve();
     }
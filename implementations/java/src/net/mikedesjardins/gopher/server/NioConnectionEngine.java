@@ -0,0 +1,496 @@
+package net.mikedesjardins.gopher.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking engine. One thread multiplexes every connection with a Selector and drives the same read, resolve
+ * and write phases that GopherServerThread.run() does, just without parking a thread on each client while it's
+ * waiting on the network.
+ *
+ * The event loop only ever does socket I/O. Anything that might wait on the disk (resolving the selector, rendering
+ * a menu, opening a file, reading the next chunk of a streamed one) goes to a pool of --threads workers, and the
+ * connection sits out of the Selector until the worker hands it back. That way one slow disk or one enormous
+ * directory holds up the clients that want it, not every client on the loop.
+ */
+public class NioConnectionEngine implements ConnectionEngine {
+    private static final Logger LOGGER = Logger.getLogger(NioConnectionEngine.class.getName());
+    private static final long SWEEP_INTERVAL_MILLIS = 250;
+    private final GopherAdmission admission = GopherAdmission.getInstance();
+    private final ExecutorService workers;
+
+    public NioConnectionEngine() {
+        AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(1, Config.getThreads()), runnable -> {
+            Thread thread = new Thread(GopherBufferPool.keepingBuffers(runnable), "gopher-nio-worker-" + count.incrementAndGet());
+            // The event loops are what keep the server running.
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs an event loop per listening socket. Normally that's just the one, on the calling thread, but in
+     * multi-acceptor mode each socket gets a loop (and a thread) of its own, and a connection stays on the loop that
+     * accepted it.
+     */
+    @Override
+    public void serve(int port) throws IOException {
+        List<ServerSocketChannel> serverChannels = GopherListener.open(port, GopherListener.count());
+        for (int i = 1; i < serverChannels.size(); i++) {
+            ServerSocketChannel serverChannel = serverChannels.get(i);
+            new Thread(GopherBufferPool.keepingBuffers(() -> {
+                try {
+                    loop(serverChannel);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Event loop died.", e);
+                }
+            }), "gopher-nio-" + i).start();
+        }
+        GopherBufferPool pool = GopherBufferPool.getInstance();
+        pool.keepBuffers();
+        try {
+            loop(serverChannels.get(0));
+        } finally {
+            pool.dropBuffers();
+        }
+    }
+
+    private void loop(ServerSocketChannel serverChannel) throws IOException {
+        boolean deadlines = Config.getReadTimeout() > 0 || Config.getWriteTimeout() > 0;
+        // Connections coming back from the workers, to be picked up where they left off on the loop.
+        Queue<Runnable> returned = new ConcurrentLinkedQueue<>();
+        try (Selector selector = Selector.open(); serverChannel) {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            long nextSweep = System.nanoTime();
+            while (true) {
+                if (deadlines) {
+                    selector.select(SWEEP_INTERVAL_MILLIS);
+                    long now = System.nanoTime();
+                    if (now - nextSweep >= 0) {
+                        sweep(selector, now);
+                        nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+                    }
+                } else {
+                    selector.select();
+                }
+                Runnable task;
+                while ((task = returned.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isAcceptable()) {
+                        accept(serverChannel, selector, returned);
+                    } else {
+                        service(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection (if there really is one) and registers it for reading the selector, unless we're
+     * already at the in-flight limit.
+     */
+    private void accept(ServerSocketChannel serverChannel, Selector selector, Queue<Runnable> returned) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (!admission.withinRateLimit(channel)) {
+            return;
+        }
+        if (!admission.admit()) {
+            admission.turnAway(channel);
+            return;
+        }
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key, returned));
+        GopherMetrics.getInstance().connectionAccepted();
+    }
+
+    /**
+     * Drops every connection that's blown its deadline, whether it's still sending us its selector or still
+     * taking its response. Connections that are off with a worker are left alone until they're back.
+     */
+    private void sweep(Selector selector, long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection && key.isValid()) {
+                Connection connection = (Connection) attachment;
+                if (!connection.working && now - connection.deadline > 0) {
+                    admission.rejected(connection.result == null
+                            ? GopherAdmission.Rejection.READ_TIMEOUT
+                            : GopherAdmission.Rejection.WRITE_TIMEOUT);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets a connection make whatever progress it can. Any I/O problem just drops the connection, the same way
+     * GopherServerThread gives up on a broken pipe.
+     */
+    private void service(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        step(connection, () -> {
+            if (key.isReadable()) {
+                connection.read();
+            } else if (key.isWritable()) {
+                connection.write();
+            }
+        });
+    }
+
+    /**
+     * Runs one step of a connection, on whichever thread, dropping the connection if it goes wrong.
+     */
+    private void step(Connection connection, Step step) {
+        try {
+            step.run();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Socket Exception: " + e.getMessage());
+            connection.close();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "There's a wocket in my socket!", e);
+            connection.close();
+        }
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    /**
+     * The state of one client as it moves from reading its selector to writing out its response.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Queue<Runnable> returned;
+        // Only touched on the loop. While it's true a worker has the connection, and the loop leaves it alone.
+        private boolean working;
+        // Both borrowed from the GopherBufferPool, and given back as soon as we're done with them.
+        private GopherBufferPool.Lease selectorLease;
+        private GopherBufferPool.Lease writeLease;
+        private ByteBuffer writeBuffer;
+        private GopherOutput result;
+        private ByteBuffer buffer;
+        private InputStream body;
+        private FileChannel file;
+        private long filePosition;
+        private long fileEnd;
+        private long bytesWritten;
+        private long writeNanos;
+        private boolean closed;
+        private String selector;
+        private long started;
+        private long resolved;
+        private long deadline;
+        private GopherEvents.SlowRequest slowRequest;
+        private GopherEvents.Write writeEvent;
+        private String method;
+
+        Connection(SocketChannel channel, SelectionKey key, Queue<Runnable> returned) {
+            this.channel = channel;
+            this.key = key;
+            this.returned = returned;
+            this.deadline = deadline(Config.current().getReadTimeout());
+        }
+
+        /**
+         * Reads whatever the client has sent so far, looking for the end of the selector line. Like
+         * BufferedReader.readLine(), a line ends at a line feed, a carriage return, or the end of the input. The
+         * selector goes straight from the socket into a pooled direct buffer, and it's decoded from there.
+         */
+        void read() throws IOException {
+            int maxLength = Config.current().getMaxSelectorLength();
+            if (selectorLease == null) {
+                selectorLease = GopherBufferPool.getInstance().direct(maxLength > 0 ? maxLength + 1 : 1024);
+                selectorLease.buffer().limit(maxLength > 0 ? maxLength + 1 : 1024);
+            } else if (!selectorLease.buffer().hasRemaining()) {
+                // Only when there's no limit on the selector's length.
+                ByteBuffer full = selectorLease.buffer().flip();
+                GopherBufferPool.Lease bigger = GopherBufferPool.getInstance().direct(full.limit() * 2);
+                bigger.buffer().limit(full.limit() * 2);
+                bigger.buffer().put(full);
+                selectorLease.close();
+                selectorLease = bigger;
+            }
+            ByteBuffer selectorBuffer = selectorLease.buffer();
+            int start = selectorBuffer.position();
+            int count = channel.read(selectorBuffer);
+            if (count < 0) {
+                if (start == 0) {
+                    close();
+                } else {
+                    respond(start);
+                }
+                return;
+            }
+            for (int i = start; i < start + count; i++) {
+                byte b = selectorBuffer.get(i);
+                if (b == '\n' || b == '\r') {
+                    respond(i);
+                    return;
+                }
+            }
+            if (maxLength > 0 && selectorBuffer.position() > maxLength) {
+                admission.rejected(GopherAdmission.Rejection.SELECTOR_TOO_LONG);
+                channel.write(admission.selectorTooLong());
+                close();
+            }
+        }
+
+        /**
+         * We've got the whole selector, so hand it to a worker to resolve.
+         * @param length how many bytes of the selector buffer are the selector.
+         */
+        private void respond(int length) {
+            byte[] selectorBytes = new byte[length];
+            selectorLease.buffer().position(0).get(selectorBytes);
+            selectorLease.close();
+            selectorLease = null;
+            selector = new String(selectorBytes, Charset.defaultCharset());
+            slowRequest = new GopherEvents.SlowRequest();
+            slowRequest.begin();
+            started = System.nanoTime();
+            deadline = deadline(Config.current().getWriteTimeout());
+            work(this::resolve);
+        }
+
+        /**
+         * Runs on a worker: resolves the selector and gets the response ready to send, which is all the part that
+         * might have to wait on the disk.
+         */
+        private void resolve() throws IOException {
+            result = GopherServerThread.resolve(selector);
+            resolved = System.nanoTime();
+            GopherMetrics.getInstance().requestResolved(result, resolved - started);
+
+            // If there's a scheduler, this connection leaves our loop and the scheduler sends the response.
+            GopherScheduler scheduler = GopherScheduler.getInstance();
+            if (scheduler != null) {
+                key.cancel();
+                method = "scheduled";
+                startWriting();
+                scheduler.submit(channel, result, resolved, (bytes, nanos) -> {
+                    bytesWritten = bytes;
+                    writeNanos = nanos;
+                    close();
+                });
+                return;
+            }
+            buffer = result.buffer();
+            method = "buffer";
+            if (buffer == null) {
+                file = result.channel();
+                method = "transferTo";
+                if (file != null) {
+                    filePosition = file.position();
+                    fileEnd = result.channelLength() < 0 ? file.size() : filePosition + result.channelLength();
+                }
+            }
+            if (buffer == null && file == null) {
+                body = result.stream();
+                method = "stream";
+                if (body != null) {
+                    writeLease = GopherBufferPool.getInstance().heap(GopherServerThread.BUFFER_SIZE);
+                    writeBuffer = writeLease.buffer().limit(0);
+                }
+            }
+            if (buffer == null && file == null && body == null) {
+                LOGGER.log(Level.WARNING, "Well, that's weird. The input stream from GopherOutput was null.");
+                back(this::close);
+                return;
+            }
+            GopherMetrics.getInstance().rendered(System.nanoTime() - resolved);
+            back(() -> {
+                startWriting();
+                key.interestOps(SelectionKey.OP_WRITE);
+                write();
+            });
+        }
+
+        /**
+         * Takes the connection out of the Selector and gives it to a worker.
+         */
+        private void work(Step step) {
+            working = true;
+            key.interestOps(0);
+            workers.execute(() -> step(this, step));
+        }
+
+        /**
+         * Called on a worker when it's done: gives the connection back to the loop, which carries on with next.
+         */
+        private void back(Step next) {
+            returned.add(() -> {
+                working = false;
+                if (!closed) {
+                    step(this, next);
+                }
+            });
+            key.selector().wakeup();
+        }
+
+        /**
+         * Runs on a worker: reads the next chunk of a streamed response.
+         */
+        private void fill() throws IOException {
+            int count = body.read(writeBuffer.array(), 0, GopherServerThread.BUFFER_SIZE);
+            back(() -> {
+                if (count <= 0) {
+                    close();
+                    return;
+                }
+                writeBuffer.position(0).limit(count);
+                key.interestOps(SelectionKey.OP_WRITE);
+                write();
+            });
+        }
+
+        private void startWriting() {
+            writeEvent = new GopherEvents.Write();
+            writeEvent.begin();
+        }
+
+        /**
+         * Writes as much of the response as the socket will take right now. If the socket fills up we go back to the
+         * selector and wait to be told it's writable again.
+         */
+        void write() throws IOException {
+            long started = System.nanoTime();
+            long before = bytesWritten;
+            boolean done = writeSome();
+            writeNanos += System.nanoTime() - started;
+            if (bytesWritten > before) {
+                // The write timeout is for a client that's stopped taking anything, so it starts over with every
+                // write that gets somewhere.
+                deadline = deadline(Config.current().getWriteTimeout());
+            }
+            if (done) {
+                close();
+            }
+        }
+
+        /**
+         * @return true once the whole response has been written.
+         */
+        private boolean writeSome() throws IOException {
+            if (buffer != null) {
+                bytesWritten += channel.write(buffer);
+                return !buffer.hasRemaining();
+            }
+            if (file != null) {
+                return writeFile();
+            }
+            if (writeBuffer.hasRemaining()) {
+                bytesWritten += channel.write(writeBuffer);
+            }
+            if (!writeBuffer.hasRemaining()) {
+                // Reading the stream could mean waiting on the disk, so that's a job for a worker.
+                work(this::fill);
+            }
+            return false;
+        }
+
+        /**
+         * Same idea as writeSome(), but for outputs that handed us a FileChannel. transferTo on a non-blocking
+         * socket just returns zero when the socket is full, and also when the file's been truncated under us, which
+         * we treat as the end of it.
+         */
+        private boolean writeFile() throws IOException {
+            while (filePosition < fileEnd) {
+                long count = file.transferTo(filePosition, fileEnd - filePosition, channel);
+                if (count == 0) {
+                    return filePosition >= file.size();
+                }
+                filePosition += count;
+                bytesWritten += count;
+            }
+            return true;
+        }
+
+        /**
+         * @return when a phase that's allowed to take this long (0 meaning forever) has to be done by.
+         */
+        private long deadline(long timeoutMillis) {
+            // Far enough in the future that it never comes around, without overflowing when the sweep compares it.
+            long timeout = timeoutMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE / 2;
+            return System.nanoTime() + timeout;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            admission.release();
+            GopherMetrics.getInstance().connectionClosed();
+            if (result != null) {
+                if (writeEvent != null) {
+                    writeEvent.commit(result, method, bytesWritten, writeNanos);
+                }
+                slowRequest.commit(result, started, resolved, bytesWritten, writeNanos);
+                GopherMetrics.getInstance().written(bytesWritten, writeNanos);
+                admission.sent(channel.socket().getInetAddress(), bytesWritten);
+                GopherAccessLog accessLog = GopherAccessLog.getInstance();
+                if (accessLog != null) {
+                    accessLog.log(channel.socket().getInetAddress(), selector, RequestOutcome.of(result), bytesWritten, System.nanoTime() - started);
+                }
+                GopherPrefetcher prefetcher = GopherPrefetcher.getInstance();
+                if (prefetcher != null) {
+                    prefetcher.served(channel.socket().getInetAddress(), selector, result);
+                }
+                result.close();
+            }
+            try {
+                if (body != null) {
+                    body.close();
+                }
+                if (file != null) {
+                    file.close();
+                }
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Unable to close socket.", e);
+            } finally {
+                if (selectorLease != null) {
+                    selectorLease.close();
+                    selectorLease = null;
+                }
+                if (writeLease != null) {
+                    writeLease.close();
+                    writeLease = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.mikedesjardins.gopher.server;
+
+/**
+ * What we ended up sending back for a request. Used for counting and logging requests.
+ */
+public enum RequestOutcome {
+    MENU('M'),
+    FILE('F'),
+    NOT_FOUND('N'),
+    STATS('S'),
+    SEARCH('Q'),
+    MIRROR('P');
+
+    private final char code;
+
+    RequestOutcome(char code) {
+        this.code = code;
+    }
+
+    /**
+     * @return a one character code for the access log.
+     */
+    public char getCode() {
+        return code;
+    }
+
+    public static RequestOutcome of(GopherOutput output) {
+        if (output instanceof GopherMenuOutput) {
+            return MENU;
+        } else if (output instanceof GopherFileOutput) {
+            return FILE;
+        } else if (output instanceof GopherStatsOutput) {
+            return STATS;
+        } else if (output instanceof GopherSearchOutput) {
+            return SEARCH;
+        } else if (output instanceof GopherMirrorOutput) {
+            return MIRROR;
+        } else if (output instanceof GopherImageOutput) {
+            return ((GopherImageOutput) output).getOutcome();
+        } else if (output instanceof GopherArchiveOutput) {
+            return ((GopherArchiveOutput) output).getOutcome();
+        }
+        return NOT_FOUND;
+    }
+}
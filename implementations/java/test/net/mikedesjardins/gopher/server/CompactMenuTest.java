@@ -0,0 +1,120 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * CompactMenu is supposed to render exactly what GopherMenuFactory and GopherMenu.toBytes() always did.
+ */
+class CompactMenuTest {
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void setUp() {
+        Config.setHost("gopher.example.com");
+        Config.setPort(7070);
+        Config.setMenuSort(false);
+    }
+
+    @Test
+    void gopherMapMatchesGopherMenu() throws IOException {
+        assertSameMenu(String.join("\n",
+                "Welcome to the hole!",
+                "# This is a comment and doesn't show up.",
+                "",
+                "0About this server\tabout.txt\tgopher.example.com\t70",
+                "1Somewhere else\t/\tgopher.floodgap.com\t70",
+                "hA web page\tURL:https://example.com/\tgopher.example.com\t70",
+                "iAn info line with tabs\t\t",
+                "9Ünïcödé nämé 🐹\tfiles/ünï.bin\tgopher.example.com\t7070",
+                "XNot a real type\tselector\thost\t70",
+                "   indented info line   ",
+                "7Search\tsearch\tlocalhost\t-1",
+                "last line without a newline"));
+    }
+
+    @Test
+    void everyLineEndingWorks() throws IOException {
+        assertSameMenu("first\r\n0one\tone.txt\thost\t70\rsecond\n\r\n1two\ttwo\thost\t71\r\n");
+    }
+
+    @Test
+    void emptyGopherMap() throws IOException {
+        assertSameMenu("");
+    }
+
+    @Test
+    void directoryListingMatchesGopherMenu() throws IOException {
+        Files.write(directory.resolve("poem.txt"), "Hello!\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("picture.gif"), new byte[] {1, 2, 3});
+        Files.write(directory.resolve("noextension"), new byte[] {1});
+        Files.write(directory.resolve("page.html"), new byte[] {1});
+        Files.createDirectory(directory.resolve("subdirectory"));
+
+        assertArrayEquals(GopherMenuFactory.create(directory).toBytes(), GopherMenuFactory.createCompact(directory).toBytes());
+    }
+
+    @Test
+    void renderedLengthIsExact() {
+        CompactMenu menu = new CompactMenu();
+        menu.addInfo("Hi there");
+        menu.addLocal(FileType.TEXT, "poem", "/poem.txt");
+        menu.add(FileType.DIRECTORY, "elsewhere", "/", "gopher.floodgap.com", 70);
+        byte[] bytes = menu.toBytes();
+        assertEquals(bytes.length, menu.renderedLength());
+        assertEquals("iHi there\t\tgopher.example.com\t7070\r\n"
+                + "0poem\t/poem.txt\tgopher.example.com\t7070\r\n"
+                + "1elsewhere\t/\tgopher.floodgap.com\t70\r\n.\r\n", new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void clearedMenuCanBeReused() {
+        CompactMenu menu = new CompactMenu();
+        for (int i = 0; i < 100; i++) {
+            menu.addLocal(FileType.TEXT, "file" + i, "/file" + i);
+        }
+        menu.clear();
+        menu.addLocal(FileType.BINARY, "only", "/only");
+        assertEquals(1, menu.size());
+        assertEquals("9only\t/only\tgopher.example.com\t7070\r\n.\r\n", new String(menu.toBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void itemsRenderInBatches() {
+        CompactMenu first = new CompactMenu();
+        first.addLocal(FileType.TEXT, "a", "/a");
+        first.addLocal(FileType.TEXT, "b", "/b");
+        CompactMenu second = new CompactMenu();
+        second.addLocal(FileType.TEXT, "c", "/c");
+        CompactMenu all = new CompactMenu();
+        all.addLocal(FileType.TEXT, "a", "/a");
+        all.addLocal(FileType.TEXT, "b", "/b");
+        all.addLocal(FileType.TEXT, "c", "/c");
+
+        ByteBuffer out = ByteBuffer.allocate(all.renderedLength());
+        first.renderItems(out);
+        CompactMenu.renderLineEnd(out);
+        second.renderItems(out);
+        CompactMenu.renderMenuEnd(out);
+        assertEquals(first.itemsLength() + 2 + second.itemsLength() + 5, out.position());
+        assertArrayEquals(all.toBytes(), out.array());
+    }
+
+    private void assertSameMenu(String gopherMap) throws IOException {
+        Files.write(directory.resolve(Config.getMapFilename()), gopherMap.getBytes(StandardCharsets.UTF_8));
+        byte[] expected = GopherMenuFactory.create(directory).toBytes();
+        assertArrayEquals(expected, GopherMenuFactory.createCompact(directory).toBytes());
+        assertArrayEquals(expected, CompactMenu.parse(gopherMap.getBytes(StandardCharsets.UTF_8)).toBytes());
+    }
+}
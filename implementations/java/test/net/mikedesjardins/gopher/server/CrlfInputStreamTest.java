@@ -0,0 +1,155 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * CrlfInputStream is supposed to give exactly what reading the lines with BufferedReader, stripping each one and
+ * joining them with \r\n would, however the text is split up on its way in.
+ */
+class CrlfInputStreamTest {
+    // Matches CrlfInputStream's CHUNK_SIZE. Its raw buffer is two of these, so that's a boundary worth hitting too.
+    private static final int CHUNK = 4096;
+    private static final int[] TRICKLES = {1, 2, 3, 7, CHUNK - 1, CHUNK, CHUNK + 1, 2 * CHUNK, Integer.MAX_VALUE};
+
+    @Test
+    void emptyFileIsEmpty() throws IOException {
+        assertConverts("");
+    }
+
+    @Test
+    void lastLineGetsALineEnding() throws IOException {
+        assertConverts("no newline at the end");
+        assertEquals("one\r\ntwo\r\n", convert("one\ntwo", Integer.MAX_VALUE));
+    }
+
+    @Test
+    void allThreeLineEndingsBecomeCrlf() throws IOException {
+        assertConverts("unix\nmac\rdos\r\nblank lines\n\n\r\r\n\r\nend\n");
+        assertEquals("a\r\nb\r\nc\r\n\r\n", convert("a\rb\r\nc\n\r", Integer.MAX_VALUE));
+    }
+
+    @Test
+    void trailingWhitespaceIsStripped() throws IOException {
+        assertConverts("spaces   \ntabs\t\t\r\nboth \t \rinside  stays\n   \n\t\n  leading stays");
+        assertEquals("x\r\n\r\n", convert("x \t\n \t ", Integer.MAX_VALUE));
+    }
+
+    @Test
+    void lineEndingsSplitAcrossChunks() throws IOException {
+        for (int at = CHUNK - 3; at <= CHUNK + 3; at++) {
+            String head = "a".repeat(at - 1);
+            assertConverts(head + "\r\n" + "tail\r\n");
+            assertConverts(head + "\r" + "tail\r");
+            assertConverts(head + "\n" + "\ntail");
+            assertConverts(head + " \r\n" + "tail  \r\n");
+        }
+        for (int at = 2 * CHUNK - 3; at <= 2 * CHUNK + 3; at++) {
+            assertConverts("b".repeat(at - 1) + "\r\nnext\r\n");
+        }
+    }
+
+    @Test
+    void multiByteCharactersSplitAcrossChunks() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append(i % 3 == 0 ? "é" : i % 3 == 1 ? "🐹" : "ü ").append(i % 97 == 0 ? "\r\n" : "");
+        }
+        assertConverts(text.toString());
+    }
+
+    @Test
+    void manyLinesOfManySizes() throws IOException {
+        StringBuilder text = new StringBuilder();
+        String[] endings = {"\n", "\r", "\r\n"};
+        for (int i = 0; i < 2000; i++) {
+            text.append("word ".repeat(i % 13)).append(" ".repeat(i % 5)).append(endings[i % 3]);
+        }
+        assertConverts(text.toString());
+    }
+
+    @Test
+    void longWhitespaceInsideALineIsKept() throws IOException {
+        assertConverts("a" + " ".repeat(10 * CHUNK) + "b\n");
+        assertConverts("a" + " \t".repeat(3 * CHUNK) + "b\r\nc\n");
+    }
+
+    @Test
+    void longTrailingWhitespaceIsNotAllHeldBack() throws IOException {
+        String line = convert("a" + " ".repeat(10 * CHUNK) + "\nb\n", 7);
+        assertTrue(line.endsWith("\r\nb\r\n"));
+        String spaces = line.substring(1, line.indexOf('\r'));
+        assertTrue(spaces.isBlank());
+        // At most a chunk of it is dropped, and only once it's been held back.
+        assertTrue(spaces.length() >= 9 * CHUNK && spaces.length() < 10 * CHUNK, "kept " + spaces.length());
+    }
+
+    @Test
+    void badUtf8BecomesReplacementCharacters() throws IOException {
+        byte[] bytes = {'o', 'k', (byte) 0xff, 'x', '\n'};
+        try (InputStream in = new CrlfInputStream(new ByteArrayInputStream(bytes))) {
+            assertEquals("ok�x\r\n", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void singleByteReadsMatch() throws IOException {
+        String text = "one  \r\ntwo\rthree\n";
+        StringBuilder out = new StringBuilder();
+        try (InputStream in = new CrlfInputStream(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)))) {
+            for (int b; (b = in.read()) >= 0; ) {
+                out.append((char) b);
+            }
+        }
+        assertEquals(expected(text), out.toString());
+    }
+
+    private static void assertConverts(String text) throws IOException {
+        String expected = expected(text);
+        for (int trickle : TRICKLES) {
+            assertEquals(expected, convert(text, trickle), "reading " + trickle + " bytes at a time");
+        }
+    }
+
+    private static String expected(String text) throws IOException {
+        StringBuilder expected = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new StringReader(text));
+        for (String line; (line = reader.readLine()) != null; ) {
+            expected.append(line.stripTrailing()).append("\r\n");
+        }
+        return expected.toString();
+    }
+
+    private static String convert(String text, int trickle) throws IOException {
+        InputStream source = new Trickle(text.getBytes(StandardCharsets.UTF_8), trickle);
+        try (InputStream in = new CrlfInputStream(source)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Hands out at most so many bytes per read, like a socket or a slow disk might.
+     */
+    private static class Trickle extends ByteArrayInputStream {
+        private final int most;
+
+        Trickle(byte[] bytes, int most) {
+            super(bytes);
+            this.most = most;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, most));
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GopherArchiveTest {
+    private static final byte[] POEM = "Whose woods these are I think I know.\nHis house is in the village though;\n"
+            .repeat(50).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PICTURE = {'G', 'I', 'F', '8', '9', 'a', 0, 1, 2, 3, (byte) 0xff};
+
+    @TempDir
+    Path directory;
+    private Path zip;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Config.setHost("localhost");
+        Config.setPort(70);
+        zip = directory.resolve("test.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.setComment("A comment at the end, which pushes the end record back.");
+            deflated(out, "poems/frost.txt", POEM);
+            stored(out, "pictures/cat.gif", PICTURE);
+            out.putNextEntry(new ZipEntry("empty/"));
+            out.closeEntry();
+            deflated(out, "poems/old/beowulf.txt", "Hwæt!\n".getBytes(StandardCharsets.UTF_8));
+            deflated(out, "readme.txt", "Read me.\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void findsMembers() throws IOException {
+        GopherArchive archive = GopherArchive.read(zip);
+        assertEquals(5, archive.size());
+        int frost = archive.find("poems/frost.txt");
+        assertEquals("poems/frost.txt", archive.getName(frost));
+        assertEquals(GopherArchive.DEFLATED, archive.getMethod(frost));
+        assertEquals(POEM.length, archive.getSize(frost));
+        assertTrue(archive.getCompressedSize(frost) < POEM.length);
+        assertEquals(GopherArchive.STORED, archive.getMethod(archive.find("pictures/cat.gif")));
+        assertEquals(-1, archive.find("poems/"));
+        assertEquals(-1, archive.find("empty/"));
+        assertEquals(-1, archive.find("poems/frost"));
+        assertEquals(-1, archive.find("nothing.txt"));
+    }
+
+    @Test
+    void directoriesNeedntHaveEntries() throws IOException {
+        GopherArchive archive = GopherArchive.read(zip);
+        assertTrue(archive.isDirectory(""));
+        assertTrue(archive.isDirectory("poems/"));
+        assertTrue(archive.isDirectory("poems/old/"));
+        assertTrue(archive.isDirectory("empty/"));
+        assertFalse(archive.isDirectory("poem/"));
+        assertFalse(archive.isDirectory("readme.txt/"));
+    }
+
+    @Test
+    void menusListWhatsDirectlyInADirectory() throws IOException {
+        GopherArchive archive = GopherArchive.read(zip);
+        assertEquals("1empty\tz/test.zip/empty/\tlocalhost\t70\r\n"
+                + "1pictures\tz/test.zip/pictures/\tlocalhost\t70\r\n"
+                + "1poems\tz/test.zip/poems/\tlocalhost\t70\r\n"
+                + "0readme.txt\tz/test.zip/readme.txt\tlocalhost\t70\r\n.\r\n", menu(archive, ""));
+        assertEquals("0frost.txt\tz/test.zip/poems/frost.txt\tlocalhost\t70\r\n"
+                + "1old\tz/test.zip/poems/old/\tlocalhost\t70\r\n.\r\n", menu(archive, "poems/"));
+        assertEquals(".\r\n", menu(archive, "empty/").substring(2));
+    }
+
+    @Test
+    void storedMembersAreWhereTheArchiveSaysTheyAre() throws IOException {
+        GopherArchive archive = GopherArchive.read(zip);
+        int cat = archive.find("pictures/cat.gif");
+        try (FileChannel channel = FileChannel.open(zip, StandardOpenOption.READ)) {
+            ByteBuffer bytes = ByteBuffer.allocate((int) archive.getCompressedSize(cat));
+            channel.read(bytes, archive.dataOffset(channel, cat));
+            assertArrayEquals(PICTURE, bytes.array());
+        }
+    }
+
+    @Test
+    void manyMembersMeansZip64() throws IOException {
+        Path big = directory.resolve("big.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(big))) {
+            // More than fit in the old end record's 16-bit count.
+            for (int i = 0; i < 70_000; i++) {
+                out.putNextEntry(new ZipEntry("dir" + (i % 10) + "/file" + i + ".txt"));
+                out.closeEntry();
+            }
+        }
+        GopherArchive archive = GopherArchive.read(big);
+        assertEquals(70_000, archive.size());
+        assertTrue(archive.find("dir3/file69993.txt") >= 0);
+    }
+
+    @Test
+    void utf8NamesAreDecoded() throws IOException {
+        Path utf8 = directory.resolve("utf8.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(utf8))) {
+            deflated(out, "gedichte/über.txt", new byte[] {'x'});
+        }
+        assertTrue(GopherArchive.read(utf8).find("gedichte/über.txt") >= 0);
+    }
+
+    @Test
+    void namesThatLeaveTheArchiveAreLeftOut() throws IOException {
+        Path sneaky = directory.resolve("sneaky.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(sneaky))) {
+            deflated(out, "/etc/passwd", new byte[] {'x'});
+            deflated(out, "poems/../../secret.txt", new byte[] {'x'});
+            deflated(out, "..\\secret.txt", new byte[] {'x'});
+            deflated(out, "C:/secret.txt", new byte[] {'x'});
+            deflated(out, "poems/..frost.txt", new byte[] {'x'});
+        }
+        GopherArchive archive = GopherArchive.read(sneaky);
+        assertEquals(1, archive.size());
+        assertTrue(archive.find("poems/..frost.txt") >= 0);
+    }
+
+    @Test
+    void archivesOutsideTheRootArentServed() throws IOException {
+        String oldRoot = Config.getRoot();
+        Config.setRoot(Files.createDirectories(directory.resolve("root")).toString());
+        try {
+            GopherArchiveCache archives = GopherArchiveCache.getInstance();
+            assertTrue(archives.lookup("../test.zip/readme.txt") instanceof GopherNotFoundOutput);
+            assertTrue(archives.lookup("../test.zip/") instanceof GopherNotFoundOutput);
+            assertTrue(archives.lookup("poems/../../test.zip/readme.txt") instanceof GopherNotFoundOutput);
+            Files.copy(zip, directory.resolve("root").resolve("inside.zip"));
+            assertTrue(archives.lookup("inside.zip/readme.txt") instanceof GopherArchiveOutput);
+        } finally {
+            Config.setRoot(oldRoot);
+        }
+    }
+
+    @Test
+    void notAnArchive() throws IOException {
+        Path text = directory.resolve("fake.zip");
+        Files.write(text, "This is not a ZIP archive, whatever its name says.".getBytes(StandardCharsets.UTF_8));
+        assertThrows(ZipException.class, () -> GopherArchive.read(text));
+        Path empty = Files.createFile(directory.resolve("empty.zip"));
+        assertThrows(ZipException.class, () -> GopherArchive.read(empty));
+    }
+
+    @Test
+    void truncatedArchive() throws IOException {
+        byte[] whole = Files.readAllBytes(zip);
+        Path truncated = directory.resolve("truncated.zip");
+        Files.write(truncated, Arrays.copyOf(whole, whole.length / 2));
+        assertThrows(ZipException.class, () -> GopherArchive.read(truncated));
+    }
+
+    private static String menu(GopherArchive archive, String directory) {
+        CompactMenu menu = new CompactMenu();
+        archive.fill(menu, directory, "z/test.zip");
+        return new String(menu.toBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static void deflated(ZipOutputStream out, String name, byte[] content) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(content);
+        out.closeEntry();
+    }
+
+    private static void stored(ZipOutputStream out, String name, byte[] content) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+}
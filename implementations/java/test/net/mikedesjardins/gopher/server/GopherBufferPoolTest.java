@@ -0,0 +1,56 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class GopherBufferPoolTest {
+    private final GopherBufferPool pool = new GopherBufferPool(16L * 1024 * 1024, 0);
+
+    @Test
+    void otherThreadsGiveBackToTheArena() throws InterruptedException {
+        // Like the thread-per-connection engine: the thread's gone by the time anybody wants its buffer.
+        GopherBufferPool.Lease[] lease = new GopherBufferPool.Lease[1];
+        Thread thread = new Thread(() -> {
+            lease[0] = pool.heap(GopherServerThread.BUFFER_SIZE);
+            lease[0].close();
+        });
+        thread.start();
+        thread.join();
+        assertEquals(GopherServerThread.BUFFER_SIZE, pool.getPooledBytes());
+        try (GopherBufferPool.Lease again = pool.heap(GopherServerThread.BUFFER_SIZE)) {
+            assertSame(lease[0].buffer(), again.buffer());
+        }
+        assertEquals(1, pool.getAllocated());
+    }
+
+    @Test
+    void keptBuffersStayWithTheThread() {
+        pool.keepBuffers();
+        try {
+            pool.heap(1024).close();
+            assertEquals(0, pool.getPooledBytes());
+        } finally {
+            pool.dropBuffers();
+        }
+        assertEquals(1024, pool.getPooledBytes());
+    }
+
+    @Test
+    void nothingsKeptWithoutPooling() {
+        GopherBufferPool unpooled = new GopherBufferPool(0, 0);
+        unpooled.keepBuffers();
+        try {
+            GopherBufferPool.Lease first = unpooled.direct(1024);
+            first.close();
+            try (GopherBufferPool.Lease second = unpooled.direct(1024)) {
+                assertNotSame(first.buffer(), second.buffer());
+            }
+        } finally {
+            unpooled.dropBuffers();
+        }
+        assertEquals(0, unpooled.getPooledBytes());
+    }
+}
@@ -0,0 +1,118 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GopherContentCacheTest {
+    private final GopherContentCache cache = GopherContentCache.getInstance();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void setUp() {
+        Config.setContentCacheSize(1000);
+        Config.setContentCacheEntrySize(400);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Config.setContentCacheSize(64L * 1024 * 1024);
+        Config.setContentCacheEntrySize(256L * 1024);
+    }
+
+    @Test
+    void loadsOnceThenHits() throws IOException {
+        Path file = directory.resolve("a");
+        long hits = cache.getHits();
+        assertEquals(100, get(file, 1, 100).remaining());
+        assertEquals(100, get(file, 1, 100).remaining());
+        assertEquals(1, loads.get());
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    void reloadsWhenTheFileChanges() throws IOException {
+        Path file = directory.resolve("a");
+        get(file, 1, 100);
+        get(file, 2, 100);
+        assertEquals(2, loads.get());
+        get(file, 2, 120);
+        assertEquals(3, loads.get());
+        assertEquals(120, get(file, 2, 120).remaining());
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    void bigFilesArentCached() throws IOException {
+        Path file = directory.resolve("big");
+        long misses = cache.getMisses();
+        assertNull(get(file, 1, 401));
+        assertEquals(0, loads.get(), "too big to cache, so it shouldn't even be read");
+        // The file said it was small, but it wasn't by the time we read it.
+        assertNull(cache.get(file, 1, 10, () -> new byte[500]));
+        assertEquals(misses, cache.getMisses(), "files we couldn't have cached aren't misses");
+        get(directory.resolve("small"), 1, 100);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsed() throws IOException {
+        Path a = directory.resolve("a");
+        Path b = directory.resolve("b");
+        Path c = directory.resolve("c");
+        get(a, 1, 400);
+        get(b, 1, 400);
+        get(a, 1, 400);
+        // That's 1200 bytes, so something has to go, and b's the one that hasn't been used lately.
+        get(c, 1, 400);
+        assertEquals(3, loads.get());
+        assertTrue(cache.getTotalBytes() <= 1000);
+        get(a, 1, 400);
+        get(c, 1, 400);
+        assertEquals(3, loads.get());
+        get(b, 1, 400);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    void containsOnlyUpToDateCopies() throws IOException {
+        Path file = directory.resolve("a");
+        assertFalse(cache.contains(file, 1, 100));
+        get(file, 1, 100);
+        assertTrue(cache.contains(file, 1, 100));
+        assertFalse(cache.contains(file, 2, 100));
+        assertFalse(cache.contains(file, 1, 101));
+    }
+
+    @Test
+    void buffersAreReadOnlyAndIndependent() throws IOException {
+        Path file = directory.resolve("a");
+        ByteBuffer first = get(file, 1, 10);
+        first.get();
+        assertEquals(10, get(file, 1, 10).remaining());
+        assertThrows(ReadOnlyBufferException.class, () -> first.put(0, (byte) 1));
+    }
+
+    private ByteBuffer get(Path path, long modified, int size) throws IOException {
+        return cache.get(path, modified, size, () -> {
+            loads.incrementAndGet();
+            return new byte[size];
+        });
+    }
+}
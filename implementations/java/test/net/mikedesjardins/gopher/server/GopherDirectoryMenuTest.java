@@ -0,0 +1,187 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GopherDirectoryMenuTest {
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void setUp() {
+        Config.setHost("localhost");
+        Config.setPort(70);
+        Config.setMenuSort(true);
+        Config.setMenuPageSize(10);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Config.setMenuSort(false);
+    }
+
+    @Test
+    void sortsInMemory() throws IOException {
+        List<String> names = create(1000);
+        assertEquals(sorted(names), list());
+    }
+
+    @Test
+    void mergesSpilledRuns() throws IOException {
+        // Two full runs and a bit, so there are three runs to merge and the last one's short.
+        List<String> names = create(2 * GopherDirectoryMenu.SORT_RUN + 17);
+        long runsBefore = runFiles();
+        assertEquals(sorted(names), list());
+        assertEquals(runsBefore, runFiles(), "the runs should be deleted once the menu's closed");
+    }
+
+    @Test
+    void mergesAnExactRun() throws IOException {
+        List<String> names = create(GopherDirectoryMenu.SORT_RUN);
+        assertEquals(sorted(names), list());
+    }
+
+    @Test
+    void unsortedListsEverything() throws IOException {
+        Config.setMenuSort(false);
+        List<String> names = create(500);
+        List<String> listed = list();
+        Collections.sort(listed);
+        assertEquals(sorted(names), listed);
+    }
+
+    @Test
+    void streamMatchesOneBigMenu() throws IOException {
+        create(1000);
+        CompactMenu whole = new CompactMenu();
+        try (GopherDirectoryMenu entries = GopherDirectoryMenu.open(directory)) {
+            entries.fill(whole, Integer.MAX_VALUE);
+        }
+        CompactMenu head = new CompactMenu();
+        byte[] streamed;
+        GopherDirectoryMenu entries = GopherDirectoryMenu.open(directory);
+        entries.fill(head, 3);
+        try (InputStream in = entries.stream(head)) {
+            streamed = in.readAllBytes();
+        }
+        assertArrayEquals(whole.toBytes(), streamed);
+    }
+
+    @Test
+    void streamOfAnEmptyDirectory() throws IOException {
+        try (InputStream in = GopherDirectoryMenu.open(directory).stream(new CompactMenu())) {
+            assertEquals(".\r\n", new String(in.readAllBytes(), StandardCharsets.UTF_8).substring(2));
+        }
+    }
+
+    @Test
+    void pagesLinkToEachOther() throws IOException {
+        List<String> names = sorted(create(25));
+        String first = page(1);
+        assertTrue(first.contains(names.get(0) + "\t"));
+        assertTrue(first.contains(names.get(9) + "\t"));
+        assertFalse(first.contains(names.get(10) + "\t"));
+        assertFalse(first.contains("Previous page"));
+        assertTrue(first.contains("1Next page\t/big?page=2\t"));
+
+        String second = page(2);
+        assertTrue(second.contains(names.get(10) + "\t"));
+        assertTrue(second.contains("1Previous page\t/big\t"));
+        assertTrue(second.contains("1Next page\t/big?page=3\t"));
+
+        String last = page(3);
+        assertTrue(last.contains(names.get(24) + "\t"));
+        assertTrue(last.contains("1Previous page\t/big?page=2\t"));
+        assertFalse(last.contains("Next page"));
+    }
+
+    @Test
+    void pagePastTheEnd() throws IOException {
+        create(25);
+        assertNull(GopherDirectoryMenu.page(directory, "/big", 4));
+        String page = new String(GopherDirectoryMenu.noSuchPage("/big", 4), StandardCharsets.UTF_8);
+        assertTrue(page.startsWith("3There's no page 4 of this directory."));
+        assertTrue(page.contains("1First page\t/big\t"));
+    }
+
+    @Test
+    void pagesPastTheEndArentCached() throws IOException {
+        create(25);
+        GopherMenuCache cache = GopherMenuCache.getInstance();
+        int cached = cache.size();
+        for (int page = 1; page <= 100; page++) {
+            int number = page;
+            cache.getPage(directory, number, () -> GopherDirectoryMenu.page(directory, "/big", number));
+        }
+        // Only its three real pages (fewer, if the watcher's thrown anything away in the meantime).
+        assertTrue(cache.size() <= cached + 3, cache.size() + " menus cached");
+    }
+
+    private String page(int page) {
+        return new String(GopherDirectoryMenu.page(directory, "/big", page), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes that many empty files with random names.
+     */
+    private List<String> create(int count) throws IOException {
+        Random random = new Random(count);
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + "-" + i;
+            Files.createFile(directory.resolve(name));
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * @return the names in the directory's menu, in menu order.
+     */
+    private List<String> list() throws IOException {
+        CompactMenu menu = new CompactMenu();
+        try (GopherDirectoryMenu entries = GopherDirectoryMenu.open(directory)) {
+            assertFalse(entries.fill(menu, Integer.MAX_VALUE));
+        }
+        List<String> names = new ArrayList<>(menu.size());
+        String rendered = new String(menu.toBytes(), StandardCharsets.UTF_8);
+        for (String line : rendered.split("\r\n")) {
+            if (!line.equals(".")) {
+                names.add(line.substring(1, line.indexOf('\t')));
+            }
+        }
+        return names;
+    }
+
+    private static List<String> sorted(List<String> names) {
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static long runFiles() throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(file -> file.getFileName().toString().startsWith("gopher-menu")).count();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GopherMenuCacheTest {
+    private final GopherMenuCache cache = GopherMenuCache.getInstance();
+    private final AtomicInteger renders = new AtomicInteger();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void rendersOnceThenHits() {
+        byte[] menu = get(directory);
+        assertArrayEquals(menu, get(directory));
+        assertEquals(1, renders.get());
+    }
+
+    @Test
+    void pagesAreCachedSeparately() {
+        cache.getPage(directory, 1, () -> render("one"));
+        cache.getPage(directory, 2, () -> render("two"));
+        assertArrayEquals(render("one"), cache.getPage(directory, 1, () -> render("wrong")));
+        assertArrayEquals(render("two"), cache.getPage(directory, 2, () -> render("wrong")));
+        assertEquals(4, renders.get());
+    }
+
+    @Test
+    void containsTellsMenusAndPagesApart() {
+        assertFalse(cache.contains(directory));
+        cache.getPage(directory, 2, () -> render("two"));
+        assertFalse(cache.contains(directory));
+        assertTrue(cache.containsPage(directory, 2));
+        assertFalse(cache.containsPage(directory, 1));
+        get(directory);
+        assertTrue(cache.contains(directory.resolve(".")));
+    }
+
+    @Test
+    void nullIsntCached() {
+        assertNull(cache.get(directory, () -> {
+            renders.incrementAndGet();
+            return null;
+        }));
+        get(directory);
+        assertEquals(2, renders.get());
+    }
+
+    @Test
+    void changesInTheDirectoryThrowTheMenuAway() throws IOException, InterruptedException {
+        get(directory);
+        cache.getPage(directory, 2, () -> render("page"));
+        Files.createFile(directory.resolve("new.txt"));
+        // The watcher thread gets to it when it gets to it.
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (renders.get() == 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            get(directory);
+        }
+        assertEquals(3, renders.get());
+        cache.getPage(directory, 2, () -> render("page"));
+        assertEquals(4, renders.get());
+    }
+
+    @Test
+    void equivalentPathsShareAMenu() throws IOException {
+        Path poems = Files.createDirectory(directory.resolve("poems"));
+        get(poems);
+        cache.get(directory.resolve("./poems/"), () -> render("wrong"));
+        cache.get(directory.resolve("poems/../poems"), () -> render("wrong"));
+        assertEquals(1, renders.get());
+    }
+
+    @Test
+    void theFirstSpellingOfASelectorDoesntStick() throws IOException {
+        Path poems = Files.createDirectory(directory.resolve("poems"));
+        for (int i = 0; i < 5; i++) {
+            Files.createFile(poems.resolve("poem" + i + ".txt"));
+        }
+        String oldRoot = Config.getRoot();
+        Config.setRoot(directory.toString());
+        Config.setMenuPageSize(0);
+        try {
+            byte[] cached = menu(new GopherMenuOutput("./poems/"));
+            assertArrayEquals(uncached(new GopherMenuOutput("poems")), cached);
+            assertFalse(new String(cached, StandardCharsets.UTF_8).contains("/./"));
+
+            Config.setMenuPageSize(2);
+            cached = menu(new GopherMenuOutput("/./poems", 2));
+            assertArrayEquals(uncached(new GopherMenuOutput("poems", 2)), cached);
+            String page = new String(cached, StandardCharsets.UTF_8);
+            assertTrue(page.contains("\tpoems\t"), page);
+            assertTrue(page.contains("\tpoems?page=3\t"), page);
+        } finally {
+            Config.setRoot(oldRoot);
+            Config.setMenuPageSize(0);
+            Config.setMenuCache(true);
+        }
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsed() throws IOException {
+        Path a = Files.createDirectory(directory.resolve("a"));
+        Path b = Files.createDirectory(directory.resolve("b"));
+        Path c = Files.createDirectory(directory.resolve("c"));
+        int size = get(a).length;
+        Config.setMenuCacheSize(2 * size);
+        try {
+            get(b);
+            get(a);
+            // There's only room for two (anything left over from other tests went when b was cached), and b's the
+            // one that hasn't been used lately.
+            get(c);
+            assertEquals(3, renders.get());
+            get(a);
+            get(c);
+            assertEquals(3, renders.get());
+            get(b);
+            assertEquals(4, renders.get());
+            assertTrue(cache.getTotalBytes() <= Config.getMenuCacheSize());
+            // Evicted directories aren't watched any more.
+            assertEquals(2, cache.getWatched());
+        } finally {
+            Config.setMenuCacheSize(16L * 1024 * 1024);
+        }
+    }
+
+    @Test
+    void menusBiggerThanTheCacheArentCached() {
+        Config.setMenuCacheSize(10);
+        try {
+            int watched = cache.getWatched();
+            get(directory);
+            get(directory);
+            assertEquals(2, renders.get());
+            assertEquals(watched, cache.getWatched());
+        } finally {
+            Config.setMenuCacheSize(16L * 1024 * 1024);
+        }
+    }
+
+    private static byte[] menu(GopherMenuOutput output) {
+        ByteBuffer buffer = output.buffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] uncached(GopherMenuOutput output) {
+        Config.setMenuCache(false);
+        try {
+            return menu(output);
+        } finally {
+            Config.setMenuCache(true);
+        }
+    }
+
+    private byte[] get(Path path) {
+        return cache.get(path, () -> render(path.toString()));
+    }
+
+    private byte[] render(String text) {
+        renders.incrementAndGet();
+        CompactMenu menu = new CompactMenu();
+        menu.addInfo(text);
+        return menu.toBytes();
+    }
+}
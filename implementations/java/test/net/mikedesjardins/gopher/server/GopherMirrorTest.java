@@ -0,0 +1,243 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GopherMirrorTest {
+    private static final String POEM = "Whose woods these are I think I know.\r\n";
+
+    @TempDir
+    Path cacheDir;
+    private Upstream upstream;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Config.setHost("localhost");
+        Config.setPort(70);
+        Config.setMirrorTtl(300);
+        Config.setMirrorStale(24 * 60 * 60);
+        upstream = new Upstream();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        upstream.close();
+        Config.setMirrorTtl(300);
+        Config.setMirrorStale(24 * 60 * 60);
+        Config.setMirrorCacheDirSize(1024L * 1024 * 1024);
+    }
+
+    @Test
+    void concurrentMissesGoUpstreamOnce() throws InterruptedException {
+        GopherMirror mirror = mirror("");
+        upstream.delayMillis = 300;
+        List<String> answers = race(8, () -> get(mirror, "0/poem.txt"));
+        assertEquals(1, upstream.requests.get());
+        assertEquals(8, answers.size());
+        answers.forEach(answer -> assertEquals(POEM, answer));
+        // Everybody else waited for that one fetch (or, if they were really slow off the mark, found it cached).
+        assertEquals(7, mirror.getCoalesced() + mirror.getHits());
+    }
+
+    @Test
+    void staleIsServedWhileItsRefreshed() throws InterruptedException {
+        Config.setMirrorTtl(0);
+        GopherMirror mirror = mirror("");
+        assertEquals(POEM, get(mirror, "0/poem.txt"));
+        upstream.answer = "And miles to go before I sleep.\r\n";
+        upstream.delayMillis = 500;
+        Thread.sleep(10);
+
+        long started = System.nanoTime();
+        assertEquals(POEM, get(mirror, "0/poem.txt"));
+        assertTrue(System.nanoTime() - started < 400_000_000L, "a stale answer shouldn't wait on the upstream");
+        assertEquals(1, mirror.getStaleHits());
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        String answer = POEM;
+        while (answer.equals(POEM) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            answer = get(mirror, "0/poem.txt");
+        }
+        assertEquals(upstream.answer, answer);
+    }
+
+    @Test
+    void theDiskCopyIsServedWhenTheUpstreamIsDown() throws IOException, InterruptedException {
+        assertEquals(POEM, get(mirror(cacheDir.toString()), "0/poem.txt"));
+        upstream.close();
+        Thread.sleep(10);
+        // A brand new mirror (a restart, say) with nothing in memory, and everything on disk long since expired.
+        Config.setMirrorTtl(0);
+        Config.setMirrorStale(0);
+        GopherMirror restarted = mirror(cacheDir.toString());
+        assertEquals(POEM, get(restarted, "0/poem.txt"));
+        assertEquals(1, restarted.getFailures());
+    }
+
+    @Test
+    void errorsArentCached() throws IOException {
+        upstream.answer = "3 '/poem.txt' doesn't exist!\t\terror.host\t1\r\n";
+        GopherMirror mirror = mirror(cacheDir.toString());
+        assertEquals(upstream.answer, get(mirror, "0/poem.txt"));
+        assertEquals(upstream.answer, get(mirror, "0/poem.txt"));
+        assertEquals(2, upstream.requests.get());
+        assertEquals(0, mirror.size());
+        assertEquals(0, cachedFiles());
+    }
+
+    @Test
+    void anErrorDoesntReplaceWhatWeHad() throws InterruptedException {
+        Config.setMirrorTtl(0);
+        GopherMirror mirror = mirror("");
+        assertEquals(POEM, get(mirror, "0/poem.txt"));
+        upstream.answer = "3 Too busy, come back later.\t\terror.host\t1\r\n";
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (upstream.requests.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            assertEquals(POEM, get(mirror, "0/poem.txt"));
+        }
+        assertTrue(upstream.requests.get() >= 3);
+    }
+
+    @Test
+    void errorsAreRecognized() {
+        assertTrue(GopherMirror.isError("3Nope\t\thost\t70\r\n".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(GopherMirror.isError("3 little pigs\r\nwent to market\t\t\r\n".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(GopherMirror.isError("0About\t/about.txt\thost\t70\r\n".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(GopherMirror.isError(new byte[0]));
+    }
+
+    @Test
+    void theDiskCacheStaysUnderBudget() throws IOException {
+        upstream.answer = "x".repeat(400);
+        Config.setMirrorCacheDirSize(1000);
+        GopherMirror mirror = mirror(cacheDir.toString());
+        get(mirror, "0/a.txt");
+        get(mirror, "0/b.txt");
+        get(mirror, "0/c.txt");
+        assertEquals(2, cachedFiles());
+        assertEquals(800, mirror.getDiskBytes());
+
+        // A restart only counts what's left, and cleans up after a crash in the middle of a write.
+        Files.write(cacheDir.resolve("fetch123.tmp"), new byte[100]);
+        Config.setMirrorCacheDirSize(500);
+        GopherMirror restarted = mirror(cacheDir.toString());
+        assertEquals(400, restarted.getDiskBytes());
+        assertEquals(1, cachedFiles());
+    }
+
+    private GopherMirror mirror(String dir) {
+        return new GopherMirror("localhost:" + upstream.port, dir);
+    }
+
+    private static String get(GopherMirror mirror, String key) {
+        return new String(mirror.get(key), StandardCharsets.UTF_8);
+    }
+
+    private long cachedFiles() throws IOException {
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Has that many threads call something all at once.
+     * @return what each of them got.
+     */
+    private static List<String> race(int threads, Supplier<String> call) throws InterruptedException {
+        List<String> answers = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> started = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                String answer = call.get();
+                synchronized (answers) {
+                    answers.add(answer);
+                }
+            });
+            started.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : started) {
+            thread.join();
+        }
+        return answers;
+    }
+
+    /**
+     * A stand-in upstream server on loopback that gives the same answer to everything, after a delay, and counts how
+     * often it's asked.
+     */
+    private static class Upstream implements Closeable {
+        private final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final int port = socket.getLocalPort();
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile String answer = POEM;
+        private volatile long delayMillis;
+
+        Upstream() throws IOException {
+            Thread acceptor = new Thread(this::accept, "test-upstream");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void accept() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket client = socket.accept();
+                    Thread thread = new Thread(() -> answer(client), "test-upstream-answer");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void answer(Socket client) {
+            try (client) {
+                new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                requests.incrementAndGet();
+                Thread.sleep(delayMillis);
+                client.getOutputStream().write(answer.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException | InterruptedException e) {
+                // The test will notice.
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GopherRateLimiterTest {
+    @Test
+    void burstThenTurnedAway() throws UnknownHostException {
+        GopherRateLimiter limiter = new GopherRateLimiter(1, 5, 0);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(client), "request " + i);
+        }
+        assertFalse(limiter.tryAcquire(client));
+    }
+
+    @Test
+    void burstDefaultsToTheRate() throws UnknownHostException {
+        GopherRateLimiter limiter = new GopherRateLimiter(3, 0, 0);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        assertTrue(limiter.tryAcquire(client));
+        assertTrue(limiter.tryAcquire(client));
+        assertTrue(limiter.tryAcquire(client));
+        assertFalse(limiter.tryAcquire(client));
+    }
+
+    @Test
+    void refillsOverTime() throws UnknownHostException, InterruptedException {
+        GopherRateLimiter limiter = new GopherRateLimiter(50, 1, 0);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        assertTrue(limiter.tryAcquire(client));
+        assertFalse(limiter.tryAcquire(client));
+        // One every 20ms.
+        Thread.sleep(100);
+        assertTrue(limiter.tryAcquire(client));
+    }
+
+    @Test
+    void clientsHaveTheirOwnBuckets() throws UnknownHostException {
+        GopherRateLimiter limiter = new GopherRateLimiter(1, 1, 0);
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("192.0.2.1")));
+        assertFalse(limiter.tryAcquire(InetAddress.getByName("192.0.2.1")));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("192.0.2.2")));
+    }
+
+    @Test
+    void ipv6ClientsShareTheirSlash64() throws UnknownHostException {
+        GopherRateLimiter limiter = new GopherRateLimiter(1, 1, 0);
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("2001:db8:1:2::1")));
+        assertFalse(limiter.tryAcquire(InetAddress.getByName("2001:db8:1:2:ffff::99")));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("2001:db8:1:3::1")));
+    }
+
+    @Test
+    void bytesPutAClientInDebt() throws UnknownHostException {
+        GopherRateLimiter limiter = new GopherRateLimiter(0, 0, 1000);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        assertTrue(limiter.tryAcquire(client));
+        limiter.charge(client, 900);
+        assertTrue(limiter.tryAcquire(client));
+        limiter.charge(client, 100_000);
+        assertFalse(limiter.tryAcquire(client));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("192.0.2.2")));
+    }
+
+    @Test
+    void chargingAStrangerDoesNothing() throws UnknownHostException {
+        GopherRateLimiter limiter = new GopherRateLimiter(0, 0, 1000);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        limiter.charge(client, 100_000);
+        assertTrue(limiter.tryAcquire(client));
+    }
+
+    @Test
+    void moreClientsThanSlots() throws UnknownHostException {
+        GopherRateLimiter limiter = new GopherRateLimiter(1, 1, 0);
+        for (int i = 0; i < 2 * GopherRateLimiter.SLOTS; i++) {
+            byte[] address = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            assertTrue(limiter.tryAcquire(InetAddress.getByAddress(address)));
+        }
+        // Somebody brand new still gets a bucket, and it's a full one.
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        assertTrue(limiter.tryAcquire(client));
+        assertFalse(limiter.tryAcquire(client));
+    }
+
+    @Test
+    void noTokenIsSpentTwice() throws UnknownHostException, InterruptedException {
+        GopherRateLimiter limiter = new GopherRateLimiter(1, 1001, 0);
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        assertTrue(limiter.tryAcquire(client));
+        long started = System.currentTimeMillis();
+        int granted = race(limiter, client, 500);
+        // A thousand, plus whatever trickled in at one a second while the threads were at it.
+        long refilled = (System.currentTimeMillis() - started) / 1000;
+        assertTrue(granted >= 1000 && granted <= 1000 + refilled, "granted " + granted);
+    }
+
+    @Test
+    void aNewClientOnlyGetsOneBucket() throws UnknownHostException, InterruptedException {
+        for (int trial = 0; trial < 50; trial++) {
+            GopherRateLimiter limiter = new GopherRateLimiter(1, 100, 0);
+            long started = System.currentTimeMillis();
+            int granted = race(limiter, InetAddress.getByName("192.0.2.1"), 50);
+            long refilled = (System.currentTimeMillis() - started) / 1000;
+            assertTrue(granted <= 100 + refilled, "granted " + granted + " in trial " + trial);
+        }
+    }
+
+    /**
+     * Has four threads try for a token so many times each, all at once.
+     * @return how many they got.
+     */
+    private static int race(GopherRateLimiter limiter, InetAddress client, int tries) throws InterruptedException {
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < tries; i++) {
+                    if (limiter.tryAcquire(client)) {
+                        granted.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return granted.get();
+    }
+}
@@ -0,0 +1,14 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class GopherSearchOutputTest {
+    @Test
+    void queriesAreEchoedWithoutControlCharacters() {
+        assertEquals("frost woods", GopherSearchOutput.printable("frost\twoods"));
+        assertEquals("a b c d", GopherSearchOutput.printable("a\rb\nc\u0000d"));
+        assertEquals("plain old query", GopherSearchOutput.printable("plain old query"));
+    }
+}
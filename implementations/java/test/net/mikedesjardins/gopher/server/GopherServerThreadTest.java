@@ -0,0 +1,58 @@
+package net.mikedesjardins.gopher.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GopherServerThreadTest {
+    @TempDir
+    Path directory;
+    private String oldRoot;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Config.setHost("localhost");
+        Config.setPort(70);
+        oldRoot = Config.getRoot();
+        Path root = Files.createDirectories(directory.resolve("root"));
+        Files.write(root.resolve("poem.txt"), "Whose woods these are I think I know.\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("secret.txt"), "Keep out!\n".getBytes(StandardCharsets.UTF_8));
+        Config.setRoot(root.toString());
+        // Straight to the filesystem, the way it is while the index is being built.
+        Config.setIndex(false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Config.setRoot(oldRoot);
+        Config.setIndex(true);
+    }
+
+    @Test
+    void selectorsCantLeaveTheRoot() {
+        assertTrue(GopherServerThread.resolve("../secret.txt") instanceof GopherNotFoundOutput);
+        assertTrue(GopherServerThread.resolve("/../secret.txt") instanceof GopherNotFoundOutput);
+        assertTrue(GopherServerThread.resolve("poems/../../secret.txt") instanceof GopherNotFoundOutput);
+        assertTrue(GopherServerThread.resolve("..") instanceof GopherNotFoundOutput);
+    }
+
+    @Test
+    void theFileThatWasCheckedIsTheOneSent() throws IOException {
+        // There's no "missing" directory, so the filesystem couldn't follow this, but it's the poem once normalized.
+        GopherOutput output = GopherServerThread.resolve("missing/../poem.txt");
+        assertTrue(output instanceof GopherFileOutput);
+        try (InputStream in = output.stream()) {
+            assertEquals("Whose woods these are I think I know.\r\n", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}